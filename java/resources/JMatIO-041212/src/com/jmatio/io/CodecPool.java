@@ -0,0 +1,397 @@
+package com.jmatio.io;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of the deflaters, inflaters and buffers used by the readers and
+ * writers of this package.
+ *
+ * Creating a <code>Deflater</code> or <code>Inflater</code> allocates native
+ * memory, and the direct buffers used to read files are only freed by the
+ * garbage collector. The readers and writers take them from this pool and
+ * give them back when a file is done, so reading and writing many files
+ * reuses the same instances. The same holds for the arrays in which the
+ * writers collect the elements of a file. The pool keeps a few instances of each kind,
+ * shared by all threads.
+ *
+ * Usage:
+ * <pre><code>
+ * //statistics
+ * long reused = CodecPool.getHits();
+ * long created = CodecPool.getMisses();
+ *
+ * //free the pooled instances, e.g. when no more files are processed
+ * CodecPool.clear();
+ * </code></pre>
+ */
+public final class CodecPool
+{
+    /** maximum number of pooled deflaters, inflaters and byte arrays */
+    private static final int MAX_POOLED = 2 * Runtime.getRuntime().availableProcessors();
+    /** maximum number of pooled direct buffers */
+    private static final int MAX_POOLED_DIRECT = 2;
+    /** direct buffers above this capacity are not pooled */
+    private static final int MAX_DIRECT_CAPACITY = 1 << 25;
+    /** element arrays above this length are not pooled */
+    private static final int MAX_SINK_LENGTH = 1 << 25;
+
+    private static final ArrayDeque<Deflater> deflaters = new ArrayDeque<Deflater>();
+    private static final ArrayDeque<Inflater> inflaters = new ArrayDeque<Inflater>();
+    private static final ArrayDeque<byte[]> arrays = new ArrayDeque<byte[]>();
+    private static final ArrayDeque<ByteBuffer> directBuffers = new ArrayDeque<ByteBuffer>();
+    private static final ArrayDeque<byte[]> sinks = new ArrayDeque<byte[]>();
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private CodecPool()
+    {
+    }
+
+    /**
+     * @return the number of requests served by a pooled instance
+     */
+    public static long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of requests that needed a new instance
+     */
+    public static long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Frees the pooled instances. Instances in use are not affected, they
+     * are pooled again when they are given back.
+     */
+    public static void clear()
+    {
+        synchronized ( deflaters )
+        {
+            for ( Deflater deflater : deflaters )
+            {
+                deflater.end();
+            }
+            deflaters.clear();
+        }
+        synchronized ( inflaters )
+        {
+            for ( Inflater inflater : inflaters )
+            {
+                inflater.end();
+            }
+            inflaters.clear();
+        }
+        synchronized ( arrays )
+        {
+            arrays.clear();
+        }
+        synchronized ( directBuffers )
+        {
+            directBuffers.clear();
+        }
+        synchronized ( sinks )
+        {
+            sinks.clear();
+        }
+    }
+
+    /**
+     * Gets a deflater, ready for new data.
+     *
+     * @param level - the compression level
+     * @return the deflater, to be given back with <code>release</code>
+     */
+    static Deflater acquireDeflater(int level)
+    {
+        Deflater deflater;
+        synchronized ( deflaters )
+        {
+            deflater = deflaters.pollLast();
+        }
+        if ( deflater == null )
+        {
+            misses.incrementAndGet();
+            return new Deflater( level );
+        }
+        hits.incrementAndGet();
+        deflater.setLevel( level );
+        return deflater;
+    }
+
+    /**
+     * Gives back a deflater, it must not be used afterwards.
+     *
+     * @param deflater - the deflater
+     */
+    static void release(Deflater deflater)
+    {
+        deflater.reset();
+        synchronized ( deflaters )
+        {
+            if ( deflaters.size() < MAX_POOLED )
+            {
+                deflaters.addLast( deflater );
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    /**
+     * Gets an inflater, ready for new data.
+     *
+     * @return the inflater, to be given back with <code>release</code>
+     */
+    static Inflater acquireInflater()
+    {
+        Inflater inflater;
+        synchronized ( inflaters )
+        {
+            inflater = inflaters.pollLast();
+        }
+        if ( inflater == null )
+        {
+            misses.incrementAndGet();
+            return new Inflater();
+        }
+        hits.incrementAndGet();
+        return inflater;
+    }
+
+    /**
+     * Gives back an inflater, it must not be used afterwards.
+     *
+     * @param inflater - the inflater
+     */
+    static void release(Inflater inflater)
+    {
+        inflater.reset();
+        synchronized ( inflaters )
+        {
+            if ( inflaters.size() < MAX_POOLED )
+            {
+                inflaters.addLast( inflater );
+                return;
+            }
+        }
+        inflater.end();
+    }
+
+    /**
+     * Gets a work array, its content is undefined.
+     *
+     * @param length - the length of the array
+     * @return the array, to be given back with <code>release</code>
+     */
+    static byte[] acquireBytes(int length)
+    {
+        synchronized ( arrays )
+        {
+            for ( Iterator<byte[]> it = arrays.descendingIterator(); it.hasNext(); )
+            {
+                byte[] array = it.next();
+                if ( array.length == length )
+                {
+                    it.remove();
+                    hits.incrementAndGet();
+                    return array;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return new byte[length];
+    }
+
+    /**
+     * Gives back a work array, it must not be used afterwards.
+     *
+     * @param array - the array
+     */
+    static void release(byte[] array)
+    {
+        synchronized ( arrays )
+        {
+            if ( arrays.size() >= MAX_POOLED )
+            {
+                arrays.pollFirst();
+            }
+            arrays.addLast( array );
+        }
+    }
+
+    /**
+     * Gets an array to collect an element in, its content is undefined.
+     *
+     * @param minLength - the expected length of the element
+     * @return the smallest pooled array of at least <code>minLength</code>,
+     *         or a new one, to be given back with <code>releaseSink</code>
+     */
+    static byte[] acquireSink(int minLength)
+    {
+        synchronized ( sinks )
+        {
+            byte[] best = null;
+            for ( byte[] array : sinks )
+            {
+                if ( array.length >= minLength && ( best == null || array.length < best.length ) )
+                {
+                    best = array;
+                }
+            }
+            if ( best != null )
+            {
+                removeSame( sinks, best );
+                hits.incrementAndGet();
+                return best;
+            }
+        }
+        misses.incrementAndGet();
+        if ( minLength <= MAX_SINK_LENGTH )
+        {
+            //rounded up, so that elements of similar size share an array
+            return new byte[Math.max( ( minLength + 4095 ) & ~4095, 1 << 12 )];
+        }
+        return new byte[minLength];
+    }
+
+    /**
+     * Gives back an array of <code>acquireSink</code>, or the array it was
+     * grown into, it must not be used afterwards.
+     *
+     * @param array - the array
+     */
+    static void releaseSink(byte[] array)
+    {
+        if ( array.length > MAX_SINK_LENGTH )
+        {
+            return;
+        }
+        synchronized ( sinks )
+        {
+            if ( sinks.size() >= MAX_POOLED )
+            {
+                //keep the larger arrays
+                byte[] smallest = array;
+                for ( byte[] pooled : sinks )
+                {
+                    if ( pooled.length < smallest.length )
+                    {
+                        smallest = pooled;
+                    }
+                }
+                if ( smallest == array )
+                {
+                    return;
+                }
+                removeSame( sinks, smallest );
+            }
+            sinks.addLast( array );
+        }
+    }
+
+    /**
+     * Gets a direct buffer, its content is undefined.
+     *
+     * @param capacity - the needed capacity
+     * @return the buffer with position 0 and limit <code>capacity</code>,
+     *         to be given back with <code>release</code>
+     */
+    static ByteBuffer acquireDirectBuffer(int capacity)
+    {
+        synchronized ( directBuffers )
+        {
+            ByteBuffer best = null;
+            for ( ByteBuffer buf : directBuffers )
+            {
+                if ( buf.capacity() >= capacity && ( best == null || buf.capacity() < best.capacity() ) )
+                {
+                    best = buf;
+                }
+            }
+            if ( best != null )
+            {
+                removeSame( directBuffers, best );
+                hits.incrementAndGet();
+                best.clear();
+                best.limit( capacity );
+                best.order( ByteOrder.BIG_ENDIAN );
+                return best;
+            }
+        }
+        misses.incrementAndGet();
+        ByteBuffer buf;
+        if ( capacity <= MAX_DIRECT_CAPACITY )
+        {
+            //rounded up, so that files of similar size share a buffer
+            buf = ByteBuffer.allocateDirect( Math.max( Integer.highestOneBit( capacity - 1 ) << 1, 1 << 12 ) );
+            buf.limit( capacity );
+        }
+        else
+        {
+            buf = ByteBuffer.allocateDirect( capacity );
+        }
+        return buf;
+    }
+
+    /**
+     * Gives back a direct buffer, it must not be used afterwards, and no
+     * view of it may be in use.
+     *
+     * @param buf - the buffer
+     */
+    static void release(ByteBuffer buf)
+    {
+        if ( !buf.isDirect() || buf.capacity() > MAX_DIRECT_CAPACITY )
+        {
+            return;
+        }
+        synchronized ( directBuffers )
+        {
+            if ( directBuffers.size() >= MAX_POOLED_DIRECT )
+            {
+                //keep the larger buffers
+                ByteBuffer smallest = buf;
+                for ( ByteBuffer pooled : directBuffers )
+                {
+                    if ( pooled.capacity() < smallest.capacity() )
+                    {
+                        smallest = pooled;
+                    }
+                }
+                if ( smallest == buf )
+                {
+                    return;
+                }
+                removeSame( directBuffers, smallest );
+            }
+            directBuffers.addLast( buf );
+        }
+    }
+
+    /**
+     * Removes a buffer from a queue. <code>ByteBuffer.equals</code> compares
+     * the content, so the buffer is looked up by identity.
+     */
+    private static <T> void removeSame(ArrayDeque<T> queue, T buf)
+    {
+        for ( Iterator<T> it = queue.iterator(); it.hasNext(); )
+        {
+            if ( it.next() == buf )
+            {
+                it.remove();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.jmatio.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.jmatio.common.MatDataTypes;
+import com.jmatio.types.MLArray;
+
+/**
+ * MAT-file writer for a double matrix that grows by columns.
+ *
+ * The number of rows is fixed, the columns are written to the file one at a
+ * time, so the matrix is never held in memory. The matrix is stored
+ * uncompressed (<code>miMATRIX</code>); when the writer is closed the number
+ * of columns and the sizes in the tags are written.
+ * Complete arrays can be written before the first column, they are
+ * compressed like with <code>{@link MatFileIncrementalWriter}</code>.
+ *
+ * Usage:
+ * <pre><code>
+ * MatFileColumnWriter writer = new MatFileColumnWriter( new File("states.mat"), "X", 64 );
+ * writer.write( new MLChar( "startTime", "2015-10-01 00:00:00" ) );
+ * for ( int step = 0; step &lt; steps; step++ )
+ * {
+ *     writer.appendColumn( state );
+ * }
+ * writer.close();
+ * </code></pre>
+ *
+ * The file must not be read before the writer is closed.
+ */
+public class MatFileColumnWriter
+{
+    private final RandomAccessFile raFile;
+    private final FileChannel channel;
+    private final MatFileIncrementalWriter arrayWriter;
+    private final String name;
+    private final int rows;
+    /** one column in the byte order of the file */
+    private final ByteBuffer columnBuffer;
+
+    /** position of the matrix tag, -1 before the first column */
+    private long matrixPosition = -1;
+    /** number of bytes of the matrix element before the data */
+    private int matrixHeaderSize;
+    private int columns = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a writer to a file given the File object.
+     *
+     * @param file - an output <code>File</code>, it is overwritten
+     * @param name - name of the matrix
+     * @param rows - number of rows of the matrix
+     * @throws IOException
+     */
+    public MatFileColumnWriter(File file, String name, int rows) throws IOException
+    {
+        if ( rows < 0 || rows > Integer.MAX_VALUE / 8 )
+        {
+            throw new IllegalArgumentException("Invalid number of rows: " + rows);
+        }
+        this.name = name;
+        this.rows = rows;
+        columnBuffer = ByteBuffer.allocate( rows * 8 );
+
+        raFile = new RandomAccessFile(file, "rw");
+        raFile.setLength(0);
+        channel = raFile.getChannel();
+        arrayWriter = new MatFileIncrementalWriter(channel);
+    }
+
+    /**
+     * Writes a complete array. This is only possible before the first column
+     * is appended.
+     *
+     * @param data - the array, its name must differ from the matrix name
+     * @throws IOException
+     */
+    public synchronized void write(MLArray data) throws IOException
+    {
+        checkOpen();
+        if ( matrixPosition >= 0 )
+        {
+            throw new IllegalStateException("Arrays can not be written after the first column.");
+        }
+        if ( name.equals( data.getName() ) )
+        {
+            throw new IllegalArgumentException("Error: variable " + name + " specified more than once for file input.");
+        }
+        arrayWriter.write( data );
+    }
+
+    /**
+     * Appends a column to the matrix.
+     *
+     * @param column - the column, one value per row
+     * @throws IOException
+     */
+    public synchronized void appendColumn(double[] column) throws IOException
+    {
+        checkOpen();
+        if ( column.length != rows )
+        {
+            throw new IllegalArgumentException("Column has " + column.length + " not " + rows + " rows.");
+        }
+        if ( (long)matrixHeaderSize + (long)(columns + 1) * columnBuffer.capacity() > Integer.MAX_VALUE )
+        {
+            throw new MatlabIOException("Matrix " + name + " exceeds the size of a MAT-file element.");
+        }
+        if ( matrixPosition < 0 )
+        {
+            writeMatrixHeader();
+        }
+        columnBuffer.clear();
+        columnBuffer.asDoubleBuffer().put( column );
+        writeFully( columnBuffer, channel.size() );
+        columns++;
+    }
+
+    /**
+     * @return the number of columns appended so far
+     */
+    public synchronized int getColumns()
+    {
+        return columns;
+    }
+
+    /**
+     * Writes the number of columns and the sizes of the matrix and closes
+     * the file.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException
+    {
+        if ( closed )
+        {
+            return;
+        }
+        try
+        {
+            if ( matrixPosition < 0 )
+            {
+                writeMatrixHeader();
+            }
+            int dataSize = columns * columnBuffer.capacity();
+            ByteBuffer value = ByteBuffer.allocate(4);
+            //size of the matrix
+            value.putInt( 0, matrixHeaderSize - 8 + dataSize );
+            writeFully( value, matrixPosition + 4 );
+            //number of columns, the second dimension
+            value.putInt( 0, columns );
+            writeFully( value, matrixPosition + 8 + 16 + 8 + 4 );
+            //size of the data
+            value.putInt( 0, dataSize );
+            writeFully( value, matrixPosition + matrixHeaderSize - 4 );
+        }
+        finally
+        {
+            closed = true;
+            arrayWriter.close();
+            raFile.close();
+        }
+    }
+
+    /**
+     * Writes the matrix element up to the data, with zero columns.
+     */
+    private void writeMatrixHeader() throws IOException
+    {
+        arrayWriter.writeHeaderOnce();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt( MatDataTypes.miMATRIX );
+        dos.writeInt( 0 ); //size of matrix, written on close
+        //flags
+        dos.writeInt( MatDataTypes.miUINT32 );
+        dos.writeInt( 8 );
+        dos.writeInt( MLArray.mxDOUBLE_CLASS );
+        dos.writeInt( 0 );
+        //dimensions
+        dos.writeInt( MatDataTypes.miINT32 );
+        dos.writeInt( 8 );
+        dos.writeInt( rows );
+        dos.writeInt( 0 ); //columns, written on close
+        //name
+        new OSArrayTag( MatDataTypes.miINT8, name.getBytes() ).writeTo( dos );
+        //real part
+        dos.writeInt( MatDataTypes.miDOUBLE );
+        dos.writeInt( 0 ); //size of data, written on close
+        dos.flush();
+
+        matrixPosition = channel.size();
+        matrixHeaderSize = baos.size();
+        writeFully( ByteBuffer.wrap( baos.toByteArray() ), matrixPosition );
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException
+    {
+        buf.rewind();
+        while ( buf.hasRemaining() )
+        {
+            position += channel.write( buf, position );
+        }
+    }
+
+    private void checkOpen()
+    {
+        if ( closed )
+        {
+            throw new IllegalStateException("Writer is closed.");
+        }
+    }
+}
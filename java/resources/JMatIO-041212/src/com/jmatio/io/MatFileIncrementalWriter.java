@@ -8,12 +8,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 import com.jmatio.common.MatDataTypes;
 import com.jmatio.types.MLArray;
@@ -60,6 +62,9 @@ import com.jmatio.types.MLStructure;
  * >> save('mat_file.mat', 'char_arr', '-append');
  * </pre></code>
  * 
+ * The compression level and parallel compression are set with
+ * <code>{@link MatFileWriteOptions}</code>.
+ * 
  * @author 
  */
 public class MatFileIncrementalWriter
@@ -70,6 +75,7 @@ public class MatFileIncrementalWriter
     private boolean headerWritten = false;
     private boolean isStillValid = false;
     private Set<String> varNames = new TreeSet<String>();
+    private final MatFileWriteOptions options;
 	/**
      * Creates a writer to a file given the filename.
      * 
@@ -92,6 +98,18 @@ public class MatFileIncrementalWriter
     {
         this( (new FileOutputStream(file)).getChannel());
     }
+    /**
+     * Creats a writer to a file given the File object, with the given
+     * options.
+     * 
+     * @param file - an output <code>File</code>
+     * @param options - compression level and executor
+     * @throws IOException
+     */
+    public MatFileIncrementalWriter(File file, MatFileWriteOptions options) throws IOException
+    {
+        this( (new FileOutputStream(file)).getChannel(), options );
+    }
     /**
      * Creates a writer for a file, given an output channel to the file..
      * 
@@ -102,63 +120,30 @@ public class MatFileIncrementalWriter
      * @throws IOException
      */
     public MatFileIncrementalWriter(WritableByteChannel chan) throws IOException
+    {
+        this( chan, new MatFileWriteOptions() );
+    }
+    /**
+     * Creates a writer for a file, given an output channel to the file, with
+     * the given options.
+     * 
+     * @param chan - <code>WritableByteChannel</code>
+     * @param options - compression level and executor
+     * @throws IOException
+     */
+    public MatFileIncrementalWriter(WritableByteChannel chan, MatFileWriteOptions options) throws IOException
     {
     	this.channel = chan;
+    	this.options = options;
     	isStillValid = true;
     }
     
     public synchronized void write(MLArray data)
       throws IOException
     {
-        String vName = data.getName();
-        if (varNames.contains(vName))
-        {
-        	throw new IllegalArgumentException("Error: variable " + vName + " specified more than once for file input.");
-        }
-        try
-        {
-            //write the header, but only once.
-        	if (!headerWritten)
-        	{
-        		writeHeader(channel);
-        	}
-            
-            //prepare buffer for MATRIX data
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream( baos );
-            //write MATRIX bytes into buffer
-            writeMatrix( dos, data );
-            
-            //compress data to save storage
-            Deflater compresser = new Deflater();
-            
-            byte[] input = baos.toByteArray();
-            
-            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
-            DataOutputStream dout = new DataOutputStream(new DeflaterOutputStream(compressed, compresser));
-            
-            dout.write(input);
-            
-            dout.close();
-            compressed.close();
-            
-            //write COMPRESSED tag and compressed data into output channel
-            byte[] compressedBytes = compressed.toByteArray();
-            ByteBuffer buf = ByteBuffer.allocateDirect(2 * 4 /* Int size */ + compressedBytes.length);
-            buf.putInt( MatDataTypes.miCOMPRESSED );
-            buf.putInt( compressedBytes.length );
-            buf.put( compressedBytes );
-            
-            buf.flip();
-            channel.write( buf );
-        }
-        catch ( IOException e )
-        {
-            throw e;
-        }
-        finally
-        {
-        }
+        List<MLArray> list = new ArrayList<MLArray>();
+        list.add( data );
+        writeArrays( list, null );
     }
     
     /**
@@ -176,11 +161,8 @@ public class MatFileIncrementalWriter
         try
         {
            
-            //write data
-            for ( MLArray matrix : data )
-            {
-            	write(matrix);
-            }
+            //write data, compressed in parallel with an executor
+            writeArrays( data, options.getExecutor() );
         }
         catch ( IllegalArgumentException iae)
         {
@@ -198,6 +180,61 @@ public class MatFileIncrementalWriter
     	channel.close();
     }
     
+    /**
+     * Writes the arrays in the order of the collection.
+     */
+    private void writeArrays( Collection<MLArray> data, Executor executor )
+            throws IOException
+    {
+        for ( MLArray matrix : data )
+        {
+            String vName = matrix.getName();
+            if (varNames.contains(vName))
+            {
+            	throw new IllegalArgumentException("Error: variable " + vName + " specified more than once for file input.");
+            }
+        }
+        
+        //write the header, but only once.
+        if (!headerWritten)
+        {
+            writeHeader(channel);
+        }
+        
+        List<Callable<ByteBuffer>> elements = new ArrayList<Callable<ByteBuffer>>();
+        for ( final MLArray matrix : data )
+        {
+            elements.add( new Callable<ByteBuffer>()
+            {
+                public ByteBuffer call() throws IOException
+                {
+                    //prepare buffer for MATRIX data
+                    PooledByteArrayOutputStream baos = new PooledByteArrayOutputStream( MatFileWriter.sizeHint( matrix ) );
+                    DataOutputStream dos = new DataOutputStream( baos );
+                    //write MATRIX bytes into buffer
+                    writeMatrix( dos, matrix );
+                    return MatFileWriter.createElement( baos, options.getCompressionLevel() );
+                }
+            } );
+        }
+        MatFileWriter.writeElements( channel, elements, executor );
+    }
+    
+    /**
+     * Writes the MAT-file header if it has not been written yet. Used by
+     * <code>{@link MatFileColumnWriter}</code>, which writes its own elements
+     * to the channel.
+     * 
+     * @throws IOException
+     */
+    synchronized void writeHeaderOnce() throws IOException
+    {
+        if (!headerWritten)
+        {
+            writeHeader(channel);
+        }
+    }
+    
     /**
      * Writes MAT-file header into <code>OutputStream</code>
      * @param os <code>OutputStream</code>
@@ -247,7 +284,7 @@ public class MatFileIncrementalWriter
         OSArrayTag tag;
         ByteArrayOutputStream buffer;         
         DataOutputStream bufferDOS;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PooledByteArrayOutputStream baos = new PooledByteArrayOutputStream( MatFileWriter.sizeHint( array ) );
         DataOutputStream dos = new DataOutputStream(baos);
         
         //flags
@@ -380,51 +417,34 @@ public class MatFileIncrementalWriter
                 }
                 break;
             case MLArray.mxSPARSE_CLASS:
-                int[] ai;
+                //the compressed sparse column arrays are copied as they are
+                MLSparse sparse = (MLSparse)array;
+                ByteBuffer data;
                 //write ir
-                buffer = new ByteArrayOutputStream();
-                bufferDOS = new DataOutputStream(buffer);
-                ai = ((MLSparse)array).getIR();
-                for ( int i : ai )
-                {
-                        bufferDOS.writeInt( i );
-                }
-                tag = new OSArrayTag(MatDataTypes.miINT32, buffer.toByteArray() );
+                int[] ai = sparse.getIR();
+                data = ByteBuffer.allocate( ai.length * 4 );
+                data.asIntBuffer().put( ai );
+                tag = new OSArrayTag(MatDataTypes.miINT32, data );
                 tag.writeTo( dos );
                 //write jc
-                buffer = new ByteArrayOutputStream();
-                bufferDOS = new DataOutputStream(buffer);
-                ai = ((MLSparse)array).getJC();
-                for ( int i : ai )
-                {
-                        bufferDOS.writeInt( i );
-                }
-                tag = new OSArrayTag(MatDataTypes.miINT32, buffer.toByteArray() );
+                ai = sparse.getJC();
+                data = ByteBuffer.allocate( ai.length * 4 );
+                data.asIntBuffer().put( ai );
+                tag = new OSArrayTag(MatDataTypes.miINT32, data );
                 tag.writeTo( dos );
                 //write real
-                buffer = new ByteArrayOutputStream();
-                bufferDOS = new DataOutputStream(buffer);
-                
-                Double[] ad = ((MLSparse)array).exportReal();
-                
-                for ( int i = 0; i < ad.length; i++ )
-                {
-                    bufferDOS.writeDouble( ad[i].doubleValue() );
-                }
-                
-                tag = new OSArrayTag(MatDataTypes.miDOUBLE, buffer.toByteArray() );
+                double[] ad = sparse.getPR();
+                data = ByteBuffer.allocate( ad.length * 8 );
+                data.asDoubleBuffer().put( ad );
+                tag = new OSArrayTag(MatDataTypes.miDOUBLE, data );
                 tag.writeTo( dos );
                 //write real imaginary
                 if ( array.isComplex() )
                 {
-                    buffer = new ByteArrayOutputStream();
-                    bufferDOS = new DataOutputStream(buffer);
-                    ad = ((MLSparse)array).exportImaginary();
-                    for ( int i = 0; i < ad.length; i++ )
-                    {
-                        bufferDOS.writeDouble( ad[i].doubleValue() );
-                    }
-                    tag = new OSArrayTag(MatDataTypes.miDOUBLE, buffer.toByteArray() );
+                    ad = sparse.getPI();
+                    data = ByteBuffer.allocate( ad.length * 8 );
+                    data.asDoubleBuffer().put( ad );
+                    tag = new OSArrayTag(MatDataTypes.miDOUBLE, data );
                     tag.writeTo( dos );
                 }
                 break;
@@ -437,7 +457,8 @@ public class MatFileIncrementalWriter
         //write matrix
         output.writeInt(MatDataTypes.miMATRIX); //matrix tag
         output.writeInt( baos.size() ); //size of matrix
-        output.write( baos.toByteArray() ); //matrix data
+        baos.writeTo( output ); //matrix data
+        baos.release();
     }
     
     /**
@@ -0,0 +1,603 @@
+package com.jmatio.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.jmatio.common.MatDataTypes;
+import com.jmatio.types.MLArray;
+import com.jmatio.types.MLNumericArray;
+
+/**
+ * Overwrites the values of numeric arrays in an existing MAT-file.
+ *
+ * The data of an uncompressed (<code>miMATRIX</code>) numeric array is
+ * written in place, at its position in the file, if the class, the
+ * dimensions and the complexity of the new array are the same as in the file.
+ * The rest of the file is not touched. Compressed arrays and arrays that
+ * changed their size can not be patched, they need a rewrite of the file.
+ *
+ * Usage:
+ * <pre><code>
+ * //patch the arrays if possible, rewrite the file otherwise
+ * MatFilePatcher.write( new File("E.mat"), list, options );
+ *
+ * //patch a single array, or only its elements 10 to 19
+ * MatFilePatcher patcher = new MatFilePatcher( new File("E.mat") );
+ * try
+ * {
+ *     if ( patcher.canPatch( array ) )
+ *     {
+ *         patcher.patch( array );
+ *         patcher.patch( array, 10, 20 );
+ *     }
+ * }
+ * finally
+ * {
+ *     patcher.close();
+ * }
+ * </code></pre>
+ *
+ * @see com.jmatio.io.MatFileWriter
+ */
+public class MatFilePatcher
+{
+    private static final int MATRIX_FLAGS_MASK =
+        MLArray.mtFLAG_TYPE | MLArray.mtFLAG_COMPLEX | MLArray.mtFLAG_LOGICAL;
+
+    private final RandomAccessFile raFile;
+    private final FileChannel channel;
+    private ByteOrder byteOrder;
+    /** the uncompressed arrays of the file */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    /** number of top level elements of the file */
+    private int elements = 0;
+
+    /**
+     * Opens a MAT-file for patching and reads the headers of its arrays.
+     *
+     * @param file - an existing MAT-file
+     * @throws IOException if the file can not be opened or is not a valid
+     *             MAT-file
+     */
+    public MatFilePatcher(File file) throws IOException
+    {
+        raFile = new RandomAccessFile(file, "rw");
+        channel = raFile.getChannel();
+        try
+        {
+            readIndex();
+        }
+        catch ( IOException e )
+        {
+            raFile.close();
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            raFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes arrays to a file. If the file contains exactly these arrays and
+     * each of them can be patched, their data is overwritten in place.
+     * Otherwise the file is written from scratch with
+     * <code>{@link MatFileWriter}</code>.
+     *
+     * @param file - the output <code>File</code>
+     * @param data - the arrays
+     * @param options - the options of the rewrite
+     * @return <code>true</code> if the file was patched, <code>false</code>
+     *         if it was rewritten
+     * @throws IOException
+     */
+    public static boolean write(File file, Collection<MLArray> data, MatFileWriteOptions options)
+            throws IOException
+    {
+        if ( file.isFile() )
+        {
+            MatFilePatcher patcher = null;
+            try
+            {
+                patcher = new MatFilePatcher(file);
+            }
+            catch ( MatlabIOException e )
+            {
+                //not a MAT-file we can read, it is rewritten
+            }
+            if ( patcher != null )
+            {
+                try
+                {
+                    if ( patcher.canPatch( data ) )
+                    {
+                        for ( MLArray array : data )
+                        {
+                            patcher.patch( array );
+                        }
+                        return true;
+                    }
+                }
+                finally
+                {
+                    patcher.close();
+                }
+            }
+        }
+        new MatFileWriter().write( file, data, options );
+        return false;
+    }
+
+    /**
+     * @return the names of the uncompressed arrays in the file
+     */
+    public synchronized Set<String> getNames()
+    {
+        return Collections.unmodifiableSet( entries.keySet() );
+    }
+
+    /**
+     * Tells if the data of an array can be written in place: the file
+     * contains an uncompressed array of this name with the same class,
+     * dimensions and complexity.
+     *
+     * @param array - the array
+     * @return <code>true</code> if <code>patch</code> can be used
+     */
+    public synchronized boolean canPatch(MLArray array)
+    {
+        Entry entry = entries.get( array.getName() );
+        if ( entry == null || !(array instanceof MLNumericArray) )
+        {
+            return false;
+        }
+        int elementSize = elementSize( array.getType() );
+        if ( elementSize == 0 )
+        {
+            return false;
+        }
+        if ( entry.flags != ( array.getFlags() & MATRIX_FLAGS_MASK )
+                || !Arrays.equals( entry.dims, array.getDimensions() ) )
+        {
+            return false;
+        }
+        long bytes = (long)array.getSize() * elementSize;
+        if ( entry.realType != dataType( array.getType() ) || entry.realSize != bytes )
+        {
+            return false;
+        }
+        if ( array.isComplex() )
+        {
+            return entry.imaginaryType == entry.realType && entry.imaginarySize == bytes;
+        }
+        return true;
+    }
+
+    /**
+     * Tells if a collection of arrays can be written in place: the arrays
+     * are exactly the arrays of the file and each can be patched.
+     *
+     * @param data - the arrays
+     * @return <code>true</code> if all arrays can be patched
+     */
+    public synchronized boolean canPatch(Collection<MLArray> data)
+    {
+        if ( data.size() != elements || entries.size() != elements )
+        {
+            return false;
+        }
+        Set<String> names = new HashSet<String>();
+        for ( MLArray array : data )
+        {
+            if ( !names.add( array.getName() ) || !canPatch( array ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Overwrites the data of an array in the file.
+     *
+     * @param array - the array
+     * @throws IOException if the array can not be patched, see
+     *             <code>{@link #canPatch(MLArray)}</code>, or writing fails
+     */
+    public synchronized void patch(MLArray array) throws IOException
+    {
+        patch( array, 0, array.getSize() );
+    }
+
+    /**
+     * Overwrites a range of elements of an array in the file. The elements
+     * are indexed in column-major order, element <code>(m,n)</code> of an
+     * array with <code>M</code> rows has the index <code>m+n*M</code>, so a
+     * range can be a set of whole columns. The other elements in the file
+     * keep their values.
+     *
+     * @param array - the array
+     * @param from - index of the first element, inclusive
+     * @param to - index of the last element, exclusive
+     * @throws IOException if the array can not be patched, see
+     *             <code>{@link #canPatch(MLArray)}</code>, or writing fails
+     */
+    public synchronized void patch(MLArray array, int from, int to) throws IOException
+    {
+        if ( !canPatch( array ) )
+        {
+            throw new MatlabIOException("Array " + array.getName() + " can not be patched.");
+        }
+        if ( from < 0 || from > to || to > array.getSize() )
+        {
+            throw new IllegalArgumentException("Range " + from + " to " + to + " is not within the "
+                                               + array.getSize() + " elements of " + array.getName() );
+        }
+        Entry entry = entries.get( array.getName() );
+        MLNumericArray<?> numeric = (MLNumericArray<?>)array;
+        int elementSize = elementSize( array.getType() );
+        long offset = (long)from * elementSize;
+        long size = (long)( to - from ) * elementSize;
+        writeData( range( numeric.getRealByteBuffer(), offset, size ), elementSize,
+                   entry.realPosition + offset, size );
+        if ( array.isComplex() )
+        {
+            writeData( range( numeric.getImaginaryByteBuffer(), offset, size ), elementSize,
+                       entry.imaginaryPosition + offset, size );
+        }
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException
+    {
+        raFile.close();
+    }
+
+    /**
+     * @return the bytes of a range of an array storage
+     */
+    private static ByteBuffer range(ByteBuffer storage, long offset, long size)
+    {
+        ByteBuffer range = storage.duplicate();
+        range.position( (int)offset );
+        range.limit( (int)( offset + size ) );
+        return range.slice();
+    }
+
+    /**
+     * Writes the storage of an array, which is big-endian, in the byte order
+     * of the file.
+     */
+    private void writeData(ByteBuffer storage, int elementSize, long position, long size)
+            throws IOException
+    {
+        ByteBuffer src = storage.duplicate();
+        src.rewind();
+        if ( src.remaining() != size )
+        {
+            throw new MatlabIOException("Array storage has " + src.remaining() + " not " + size + " bytes.");
+        }
+        if ( byteOrder == ByteOrder.LITTLE_ENDIAN && elementSize > 1 )
+        {
+            ByteBuffer swapped = ByteBuffer.allocate( src.remaining() );
+            byte[] element = new byte[elementSize];
+            while ( src.hasRemaining() )
+            {
+                src.get( element );
+                for ( int i = elementSize - 1; i >= 0; i-- )
+                {
+                    swapped.put( element[i] );
+                }
+            }
+            swapped.flip();
+            src = swapped;
+        }
+        while ( src.hasRemaining() )
+        {
+            position += channel.write( src, position );
+        }
+    }
+
+    /**
+     * Reads the header of the file and the headers of the uncompressed
+     * arrays.
+     */
+    private void readIndex() throws IOException
+    {
+        long fileSize = channel.size();
+        ByteBuffer header = readBytes( 0, 128 );
+        byte[] description = new byte[116];
+        header.get( description );
+        if ( !new String( description ).startsWith("MATLAB 5.0 MAT-file") )
+        {
+            throw new MatlabIOException("This is not a valid MATLAB 5.0 MAT-file.");
+        }
+        byteOrder = ( header.get(126) == 'I' && header.get(127) == 'M' )
+                    ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+        long position = 128;
+        while ( position < fileSize )
+        {
+            ByteBuffer tag = readBytes( position, 8 );
+            int type = tag.getInt();
+            int size = tag.getInt();
+            if ( size < 0 || position + 8 + size > fileSize )
+            {
+                throw new MatlabIOException("Element at " + position + " exceeds the file size.");
+            }
+            if ( type == MatDataTypes.miMATRIX )
+            {
+                Entry entry = readEntry( position + 8, size );
+                if ( !entries.containsKey( entry.name ) )
+                {
+                    entries.put( entry.name, entry );
+                }
+            }
+            else if ( type != MatDataTypes.miCOMPRESSED )
+            {
+                throw new MatlabIOException("Incorrect data tag: " + type);
+            }
+            elements++;
+            position += 8 + size;
+        }
+    }
+
+    /**
+     * Reads the header of an uncompressed array.
+     *
+     * @param position - position of the array flags (after the element tag)
+     * @param size - size of the element
+     */
+    private Entry readEntry(long position, int size) throws IOException
+    {
+        int length = Math.min( size, 256 );
+        while ( true )
+        {
+            try
+            {
+                return readEntry( readBytes( position, length ), position, size );
+            }
+            catch ( BufferUnderflowException e )
+            {
+                if ( length == size )
+                {
+                    throw new MatlabIOException("Could not read array header at " + position);
+                }
+                length = (int)Math.min( size, 4L * length );
+            }
+        }
+    }
+
+    private Entry readEntry(ByteBuffer buf, long position, int size) throws IOException
+    {
+        Entry entry = new Entry();
+        //flags
+        SubElement flags = new SubElement( buf, true );
+        entry.flags = buf.getInt( flags.offset ) & MATRIX_FLAGS_MASK;
+        //dimensions
+        SubElement dims = new SubElement( buf, true );
+        entry.dims = new int[dims.size / 4];
+        for ( int i = 0; i < entry.dims.length; i++ )
+        {
+            entry.dims[i] = buf.getInt( dims.offset + 4 * i );
+        }
+        //name
+        SubElement name = new SubElement( buf, true );
+        byte[] nameBytes = new byte[name.size];
+        int i;
+        for ( i = 0; i < name.size && buf.get( name.offset + i ) != 0; i++ )
+        {
+            nameBytes[i] = buf.get( name.offset + i );
+        }
+        entry.name = new String( nameBytes, 0, i );
+
+        switch ( entry.flags & MLArray.mtFLAG_TYPE )
+        {
+            case MLArray.mxDOUBLE_CLASS:
+            case MLArray.mxSINGLE_CLASS:
+            case MLArray.mxINT8_CLASS:
+            case MLArray.mxUINT8_CLASS:
+            case MLArray.mxINT16_CLASS:
+            case MLArray.mxUINT16_CLASS:
+            case MLArray.mxINT32_CLASS:
+            case MLArray.mxUINT32_CLASS:
+            case MLArray.mxINT64_CLASS:
+            case MLArray.mxUINT64_CLASS:
+                break;
+            default:
+                //not numeric, only the name is needed
+                return entry;
+        }
+        //real part, the data itself is not read
+        SubElement real = new SubElement( buf, false );
+        entry.realType = real.type;
+        entry.realSize = real.size;
+        entry.realPosition = position + real.offset;
+        if ( real.end > size )
+        {
+            throw new MatlabIOException("Array " + entry.name + " exceeds its element.");
+        }
+        if ( ( entry.flags & MLArray.mtFLAG_COMPLEX ) != 0 && real.end + 8 <= size )
+        {
+            //imaginary part, after the real data
+            SubElement imaginary = new SubElement( readBytes( position + real.end, 8 ), false );
+            entry.imaginaryType = imaginary.type;
+            entry.imaginarySize = imaginary.size;
+            entry.imaginaryPosition = position + real.end + imaginary.offset;
+            if ( real.end + imaginary.end > size )
+            {
+                throw new MatlabIOException("Array " + entry.name + " exceeds its element.");
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Reads bytes of the file into a heap buffer with the byte order of the
+     * file.
+     */
+    private ByteBuffer readBytes(long position, int length) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while ( buf.hasRemaining() )
+        {
+            if ( channel.read(buf, position + buf.position()) < 0 )
+            {
+                throw new MatlabIOException("Unexpected end of file at " + (position + buf.position()));
+            }
+        }
+        buf.flip();
+        if ( byteOrder != null )
+        {
+            buf.order( byteOrder );
+        }
+        return buf;
+    }
+
+    /**
+     * Gets the data type of the elements of an array class, as written by
+     * <code>MatFileWriter</code> and MATLAB.
+     *
+     * @param type - the array class
+     * @return the data type, <code>miUNKNOWN</code> for non numeric classes
+     */
+    private static int dataType(int type)
+    {
+        switch ( type )
+        {
+            case MLArray.mxDOUBLE_CLASS:
+                return MatDataTypes.miDOUBLE;
+            case MLArray.mxSINGLE_CLASS:
+                return MatDataTypes.miSINGLE;
+            case MLArray.mxINT8_CLASS:
+                return MatDataTypes.miINT8;
+            case MLArray.mxUINT8_CLASS:
+                return MatDataTypes.miUINT8;
+            case MLArray.mxINT16_CLASS:
+                return MatDataTypes.miINT16;
+            case MLArray.mxUINT16_CLASS:
+                return MatDataTypes.miUINT16;
+            case MLArray.mxINT32_CLASS:
+                return MatDataTypes.miINT32;
+            case MLArray.mxUINT32_CLASS:
+                return MatDataTypes.miUINT32;
+            case MLArray.mxINT64_CLASS:
+                return MatDataTypes.miINT64;
+            case MLArray.mxUINT64_CLASS:
+                return MatDataTypes.miUINT64;
+            default:
+                return MatDataTypes.miUNKNOWN;
+        }
+    }
+
+    /**
+     * @param type - the array class
+     * @return the number of bytes of an element, 0 for non numeric classes
+     */
+    private static int elementSize(int type)
+    {
+        switch ( dataType( type ) )
+        {
+            case MatDataTypes.miDOUBLE:
+            case MatDataTypes.miINT64:
+            case MatDataTypes.miUINT64:
+                return 8;
+            case MatDataTypes.miSINGLE:
+            case MatDataTypes.miINT32:
+            case MatDataTypes.miUINT32:
+                return 4;
+            case MatDataTypes.miINT16:
+            case MatDataTypes.miUINT16:
+                return 2;
+            case MatDataTypes.miINT8:
+            case MatDataTypes.miUINT8:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Tag and data offset of a sub-element of an array, in the normal or in
+     * the small data element format.
+     */
+    private static class SubElement
+    {
+        private final int type;
+        private final int size;
+        /** offset of the data in the buffer */
+        private final int offset;
+        /** offset of the next sub-element in the buffer */
+        private final long end;
+
+        /**
+         * Reads the tag of a sub-element.
+         *
+         * @param buf - buffer positioned at the tag
+         * @param withData - <code>true</code> if the data must be in the
+         *            buffer, the buffer is then moved to the next
+         *            sub-element; <code>false</code> to only read the tag
+         */
+        private SubElement(ByteBuffer buf, boolean withData)
+        {
+            int tmp = buf.getInt();
+            long dataSize;
+            if ( tmp >> 16 == 0 )
+            {
+                type = tmp;
+                size = buf.getInt();
+                dataSize = ( size + 7L ) & ~7L;
+            }
+            else
+            {
+                //small data element format
+                size = tmp >> 16;
+                type = tmp & 0xffff;
+                dataSize = 4;
+            }
+            offset = buf.position();
+            end = (long)offset + dataSize;
+            if ( withData )
+            {
+                if ( size < 0 || dataSize > buf.remaining() )
+                {
+                    throw new BufferUnderflowException();
+                }
+                buf.position( (int)end );
+            }
+        }
+    }
+
+    /**
+     * Header of an uncompressed array in the file.
+     */
+    private static class Entry
+    {
+        private String name;
+        private int flags;
+        private int[] dims;
+        private int realType = MatDataTypes.miUNKNOWN;
+        private long realSize = -1;
+        private long realPosition;
+        private int imaginaryType = MatDataTypes.miUNKNOWN;
+        private long imaginarySize = -1;
+        private long imaginaryPosition;
+    }
+}
@@ -11,6 +11,7 @@ import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
@@ -19,9 +20,19 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.zip.InflaterInputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import com.jmatio.common.MatDataTypes;
 import com.jmatio.types.ByteStorageSupport;
@@ -59,6 +70,19 @@ import com.jmatio.types.MLUInt8;
  * Map content = mfr.getContent();
  * </pre></code>
  * 
+ * Files with many arrays of which only a few are needed can be read lazily:
+ * <pre><code>
+ * //read only the names and positions of the arrays
+ * MatFileReader mfr = new MatFileReader();
+ * mfr.readIndex( new File("mat_file.mat") );
+ * 
+ * //the array is read from the file when it is requested
+ * MLArray mlArrayRetrived = mfr.getMLArray( "my_array" );
+ * </pre></code>
+ * 
+ * Compressed arrays can be inflated in parallel, see
+ * <code>{@link #setExecutor(Executor)}</code>.
+ * 
  * @see com.jmatio.io.MatFileFilter
  * @author Wojciech Gradkowski (<a href="mailto:wgradkowski@gmail.com">wgradkowski@gmail.com</a>)
  */
@@ -71,6 +95,11 @@ public class MatFileReader
     public static final int MEMORY_MAPPED_FILE = 1;
     public static final int DIRECT_BYTE_BUFFER = 2;
     public static final int HEAP_BYTE_BUFFER   = 4;
+    /**
+     * Memory mapped file that is used as storage of the uncompressed double
+     * arrays, see <code>{@link #read(File, MatFileFilter, int)}</code>
+     */
+    public static final int MEMORY_MAPPED_ARRAYS = 8;
     
     /**
      * MAT-file header
@@ -88,6 +117,40 @@ public class MatFileReader
      * Array name filter
      */
     private MatFileFilter filter;
+    /**
+     * Memory mapped file whose data is used as array storage, <code>null</code>
+     * unless reading with <code>MEMORY_MAPPED_ARRAYS</code>
+     */
+    private ByteBuffer mappedArraysBuffer;
+    /**
+     * Inflated element that is read, its data is used as storage of the
+     * double arrays, see <code>readData</code>
+     */
+    private ByteBuffer inflatedBuffer;
+    /**
+     * Inflater used for all compressed elements of a file, <code>null</code>
+     * when not reading
+     */
+    private Inflater inflater;
+    /**
+     * Input buffer of the inflater, for compressed data that is not on the
+     * heap (memory mapped or direct buffers)
+     */
+    private byte[] inflaterInput;
+    /**
+     * Executor that inflates the compressed top level elements,
+     * <code>null</code> to inflate them one after the other
+     */
+    private Executor executor;
+    /**
+     * Positions of the arrays in the file read with <code>readIndex</code>
+     */
+    private Map<String, IndexEntry> index;
+    /**
+     * File read with <code>readIndex</code>, <code>null</code> if the file
+     * has been read completely
+     */
+    private File indexedFile;
     /**
      * Creates instance of <code>MatFileReader</code> and reads MAT-file 
      * from location given as <code>fileName</code>.
@@ -158,6 +221,7 @@ public class MatFileReader
     {
         filter  = new MatFileFilter();
         data    = new LinkedHashMap<String, MLArray>();
+        index   = new LinkedHashMap<String, IndexEntry>();
     }
     
     /**
@@ -209,6 +273,15 @@ public class MatFileReader
      * <li><code>{@link #HEAP_BYTE_BUFFER}</code> - a uses
      * <code>{@link ByteBuffer#allocate(int)}</code> method to read in the
      * file contents</li>
+     * <li><code>{@link #MEMORY_MAPPED_ARRAYS}</code> - a memory mapped file
+     * that is not released. Uncompressed double arrays are not copied, their
+     * storage is a part of the mapped file. Only the parts that are accessed
+     * are read from disk. An array is copied to the heap when it is changed.
+     * Other arrays are read as with <code>MEMORY_MAPPED_FILE</code>. Zero-copy
+     * access needs the byte order of the file to be big-endian, as written by
+     * <code>MatFileWriter</code>, otherwise the arrays are copied. The mapping
+     * is released by the garbage collector when the arrays are no longer
+     * used; until then the file can not be deleted on some systems.</li>
      * </ul>
      * <i>Note: memory mapped file will try to invoke a nasty code to relase
      * it's resources</i>
@@ -225,16 +298,17 @@ public class MatFileReader
      *             if error occurs during file processing
      */
     private static final int DIRECT_BUFFER_LIMIT = 1 << 25;
+    /** size of the input blocks passed to the inflater */
+    private static final int INFLATE_BUFFER_SIZE = 1 << 17;
     public synchronized Map<String, MLArray> read(File file, MatFileFilter filter,
             int policy) throws IOException
     {
         this.filter = filter;
         
         //clear the results
-        for ( String key : data.keySet() )
-        {
-            data.remove(key);
-        }
+        data.clear();
+        index.clear();
+        indexedFile = null;
         
         FileChannel roChannel = null;
         RandomAccessFile raFile = null;
@@ -252,7 +326,7 @@ public class MatFileReader
             switch ( policy )
             {
                 case DIRECT_BYTE_BUFFER:
-                    buf = ByteBuffer.allocateDirect( (int)roChannel.size() );
+                    buf = CodecPool.acquireDirectBuffer( (int)roChannel.size() );
                     roChannel.read(buf, 0);
                     buf.rewind();
                     break;
@@ -270,13 +344,15 @@ public class MatFileReader
                     // raFile.readFully(buf.array()); // ends up in outOfMemory
                     int numberOfBlocks = filesize / DIRECT_BUFFER_LIMIT + ((filesize % DIRECT_BUFFER_LIMIT) > 0 ? 1 : 0);
                     if (numberOfBlocks > 1) {
-                        ByteBuffer tempByteBuffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_LIMIT);
+                        ByteBuffer tempByteBuffer = CodecPool.acquireDirectBuffer(DIRECT_BUFFER_LIMIT);
                         for (int block=0; block<numberOfBlocks; block++) {
                             tempByteBuffer.clear();
-                            roChannel.read(tempByteBuffer, block*DIRECT_BUFFER_LIMIT);
+                            tempByteBuffer.limit(DIRECT_BUFFER_LIMIT);
+                            roChannel.read(tempByteBuffer, (long)block*DIRECT_BUFFER_LIMIT);
                             tempByteBuffer.flip();
                             buf.put(tempByteBuffer);
                         }
+                        CodecPool.release(tempByteBuffer);
                         tempByteBuffer = null;
                     } else
                     roChannel.read(buf, 0);
@@ -287,18 +363,34 @@ public class MatFileReader
                     buf = roChannel.map(FileChannel.MapMode.READ_ONLY, 0, (int)roChannel.size());        
                     bufferWeakRef = new WeakReference<MappedByteBuffer>((MappedByteBuffer)buf);            
                     break;
+                case MEMORY_MAPPED_ARRAYS:
+                    //the mapping stays alive as long as the arrays use it
+                    buf = roChannel.map(FileChannel.MapMode.READ_ONLY, 0, (int)roChannel.size());
+                    mappedArraysBuffer = buf;
+                    break;
                 default:
                     throw new IllegalArgumentException("Unknown file allocation policy");
             }
             //read in file header
             readHeader(buf);
             
+            if ( executor != null )
+            {
+                readDataInParallel( buf );
+            }
             while ( buf.remaining() > 0 )
             {
                 readData( buf );
             }
             
-            return getContent();
+            Map<String, MLArray> content = getContent();
+            if ( policy == DIRECT_BYTE_BUFFER )
+            {
+                //the arrays are copied out of the file buffer, it can be reused;
+                //after an error it is left to the garbage collector
+                CodecPool.release( buf );
+            }
+            return content;
         }
         catch ( IOException e )
         {
@@ -306,6 +398,8 @@ public class MatFileReader
         }
         finally
         {
+            mappedArraysBuffer = null;
+            releaseInflater();
             if ( roChannel != null )
             {
                 roChannel.close();
@@ -387,6 +481,358 @@ public class MatFileReader
     
     
     
+    /**
+     * Reads the index of a MAT-file without reading the arrays.
+     * <p>
+     * This method calls <code>readIndex(file, new MatFileFilter())</code>.
+     * 
+     * @param file
+     *            a valid MAT-file file to be read
+     * @return the names of the arrays in the file
+     * @throws IOException
+     *             if error occurs during file processing
+     */
+    public synchronized Set<String> readIndex(File file) throws IOException
+    {
+        return readIndex(file, new MatFileFilter());
+    }
+    /**
+     * Reads the index of a MAT-file without reading the arrays.
+     * <p>
+     * Only the tags of the top level elements and the headers of the arrays
+     * are read, to find the name, position and size of each array. For
+     * compressed elements only the first bytes are inflated, as far as
+     * needed to read the array name. An array is read from the file the
+     * first time it is requested with <code>{@link #getMLArray(String)}</code>.
+     * <code>{@link #getContent()}</code> reads all arrays that have not been
+     * read yet.
+     * <p>
+     * The file is not kept open between the calls, it must not be changed
+     * until all needed arrays have been read.
+     * 
+     * @param file
+     *            a valid MAT-file file to be read
+     * @param filter
+     *            the array filter, arrays that do not match are not indexed
+     * @return the names of the arrays in the index
+     * @throws IOException
+     *             if error occurs during file processing
+     */
+    public synchronized Set<String> readIndex(File file, MatFileFilter filter) throws IOException
+    {
+        this.filter = filter;
+        
+        //clear the results
+        data.clear();
+        index.clear();
+        indexedFile = null;
+        
+        RandomAccessFile raFile = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raFile.getChannel();
+            long fileSize = channel.size();
+            
+            //read in file header
+            readHeader( readBytes(channel, 0, 128) );
+            
+            long position = 128;
+            while ( position < fileSize )
+            {
+                ByteBuffer tagBuffer = readBytes(channel, position, 8);
+                int type = tagBuffer.getInt();
+                int size = tagBuffer.getInt();
+                if ( position + 8 + size > fileSize )
+                {
+                    throw new MatlabIOException("Element at " + position + " exceeds the file size.");
+                }
+                String[] names;
+                switch ( type )
+                {
+                    case MatDataTypes.miCOMPRESSED:
+                        names = readCompressedArrayName(channel, position + 8, size);
+                        break;
+                    case MatDataTypes.miMATRIX:
+                        names = readArrayName(channel, position + 8, size);
+                        break;
+                    default:
+                        throw new MatlabIOException("Incorrect data tag: " + type);
+                }
+                if ( filter.matches(names[0]) && !index.containsKey(names[1]) )
+                {
+                    index.put( names[1], new IndexEntry(position, size, type == MatDataTypes.miCOMPRESSED) );
+                }
+                position += 8 + size;
+            }
+        }
+        finally
+        {
+            raFile.close();
+            releaseInflater();
+        }
+        indexedFile = file;
+        
+        return Collections.unmodifiableSet( index.keySet() );
+    }
+    
+    /**
+     * Reads a top level element of the file read with <code>readIndex</code>
+     * into the data map.
+     * 
+     * @param entry the position of the element
+     * @throws IOException if reading fails
+     */
+    private void readIndexedElement(IndexEntry entry) throws IOException
+    {
+        RandomAccessFile raFile = new RandomAccessFile(indexedFile, "r");
+        try
+        {
+            readData( readBytes(raFile.getChannel(), entry.offset, 8 + entry.size) );
+        }
+        finally
+        {
+            raFile.close();
+        }
+    }
+    
+    /**
+     * Reads the arrays of the file read with <code>readIndex</code> that have
+     * not been read yet, keeping the order of the file.
+     * 
+     * @throws IOException if reading fails
+     */
+    private void readAllIndexedElements() throws IOException
+    {
+        if ( indexedFile == null || data.size() == index.size() )
+        {
+            return;
+        }
+        if ( executor != null )
+        {
+            readIndexedElementsInParallel();
+        }
+        for ( Map.Entry<String, IndexEntry> entry : index.entrySet() )
+        {
+            if ( !data.containsKey( entry.getKey() ) )
+            {
+                readIndexedElement( entry.getValue() );
+            }
+        }
+        Map<String, MLArray> ordered = new LinkedHashMap<String, MLArray>();
+        for ( String name : index.keySet() )
+        {
+            ordered.put( name, data.get(name) );
+        }
+        data.clear();
+        data.putAll( ordered );
+    }
+    
+    /**
+     * Reads the compressed arrays of the file read with <code>readIndex</code>
+     * that have not been read yet, the elements are inflated by the executor.
+     * 
+     * @throws IOException if reading fails
+     */
+    private void readIndexedElementsInParallel() throws IOException
+    {
+        Map<String, Future<ByteBuffer>> inflated = new LinkedHashMap<String, Future<ByteBuffer>>();
+        RandomAccessFile raFile = new RandomAccessFile(indexedFile, "r");
+        try
+        {
+            FileChannel channel = raFile.getChannel();
+            for ( Map.Entry<String, IndexEntry> entry : index.entrySet() )
+            {
+                IndexEntry element = entry.getValue();
+                if ( element.compressed && !data.containsKey( entry.getKey() ) )
+                {
+                    inflated.put( entry.getKey(),
+                            inflateLater( readBytes(channel, element.offset + 8, element.size) ) );
+                }
+            }
+            for ( Future<ByteBuffer> task : inflated.values() )
+            {
+                readInflated( getInflated(task) );
+            }
+        }
+        finally
+        {
+            raFile.close();
+            for ( Future<ByteBuffer> task : inflated.values() )
+            {
+                task.cancel( false );
+            }
+        }
+    }
+    
+    /**
+     * Reads bytes of a file into a heap buffer with the byte order of the file.
+     * 
+     * @param channel the file
+     * @param position position of the first byte
+     * @param length number of bytes
+     * @return the buffer, ready to be read
+     * @throws IOException if the file ends before
+     */
+    private ByteBuffer readBytes(FileChannel channel, long position, int length) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while ( buf.hasRemaining() )
+        {
+            if ( channel.read(buf, position + buf.position()) < 0 )
+            {
+                throw new MatlabIOException("Unexpected end of file at " + (position + buf.position()));
+            }
+        }
+        buf.flip();
+        if ( byteOrder != null )
+        {
+            buf.order( byteOrder );
+        }
+        return buf;
+    }
+    
+    /**
+     * Reads the name of an uncompressed array from its header.
+     * 
+     * @param channel the file
+     * @param position position of the array header (after the element tag)
+     * @param size size of the element
+     * @return the name used by the filter and the name used in the data map
+     * @throws IOException if reading fails
+     */
+    private String[] readArrayName(FileChannel channel, long position, int size) throws IOException
+    {
+        int length = Math.min(size, 256);
+        while ( true )
+        {
+            try
+            {
+                return readArrayName( readBytes(channel, position, length) );
+            }
+            catch ( BufferUnderflowException e )
+            {
+                if ( length == size )
+                {
+                    throw new MatlabIOException("Could not read array name at " + position);
+                }
+                length = (int)Math.min(size, 4L * length);
+            }
+        }
+    }
+    
+    /**
+     * Reads the name of a compressed array, inflating only as many bytes
+     * as needed for the array header.
+     * 
+     * @param channel the file
+     * @param position position of the compressed data (after the element tag)
+     * @param size size of the compressed data
+     * @return the name used by the filter and the name used in the data map
+     * @throws IOException if reading fails
+     */
+    private String[] readCompressedArrayName(FileChannel channel, long position, int size) throws IOException
+    {
+        Inflater inflater = getInflater();
+        try
+        {
+            byte[] input = new byte[Math.min(size, 512)];
+            byte[] output = new byte[256];
+            int inflated = 0;
+            long read = 0;
+            while ( true )
+            {
+                //inflate up to the size of the output buffer
+                while ( inflated < output.length && !inflater.finished() )
+                {
+                    if ( inflater.needsInput() )
+                    {
+                        if ( read == size )
+                        {
+                            break;
+                        }
+                        int length = (int)Math.min(input.length, size - read);
+                        ByteBuffer chunk = readBytes(channel, position + read, length);
+                        chunk.get(input, 0, length);
+                        read += length;
+                        inflater.setInput(input, 0, length);
+                    }
+                    inflated += inflater.inflate(output, inflated, output.length - inflated);
+                }
+                try
+                {
+                    ByteBuffer buf = ByteBuffer.wrap(output, 0, inflated);
+                    buf.order( byteOrder );
+                    //skip the miMATRIX tag
+                    buf.position( 8 );
+                    return readArrayName( buf );
+                }
+                catch ( BufferUnderflowException e )
+                {
+                    if ( inflated < output.length )
+                    {
+                        throw new MatlabIOException("Could not read array name at " + position);
+                    }
+                    output = Arrays.copyOf(output, output.length * 4);
+                }
+            }
+        }
+        catch ( DataFormatException e )
+        {
+            throw new MatlabIOException("Could not decompress data: " + e );
+        }
+        finally
+        {
+            inflater.reset();
+        }
+    }
+    
+    /**
+     * Reads the name of an array from the array header, see
+     * <code>readMatrix</code>.
+     * 
+     * @param buf buffer positioned at the array flags
+     * @return the name used by the filter and the name used in the data map
+     * @throws IOException if reading fails
+     */
+    private String[] readArrayName(ByteBuffer buf) throws IOException
+    {
+        int[] flags = readFlags(buf);
+        int[] dims = readDimension(buf);
+        String name = readName(buf);
+        int type = ( flags.length != 0 ) ? flags[0] & 0xff : 0;
+        if ( type == MLArray.mxOPAQUE_CLASS )
+        {
+            //java objects store their name in dims, see readMatrix
+            byte[] nn = new byte[dims.length];
+            for ( int i = 0; i < dims.length; i++ )
+            {
+                nn[i] = (byte)dims[i];
+            }
+            return new String[] { name, new String(nn) };
+        }
+        return new String[] { name, name };
+    }
+    
+    /**
+     * Sets the executor that inflates the compressed top level elements of a
+     * file. The elements are indexed first, all compressed elements are
+     * inflated as tasks of the executor, and the arrays are read from the
+     * inflated data in the order of the file, so the result is the same as
+     * without executor. This is used by <code>read</code> and by
+     * <code>getContent</code> after <code>readIndex</code>.
+     * <p>
+     * All inflated elements may be held in memory at the same time, also the
+     * ones that do not match the filter.
+     * 
+     * @param executor
+     *            the executor, <code>null</code> (the default) to inflate the
+     *            elements one after the other in the calling thread
+     */
+    public synchronized void setExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+    
     /**
      * Gets MAT-file header
      * 
@@ -405,30 +851,65 @@ public class MatFileReader
      */
     public ArrayList<MLArray> getData()
     {
-        return new ArrayList<MLArray>( data.values() );
+        return new ArrayList<MLArray>( getContent().values() );
     }
     /**
      * Returns the value to which the red file maps the specified array name.
      * 
      * Returns <code>null</code> if the file contains no content for this name.
+     * <p>
+     * If the file has been read with <code>readIndex</code> the array is read
+     * from the file the first time it is requested.
      * 
      * @param - array name
      * @return - the <code>MLArray</code> to which this file maps the specified name, 
      *           or null if the file contains no content for this name.
+     * @throws IllegalStateException if the indexed array can not be read
      */
-    public MLArray getMLArray( String name )
+    public synchronized MLArray getMLArray( String name )
     {
+        if ( indexedFile != null && !data.containsKey(name) && index.containsKey(name) )
+        {
+            try
+            {
+                readIndexedElement( index.get(name) );
+            }
+            catch ( IOException e )
+            {
+                throw new IllegalStateException("Could not read array " + name + ": " + e.getMessage(), e);
+            }
+            finally
+            {
+                releaseInflater();
+            }
+        }
         return data.get( name );
     }
     /**
      * Returns a map of <code>MLArray</code> objects that were inside MAT-file.
      * 
      * MLArrays are mapped with MLArrays' names
+     * <p>
+     * If the file has been read with <code>readIndex</code> all arrays that
+     * have not been requested yet are read from the file.
      *  
      * @return - a <code>Map</code> of MLArrays mapped with their names.
+     * @throws IllegalStateException if an indexed array can not be read
      */
-    public Map<String, MLArray> getContent()
+    public synchronized Map<String, MLArray> getContent()
     {
+        try
+        {
+            readAllIndexedElements();
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException("Could not read arrays: " + e.getMessage(), e);
+        }
+        finally
+        {
+            releaseInflater();
+        }
         return data;
     }
     
@@ -438,7 +919,10 @@ public class MatFileReader
      * <code>miCOMPRESSED</code> data or <code>miMATRIX</code> data.
      * 
      * Compressed data are inflated and the product is recursively passed back
-     * to this same method.
+     * to this same method. The size of the inflated element is read from its
+     * tag, the element is inflated into a buffer of exactly that size. Double
+     * arrays use the inflated data as storage, see
+     * <code>readSharedDouble</code>, so the data is held only once.
      * 
      * Modifies <code>buf</code> position.
      * 
@@ -459,53 +943,12 @@ public class MatFileReader
                 {
                     throw new MatlabIOException("Compressed buffer length miscalculated!");
                 }
-                //instead of standard Inlater class instance I use an inflater input
-                //stream... gives a great boost to the performance
-                InflaterInputStream iis = new InflaterInputStream(new ByteBufferInputStream(buf, numOfBytes));
-                
-                //process data decompression
-                byte[] result = new byte[1024];
-                
-                HeapBufferDataOutputStream dos = new HeapBufferDataOutputStream();
-                int i;
-                try
-                {
-                    do
-                    {
-                        i = iis.read(result, 0, result.length);
-                        int len = Math.max(0, i);
-                        dos.write(result, 0, len);
-                    }
-                    while ( i > 0 );
-                }
-                catch ( IOException e )
-                {
-                    throw new MatlabIOException("Could not decompress data: " + e );
-                }
-                finally
-                {
-                    iis.close();
-                    dos.flush();
-                }
-                //create a ByteBuffer from the deflated data
-                ByteBuffer out = dos.getByteBuffer();
+                ByteBuffer input = buf.slice();
+                input.limit( numOfBytes );
+                buf.position( buf.position() + numOfBytes );
                 
-                //with proper byte ordering
-                out.order( byteOrder );
-                
-                try
-                {
-                    readData( out );
-                    
-                }
-                catch ( IOException e )
-                {
-                    throw e;
-                }
-                finally
-                {
-                    dos.close();
-                }
+                readInflated( inflateElement(input, byteOrder, getInflater(),
+                        input.hasArray() ? null : getInflaterInput()) );
                 break;
             case MatDataTypes.miMATRIX:
                 
@@ -538,6 +981,362 @@ public class MatFileReader
                     
         }
     }
+    /**
+     * Inflates a compressed element. The tag of the inflated
+     * <code>miMATRIX</code> element is inflated first, the rest of the
+     * element is inflated directly into a buffer of the size given in the tag.
+     * <p>
+     * This method does not use the state of the reader, it is called by the
+     * tasks of the executor too.
+     * 
+     * @param input the compressed data
+     * @param byteOrder byte order of the file
+     * @param inflater the inflater, it is reset when done
+     * @param inputBuffer input buffer of the inflater, may be
+     *            <code>null</code> if <code>input</code> is a heap buffer
+     * @return the inflated element with the byte order of the file
+     * @throws IOException if the data can not be inflated
+     */
+    private static ByteBuffer inflateElement(ByteBuffer input, ByteOrder byteOrder, Inflater inflater,
+            byte[] inputBuffer) throws IOException
+    {
+        try
+        {
+            byte[] tag = new byte[8];
+            inflate( inflater, input, inputBuffer, tag, 0, tag.length );
+            ByteBuffer tagBuffer = ByteBuffer.wrap(tag);
+            tagBuffer.order( byteOrder );
+            int type = tagBuffer.getInt();
+            int size = tagBuffer.getInt();
+            if ( type != MatDataTypes.miMATRIX )
+            {
+                throw new MatlabIOException("Incorrect data tag: " + type);
+            }
+            if ( size < 0 || size > Integer.MAX_VALUE - tag.length )
+            {
+                throw new MatlabIOException("Incorrect size of compressed matrix: " + size);
+            }
+            byte[] element = new byte[tag.length + size];
+            System.arraycopy(tag, 0, element, 0, tag.length);
+            inflate( inflater, input, inputBuffer, element, tag.length, size );
+            
+            ByteBuffer out = ByteBuffer.wrap(element);
+            out.order( byteOrder );
+            return out;
+        }
+        catch ( DataFormatException e )
+        {
+            throw new MatlabIOException("Could not decompress data: " + e );
+        }
+        finally
+        {
+            inflater.reset();
+        }
+    }
+    
+    /**
+     * Inflates exactly <code>length</code> bytes. Heap buffers are passed to
+     * the inflater without copying, other buffers are copied in blocks of the
+     * size of <code>inputBuffer</code>.
+     * 
+     * @param inflater the inflater
+     * @param input the compressed data, its position is moved past the data
+     *            passed to the inflater
+     * @param inputBuffer input buffer of the inflater
+     * @param output the output array
+     * @param offset offset of the first inflated byte in <code>output</code>
+     * @param length number of bytes to inflate
+     * @throws IOException if the compressed data ends too early
+     * @throws DataFormatException if the compressed data is not valid
+     */
+    private static void inflate(Inflater inflater, ByteBuffer input, byte[] inputBuffer,
+            byte[] output, int offset, int length)
+            throws IOException, DataFormatException
+    {
+        int end = offset + length;
+        while ( offset < end )
+        {
+            if ( inflater.needsInput() )
+            {
+                if ( !input.hasRemaining() )
+                {
+                    throw new MatlabIOException("Compressed data ended " + (end - offset) + " bytes too early");
+                }
+                if ( input.hasArray() )
+                {
+                    inflater.setInput(input.array(), input.arrayOffset() + input.position(), input.remaining());
+                    input.position( input.limit() );
+                }
+                else
+                {
+                    int len = Math.min(inputBuffer.length, input.remaining());
+                    input.get(inputBuffer, 0, len);
+                    inflater.setInput(inputBuffer, 0, len);
+                }
+            }
+            int inflated = inflater.inflate(output, offset, end - offset);
+            if ( inflated == 0 && (inflater.finished() || inflater.needsDictionary()) )
+            {
+                throw new MatlabIOException("Compressed data ended " + (end - offset) + " bytes too early");
+            }
+            offset += inflated;
+        }
+    }
+    
+    /**
+     * Returns the inflater of this reader, it is taken from the
+     * <code>{@link CodecPool}</code> on first use.
+     * 
+     * @return the inflater, ready for new data
+     */
+    private Inflater getInflater()
+    {
+        if ( inflater == null )
+        {
+            inflater = CodecPool.acquireInflater();
+        }
+        return inflater;
+    }
+    
+    /**
+     * Returns the input buffer of the inflater, it is taken from the
+     * <code>{@link CodecPool}</code> on first use.
+     * 
+     * @return the input buffer
+     */
+    private byte[] getInflaterInput()
+    {
+        if ( inflaterInput == null )
+        {
+            inflaterInput = CodecPool.acquireBytes( INFLATE_BUFFER_SIZE );
+        }
+        return inflaterInput;
+    }
+    
+    /**
+     * Reads the array of an inflated element into the data map. The double
+     * arrays of the element use the inflated data as storage.
+     * 
+     * @param out the inflated element
+     * @throws IOException if the element can not be read
+     */
+    private void readInflated(ByteBuffer out) throws IOException
+    {
+        ByteBuffer outer = inflatedBuffer;
+        inflatedBuffer = out;
+        try
+        {
+            readData( out );
+        }
+        finally
+        {
+            inflatedBuffer = outer;
+        }
+    }
+    
+    /**
+     * Reads all top level elements of the buffer, the compressed elements are
+     * inflated by the executor. First the element tags are read and the
+     * inflating tasks are started, then the elements are read in the order of
+     * the buffer.
+     * <p>
+     * Modifies <code>buf</code> position to the end of the buffer.
+     * 
+     * @param buf buffer positioned at the first element
+     * @throws IOException if an element can not be read
+     */
+    private void readDataInParallel(ByteBuffer buf) throws IOException
+    {
+        List<Integer> positions = new ArrayList<Integer>();
+        List<Future<ByteBuffer>> inflated = new ArrayList<Future<ByteBuffer>>();
+        AtomicBoolean abandoned = new AtomicBoolean();
+        int position = buf.position();
+        while ( position < buf.limit() )
+        {
+            int type = buf.getInt(position);
+            int size = buf.getInt(position + 4);
+            if ( size < 0 || size > buf.limit() - position - 8 )
+            {
+                throw new MatlabIOException("Element at " + position + " exceeds the file size.");
+            }
+            Future<ByteBuffer> task = null;
+            if ( type == MatDataTypes.miCOMPRESSED )
+            {
+                ByteBuffer input = buf.duplicate();
+                input.limit( position + 8 + size );
+                input.position( position + 8 );
+                task = inflateLater( input.slice(), abandoned );
+            }
+            positions.add( position );
+            inflated.add( task );
+            position += 8 + size;
+        }
+        
+        try
+        {
+            for ( int i = 0; i < positions.size(); i++ )
+            {
+                buf.position( positions.get(i) );
+                if ( inflated.get(i) == null )
+                {
+                    readData( buf );
+                }
+                else
+                {
+                    readInflated( getInflated( inflated.get(i) ) );
+                    inflated.set( i, null );
+                }
+            }
+            buf.position( position );
+        }
+        finally
+        {
+            //after an error the remaining tasks are not needed, but they read
+            //from buf, which the caller may unmap: the tasks that have not
+            //started return at once and the running ones are waited for
+            abandoned.set( true );
+            for ( Future<ByteBuffer> task : inflated )
+            {
+                if ( task != null )
+                {
+                    awaitQuietly( task );
+                }
+            }
+        }
+    }
+    
+    /**
+     * Waits until a task is done, whatever its result.
+     * 
+     * @param task the task
+     */
+    private static void awaitQuietly(Future<ByteBuffer> task)
+    {
+        boolean interrupted = false;
+        while ( true )
+        {
+            try
+            {
+                task.get();
+                break;
+            }
+            catch ( InterruptedException e )
+            {
+                interrupted = true;
+            }
+            catch ( ExecutionException e )
+            {
+                break;
+            }
+        }
+        if ( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Starts inflating a compressed element with the executor.
+     * 
+     * @param input the compressed data, not used by other threads
+     * @return the inflated element
+     */
+    private Future<ByteBuffer> inflateLater(ByteBuffer input)
+    {
+        return inflateLater( input, null );
+    }
+    
+    /**
+     * Starts inflating a compressed element with the executor.
+     * 
+     * @param input the compressed data, not used by other threads
+     * @param abandoned if set when the task starts, it returns
+     *            <code>null</code> without reading the input; may be
+     *            <code>null</code>
+     * @return the inflated element
+     */
+    private Future<ByteBuffer> inflateLater(final ByteBuffer input, final AtomicBoolean abandoned)
+    {
+        final ByteOrder order = byteOrder;
+        FutureTask<ByteBuffer> task = new FutureTask<ByteBuffer>( new Callable<ByteBuffer>()
+        {
+            public ByteBuffer call() throws IOException
+            {
+                if ( abandoned != null && abandoned.get() )
+                {
+                    return null;
+                }
+                Inflater taskInflater = CodecPool.acquireInflater();
+                byte[] taskInput = input.hasArray() ? null : CodecPool.acquireBytes( INFLATE_BUFFER_SIZE );
+                try
+                {
+                    return inflateElement(input, order, taskInflater, taskInput);
+                }
+                finally
+                {
+                    CodecPool.release( taskInflater );
+                    if ( taskInput != null )
+                    {
+                        CodecPool.release( taskInput );
+                    }
+                }
+            }
+        } );
+        executor.execute( task );
+        return task;
+    }
+    
+    /**
+     * Waits for an inflating task.
+     * 
+     * @param task the task
+     * @return the inflated element
+     * @throws IOException if the element could not be inflated
+     */
+    private static ByteBuffer getInflated(Future<ByteBuffer> task) throws IOException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new MatlabIOException("Interrupted while inflating data");
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException )
+            {
+                throw (IOException) cause;
+            }
+            if ( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Could not inflate data: " + cause, cause);
+        }
+    }
+    
+    /**
+     * Gives the inflater and its input buffer back to the
+     * <code>{@link CodecPool}</code>, called when a read method returns.
+     */
+    private void releaseInflater()
+    {
+        if ( inflater != null )
+        {
+            CodecPool.release( inflater );
+            inflater = null;
+        }
+        if ( inflaterInput != null )
+        {
+            CodecPool.release( inflaterInput );
+            inflaterInput = null;
+        }
+    }
+    
     /**
      * Reads miMATRIX from from input stream.
      * 
@@ -647,6 +1446,14 @@ public class MatFileReader
                 mlArray = cell;
                 break;
             case MLArray.mxDOUBLE_CLASS:
+                if ( buf == mappedArraysBuffer || buf == inflatedBuffer )
+                {
+                    mlArray = readSharedDouble(buf, name, dims, type, attributes);
+                    if ( mlArray != null )
+                    {
+                        break;
+                    }
+                }
                 mlArray = new MLDouble(name, dims, type, attributes);
                 //read real
                 tag = new ISMatTag(buf);
@@ -788,40 +1595,30 @@ public class MatFileReader
                 mlArray = mlchar;
                 break;
             case MLArray.mxSPARSE_CLASS:
-                MLSparse sparse = new MLSparse(name, dims, attributes, nzmax);
                 //read ir (row indices)
                 tag = new ISMatTag(buf);
                 int[] ir = tag.readToIntArray();
                 //read jc (column count)
                 tag = new ISMatTag(buf);
                 int[] jc = tag.readToIntArray();
-                
                 //read pr (real part)
                 tag = new ISMatTag(buf);
-                double[] ad1 = tag.readToDoubleArray();
-                int count = 0;
-                for (int column = 0; column < sparse.getN(); column++) {
-                    while(count < jc[column+1]) {
-                        sparse.setReal(ad1[count], ir[count], column);
-                        count++;
-                    }
-                }
-                
+                double[] pr = tag.readToDoubleArray();
                 //read pi (imaginary part)
-                if ( sparse.isComplex() )
+                double[] pi = null;
+                if ( (attributes & MLArray.mtFLAG_COMPLEX) != 0 )
                 {
                     tag = new ISMatTag(buf);
-                    double[] ad2 = tag.readToDoubleArray();
-                    
-                    count = 0;
-                    for (int column = 0; column < sparse.getN(); column++) {
-                        while(count < jc[column+1]) {
-                            sparse.setImaginary(ad2[count], ir[count], column);
-                            count++;
-                        }
-                    }
+                    pi = tag.readToDoubleArray();
+                }
+                try
+                {
+                    mlArray = new MLSparse(name, dims, attributes, nzmax, ir, jc, pr, pi);
+                }
+                catch ( IllegalArgumentException e )
+                {
+                    throw new MatlabIOException("Incorrect sparse array " + name + ": " + e.getMessage());
                 }
-                mlArray = sparse;
                 break;
 
             case MLArray.mxOPAQUE_CLASS:
@@ -932,6 +1729,101 @@ public class MatFileReader
         return mlArray;
     }
 
+    /**
+     * Reads a double array whose storage is a part of the buffer: the memory
+     * mapped file, see <code>MEMORY_MAPPED_ARRAYS</code>, or an inflated
+     * element, see <code>readData</code>.
+     * <p>
+     * If the data can not be used as storage directly, because it is not
+     * stored as <code>miDOUBLE</code>, or a mapped file is not in big-endian
+     * byte order, <code>null</code> is returned and the buffer position is not
+     * changed. The inflated data is owned by the reader, it is converted to
+     * big-endian in place.
+     * 
+     * @param buf the buffer, positioned at the real part tag
+     * @param name array name
+     * @param dims array dimensions
+     * @param type array type
+     * @param attributes array flags
+     * @return the array or <code>null</code>
+     */
+    private MLDouble readSharedDouble(ByteBuffer buf, String name, int[] dims, int type, int attributes)
+    {
+        boolean owned = ( buf == inflatedBuffer );
+        if ( !owned && buf.order() != ByteOrder.BIG_ENDIAN )
+        {
+            return null;
+        }
+        int elements = 1;
+        for ( int dim : dims )
+        {
+            elements *= dim;
+        }
+        int bytes = elements * MatDataTypes.sizeOf(MatDataTypes.miDOUBLE);
+        boolean complex = ( (attributes & MLArray.mtFLAG_COMPLEX) != 0 );
+        int position = buf.position();
+        
+        if ( !isDoubleData(buf, position, bytes)
+                || complex && !isDoubleData(buf, position + 8 + bytes, bytes) )
+        {
+            return null;
+        }
+        ByteBuffer real = sliceDoubleData(buf, position + 8, bytes, owned);
+        position += 8 + bytes;
+        ByteBuffer imaginary = null;
+        if ( complex )
+        {
+            imaginary = sliceDoubleData(buf, position + 8, bytes, owned);
+            position += 8 + bytes;
+        }
+        buf.position( position );
+        return new MLDouble(name, dims, type, attributes, real, imaginary);
+    }
+    
+    /**
+     * Tells if the element at the position is a <code>miDOUBLE</code> element
+     * of the given size.
+     * 
+     * @param buf the buffer
+     * @param position position of the element tag
+     * @param bytes expected size of the data
+     * @return <code>true</code> if the data can be sliced
+     */
+    private boolean isDoubleData(ByteBuffer buf, int position, int bytes)
+    {
+        //a small data element (packed tag) has a non-zero upper half
+        return position + 8 + bytes <= buf.limit()
+                && buf.getInt(position) == MatDataTypes.miDOUBLE
+                && buf.getInt(position + 4) == bytes;
+    }
+    
+    /**
+     * Returns the data of a <code>miDOUBLE</code> element as a big-endian
+     * slice of the buffer. Data that is not owned by the reader is returned
+     * read-only, owned little-endian data is byte swapped in place.
+     * 
+     * @param buf the buffer
+     * @param position position of the data
+     * @param bytes size of the data
+     * @param owned <code>true</code> if the buffer is owned by the reader
+     * @return slice of the data
+     */
+    private ByteBuffer sliceDoubleData(ByteBuffer buf, int position, int bytes, boolean owned)
+    {
+        if ( buf.order() != ByteOrder.BIG_ENDIAN )
+        {
+            for ( int i = position; i < position + bytes; i += 8 )
+            {
+                buf.putLong( i, Long.reverseBytes( buf.getLong(i) ) );
+            }
+        }
+        ByteBuffer slice = buf.duplicate();
+        slice.limit( position + bytes );
+        slice.position( position );
+        slice = slice.slice();
+        return owned ? slice : slice.asReadOnlyBuffer();
+    }
+    
     /**
      * Converts byte array to <code>String</code>. 
      * 
@@ -1055,6 +1947,26 @@ public class MatFileReader
         
         matFileHeader = new MatFileHeader(description, version, endianIndicator);
     }
+    /**
+     * Position of a top level element in the file read with
+     * <code>readIndex</code>.
+     */
+    private static class IndexEntry
+    {
+        /** position of the element tag */
+        private final long offset;
+        /** size of the element without the tag */
+        private final int size;
+        /** <code>true</code> for <code>miCOMPRESSED</code> elements */
+        private final boolean compressed;
+        
+        private IndexEntry(long offset, int size, boolean compressed)
+        {
+            this.offset = offset;
+            this.size = size;
+            this.compressed = compressed;
+        }
+    }
     /**
      * TAG operator. Facilitates reading operations.
      * 
@@ -0,0 +1,103 @@
+package com.jmatio.io;
+
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+/**
+ * Write options.
+ *
+ * This class is used to tell <code>MatFileWriter</code> and
+ * <code>MatFileIncrementalWriter</code> how the arrays are compressed.
+ *
+ * Usage:
+ * <pre><code>
+ * //write uncompressed, e.g. for small files that are written often
+ * MatFileWriteOptions options = new MatFileWriteOptions()
+ *         .setCompressionLevel( Deflater.NO_COMPRESSION );
+ * new MatFileWriter( new File("mat_file.mat"), list, options );
+ *
+ * //compress the arrays in parallel
+ * options = new MatFileWriteOptions().setExecutor( executor );
+ * </code></pre>
+ *
+ * @see com.jmatio.io.MatFileWriter
+ */
+public class MatFileWriteOptions
+{
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private Executor executor;
+
+    /**
+     * Creates the default options: arrays are compressed with the default
+     * level, one after the other.
+     */
+    public MatFileWriteOptions()
+    {
+    }
+
+    /**
+     * Sets the compression level.
+     *
+     * @param level - <code>Deflater.DEFAULT_COMPRESSION</code> or a level
+     *            from <code>Deflater.BEST_SPEED</code> (1) to
+     *            <code>Deflater.BEST_COMPRESSION</code> (9);
+     *            <code>Deflater.NO_COMPRESSION</code> (0) writes uncompressed
+     *            arrays (<code>miMATRIX</code>)
+     * @return these options
+     */
+    public MatFileWriteOptions setCompressionLevel( int level )
+    {
+        if ( level != Deflater.DEFAULT_COMPRESSION
+                && ( level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION ) )
+        {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        compressionLevel = level;
+        return this;
+    }
+
+    /**
+     * Gets the compression level.
+     *
+     * @return the compression level
+     */
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+    /**
+     * Tells if the arrays are compressed.
+     *
+     * @return <code>false</code> if the arrays are written uncompressed
+     */
+    public boolean isCompressed()
+    {
+        return compressionLevel != Deflater.NO_COMPRESSION;
+    }
+
+    /**
+     * Sets the executor that compresses the arrays of a collection. The
+     * arrays are compressed in parallel and written to the file in the order
+     * of the collection.
+     *
+     * @param executor - the executor, <code>null</code> (the default) to
+     *            compress the arrays one after the other
+     * @return these options
+     */
+    public MatFileWriteOptions setExecutor( Executor executor )
+    {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Gets the executor that compresses the arrays.
+     *
+     * @return the executor or <code>null</code>
+     */
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+}
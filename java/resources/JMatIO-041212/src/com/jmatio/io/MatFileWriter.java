@@ -6,12 +6,19 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 import com.jmatio.common.MatDataTypes;
 import com.jmatio.types.MLArray;
@@ -47,11 +54,16 @@ import com.jmatio.types.MLStructure;
  * >> save('mat_file.mat', 'double_arr', 'char_arr');
  * </pre></code>
  * 
+ * The compression level and parallel compression are set with
+ * <code>{@link MatFileWriteOptions}</code>.
+ * 
  * @author Wojciech Gradkowski (<a href="mailto:wgradkowski@gmail.com">wgradkowski@gmail.com</a>)
  */
 public class MatFileWriter
 {
 //    private static final Logger logger = Logger.getLogger(MatFileWriter.class);
+    /** size of the output buffer of the deflater */
+    private static final int DEFLATE_BUFFER_SIZE = 1 << 16;
     
     /**
      * Creates the new <code>{@link MatFileWriter}</code> instance
@@ -84,6 +96,18 @@ public class MatFileWriter
     {
         this( (new FileOutputStream(file)).getChannel(), data );
     }
+    /**
+     * Writes MLArrays into <code>File</code> with the given options.
+     * 
+     * @param file - an output <code>File</code>
+     * @param data - <code>Collection</code> of <code>MLArray</code> elements
+     * @param options - compression level and executor
+     * @throws IOException
+     */
+    public MatFileWriter(File file, Collection<MLArray> data, MatFileWriteOptions options) throws IOException
+    {
+        write( (new FileOutputStream(file)).getChannel(), data, options );
+    }
     /**
      * Writes MLArrays into <code>OuputSteram</code>.
      * 
@@ -127,12 +151,31 @@ public class MatFileWriter
      */
     public synchronized void write(File file, Collection<MLArray> data)
             throws IOException
+    {
+        write(file, data, new MatFileWriteOptions());
+    }
+    
+    /**
+     * Writes <code>MLArrays</code> into <code>File</code> with the given
+     * options.
+     * 
+     * @param file
+     *            the MAT-file to which data is written
+     * @param data
+     *            the collection of <code>{@link MLArray}</code> objects
+     * @param options
+     *            compression level and executor
+     * @throws IOException
+     *             if error occurred during MAT-file writing
+     */
+    public synchronized void write(File file, Collection<MLArray> data, MatFileWriteOptions options)
+            throws IOException
     {
         FileOutputStream fos = new FileOutputStream(file);
         
         try
         {
-            write(fos.getChannel(), data);
+            write(fos.getChannel(), data, options);
         }
         catch ( IOException e )
         {
@@ -156,6 +199,25 @@ public class MatFileWriter
      */
     private synchronized void write(WritableByteChannel channel,
             Collection<MLArray> data) throws IOException
+    {
+        write(channel, data, new MatFileWriteOptions());
+    }
+    
+    /**
+     * Writes <code>MLArrays</code> into <code>WritableByteChannel</code> with
+     * the given options.
+     * 
+     * @param channel
+     *            the channel to write to
+     * @param data
+     *            the collection of <code>{@link MLArray}</code> objects
+     * @param options
+     *            compression level and executor
+     * @throws IOException
+     *             if writing fails
+     */
+    private synchronized void write(WritableByteChannel channel,
+            Collection<MLArray> data, final MatFileWriteOptions options) throws IOException
     {
         try
         {
@@ -163,37 +225,23 @@ public class MatFileWriter
             writeHeader(channel);
             
             //write data
-            for ( MLArray matrix : data )
+            List<Callable<ByteBuffer>> elements = new ArrayList<Callable<ByteBuffer>>();
+            for ( final MLArray matrix : data )
             {
-                //prepare buffer for MATRIX data
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream( baos );
-                //write MATRIX bytes into buffer
-                writeMatrix( dos, matrix );
-                
-                //compress data to save storage
-                Deflater compresser = new Deflater();
-                
-                byte[] input = baos.toByteArray();
-                
-                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
-                DataOutputStream dout = new DataOutputStream(new DeflaterOutputStream(compressed, compresser));
-                
-                dout.write(input);
-                
-                dout.close();
-                compressed.close();
-                
-                //write COMPRESSED tag and compressed data into output channel
-                byte[] compressedBytes = compressed.toByteArray();
-                ByteBuffer buf = ByteBuffer.allocateDirect(2 * 4 /* Int size */ + compressedBytes.length);
-                buf.putInt( MatDataTypes.miCOMPRESSED );
-                buf.putInt( compressedBytes.length );
-                buf.put( compressedBytes );
-                
-                buf.flip();
-                channel.write( buf );
+                elements.add( new Callable<ByteBuffer>()
+                {
+                    public ByteBuffer call() throws IOException
+                    {
+                        //prepare buffer for MATRIX data
+                        PooledByteArrayOutputStream baos = new PooledByteArrayOutputStream( sizeHint( matrix ) );
+                        DataOutputStream dos = new DataOutputStream( baos );
+                        //write MATRIX bytes into buffer
+                        writeMatrix( dos, matrix );
+                        return createElement( baos, options.getCompressionLevel() );
+                    }
+                } );
             }
+            writeElements( channel, elements, options.getExecutor() );
         }
         catch ( IOException e )
         {
@@ -205,6 +253,199 @@ public class MatFileWriter
         }
     }
     
+    /**
+     * Expected number of bytes of a MATRIX, used to size its buffer.
+     * 
+     * @param array - a <code>MLArray</code>
+     * @return the size of the data if stored as doubles, plus room for the
+     *         tags
+     */
+    static int sizeHint(MLArray array)
+    {
+        return (int) Math.min( 8L * array.getSize() + 256, 1 << 25 );
+    }
+    
+    /**
+     * Creates a top level element from the bytes of a MATRIX: the MATRIX
+     * compressed into a <code>miCOMPRESSED</code> element, or the MATRIX
+     * itself if the level is <code>Deflater.NO_COMPRESSION</code>.
+     * 
+     * The element is a view of a pooled array, the MATRIX stream must not be
+     * used afterwards.
+     * 
+     * @param matrix - MATRIX bytes, including the <code>miMATRIX</code> tag
+     * @param level - the compression level
+     * @return the element, ready to be written with <code>writeElements</code>
+     * @throws IOException
+     */
+    static ByteBuffer createElement(PooledByteArrayOutputStream matrix, int level) throws IOException
+    {
+        if ( level == Deflater.NO_COMPRESSION )
+        {
+            return matrix.toByteBuffer();
+        }
+        final Deflater compresser = CodecPool.acquireDeflater( level );
+        final byte[] deflated = CodecPool.acquireBytes( DEFLATE_BUFFER_SIZE );
+        try
+        {
+            final PooledByteArrayOutputStream compressed = new PooledByteArrayOutputStream( matrix.size() / 2 + 64 );
+            //room for the COMPRESSED tag
+            compressed.write( new byte[8] );
+            //the MATRIX bytes are passed to the deflater without a copy
+            matrix.writeTo( new OutputStream()
+            {
+                public void write(int b)
+                {
+                    write( new byte[] { (byte)b }, 0, 1 );
+                }
+                public void write(byte[] b, int off, int len)
+                {
+                    compresser.setInput( b, off, len );
+                    while ( !compresser.needsInput() )
+                    {
+                        compressed.write( deflated, 0, compresser.deflate( deflated ) );
+                    }
+                }
+            } );
+            compresser.finish();
+            while ( !compresser.finished() )
+            {
+                compressed.write( deflated, 0, compresser.deflate( deflated ) );
+            }
+            
+            ByteBuffer buf = compressed.toByteBuffer();
+            buf.putInt( 0, MatDataTypes.miCOMPRESSED );
+            buf.putInt( 4, buf.remaining() - 8 );
+            return buf;
+        }
+        finally
+        {
+            CodecPool.release( compresser );
+            CodecPool.release( deflated );
+            matrix.release();
+        }
+    }
+    
+    /**
+     * Creates the elements and writes them into the channel in the order of
+     * the list. With an executor the elements are created in parallel.
+     * 
+     * The arrays of the elements are given back to the pool once they are
+     * written. Elements that are not written because of an error are left
+     * to the garbage collector.
+     * 
+     * @param channel - the channel to write to
+     * @param elements - the tasks that create the elements
+     * @param executor - the executor, or <code>null</code> to create the
+     *            elements one after the other
+     * @throws IOException
+     */
+    static void writeElements(WritableByteChannel channel, List<Callable<ByteBuffer>> elements,
+            Executor executor) throws IOException
+    {
+        if ( executor == null )
+        {
+            for ( Callable<ByteBuffer> element : elements )
+            {
+                writeElement( channel, call( element ) );
+            }
+            return;
+        }
+        List<Future<ByteBuffer>> tasks = new ArrayList<Future<ByteBuffer>>();
+        try
+        {
+            for ( Callable<ByteBuffer> element : elements )
+            {
+                FutureTask<ByteBuffer> task = new FutureTask<ByteBuffer>( element );
+                executor.execute( task );
+                tasks.add( task );
+            }
+            for ( int i = 0; i < tasks.size(); i++ )
+            {
+                writeElement( channel, get( tasks.get(i) ) );
+                tasks.set( i, null );
+            }
+        }
+        finally
+        {
+            //after an error the remaining elements are not needed
+            for ( Future<ByteBuffer> task : tasks )
+            {
+                if ( task != null )
+                {
+                    task.cancel( false );
+                }
+            }
+        }
+    }
+    
+    private static ByteBuffer call(Callable<ByteBuffer> element) throws IOException
+    {
+        try
+        {
+            return element.call();
+        }
+        catch ( IOException e )
+        {
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            throw e;
+        }
+        catch ( Exception e )
+        {
+            throw new IllegalStateException("Could not create element: " + e, e);
+        }
+    }
+    
+    private static ByteBuffer get(Future<ByteBuffer> task) throws IOException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new MatlabIOException("Interrupted while compressing data");
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException )
+            {
+                throw (IOException) cause;
+            }
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            if ( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Could not create element: " + cause, cause);
+        }
+    }
+    
+    private static void writeElement(WritableByteChannel channel, ByteBuffer buf) throws IOException
+    {
+        writeFully( channel, buf );
+        if ( buf.hasArray() )
+        {
+            CodecPool.releaseSink( buf.array() );
+        }
+    }
+    
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buf) throws IOException
+    {
+        while ( buf.hasRemaining() )
+        {
+            channel.write( buf );
+        }
+    }
+    
     /**
      * Writes MAT-file header into <code>OutputStream</code>
      * @param os <code>OutputStream</code>
@@ -252,7 +493,7 @@ public class MatFileWriter
         OSArrayTag tag;
         ByteArrayOutputStream buffer;         
         DataOutputStream bufferDOS;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PooledByteArrayOutputStream baos = new PooledByteArrayOutputStream( sizeHint( array ) );
         DataOutputStream dos = new DataOutputStream(baos);
         
         //flags
@@ -400,51 +641,34 @@ public class MatFileWriter
                 }
                 break;
             case MLArray.mxSPARSE_CLASS:
-                int[] ai;
+                //the compressed sparse column arrays are copied as they are
+                MLSparse sparse = (MLSparse)array;
+                ByteBuffer data;
                 //write ir
-                buffer = new ByteArrayOutputStream();
-                bufferDOS = new DataOutputStream(buffer);
-                ai = ((MLSparse)array).getIR();
-                for ( int i : ai )
-                {
-                        bufferDOS.writeInt( i );
-                }
-                tag = new OSArrayTag(MatDataTypes.miINT32, buffer.toByteArray() );
+                int[] ai = sparse.getIR();
+                data = ByteBuffer.allocate( ai.length * 4 );
+                data.asIntBuffer().put( ai );
+                tag = new OSArrayTag(MatDataTypes.miINT32, data );
                 tag.writeTo( dos );
                 //write jc
-                buffer = new ByteArrayOutputStream();
-                bufferDOS = new DataOutputStream(buffer);
-                ai = ((MLSparse)array).getJC();
-                for ( int i : ai )
-                {
-                        bufferDOS.writeInt( i );
-                }
-                tag = new OSArrayTag(MatDataTypes.miINT32, buffer.toByteArray() );
+                ai = sparse.getJC();
+                data = ByteBuffer.allocate( ai.length * 4 );
+                data.asIntBuffer().put( ai );
+                tag = new OSArrayTag(MatDataTypes.miINT32, data );
                 tag.writeTo( dos );
                 //write real
-                buffer = new ByteArrayOutputStream();
-                bufferDOS = new DataOutputStream(buffer);
-                
-                Double[] ad = ((MLSparse)array).exportReal();
-                
-                for ( int i = 0; i < ad.length; i++ )
-                {
-                    bufferDOS.writeDouble( ad[i].doubleValue() );
-                }
-                
-                tag = new OSArrayTag(MatDataTypes.miDOUBLE, buffer.toByteArray() );
+                double[] ad = sparse.getPR();
+                data = ByteBuffer.allocate( ad.length * 8 );
+                data.asDoubleBuffer().put( ad );
+                tag = new OSArrayTag(MatDataTypes.miDOUBLE, data );
                 tag.writeTo( dos );
                 //write real imaginary
                 if ( array.isComplex() )
                 {
-                    buffer = new ByteArrayOutputStream();
-                    bufferDOS = new DataOutputStream(buffer);
-                    ad = ((MLSparse)array).exportImaginary();
-                    for ( int i = 0; i < ad.length; i++ )
-                    {
-                        bufferDOS.writeDouble( ad[i].doubleValue() );
-                    }
-                    tag = new OSArrayTag(MatDataTypes.miDOUBLE, buffer.toByteArray() );
+                    ad = sparse.getPI();
+                    data = ByteBuffer.allocate( ad.length * 8 );
+                    data.asDoubleBuffer().put( ad );
+                    tag = new OSArrayTag(MatDataTypes.miDOUBLE, data );
                     tag.writeTo( dos );
                 }
                 break;
@@ -457,7 +681,8 @@ public class MatFileWriter
         //write matrix
         output.writeInt(MatDataTypes.miMATRIX); //matrix tag
         output.writeInt( baos.size() ); //size of matrix
-        output.write( baos.toByteArray() ); //matrix data
+        baos.writeTo( output ); //matrix data
+        baos.release();
     }
     
     /**
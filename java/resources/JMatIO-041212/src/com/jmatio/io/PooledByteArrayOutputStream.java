@@ -0,0 +1,52 @@
+package com.jmatio.io;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * <code>ByteArrayOutputStream</code> on an array of the
+ * <code>{@link CodecPool}</code>.
+ *
+ * The writers collect each MATRIX and each compressed element in such a
+ * stream. The bytes are handed on with <code>toByteBuffer</code>, which
+ * wraps the array instead of copying it, and the array is given back with
+ * <code>release</code> when the bytes are written.
+ */
+class PooledByteArrayOutputStream extends ByteArrayOutputStream
+{
+    private static final byte[] RELEASED = new byte[0];
+
+    /**
+     * Creates a stream.
+     *
+     * @param sizeHint - the expected number of bytes, the stream grows if
+     *            more are written
+     */
+    PooledByteArrayOutputStream(int sizeHint)
+    {
+        super( 0 );
+        buf = CodecPool.acquireSink( sizeHint );
+    }
+
+    /**
+     * @return the bytes written so far, a view of the array of this stream
+     */
+    synchronized ByteBuffer toByteBuffer()
+    {
+        return ByteBuffer.wrap( buf, 0, count );
+    }
+
+    /**
+     * Gives back the array, the stream and the buffers returned by
+     * <code>toByteBuffer</code> must not be used afterwards.
+     */
+    synchronized void release()
+    {
+        if ( buf != RELEASED )
+        {
+            CodecPool.releaseSink( buf );
+            buf = RELEASED;
+            count = 0;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.jmatio.types;
 
 import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
 
 /**
  * Class represents Double array (matrix)
@@ -22,6 +23,22 @@ public class MLDouble extends MLNumericArray<Double>
     {
         super( name, dims, type, attributes );
     }
+    /**
+     * Normally this constructor is used only by MatFileReader. The array
+     * uses the given buffers as storage, see
+     * <code>{@link MLNumericArray#MLNumericArray(String, int[], int, int, ByteBuffer, ByteBuffer)}</code>.
+     * 
+     * @param name - array name
+     * @param dims - array dimensions
+     * @param type - array type: here <code>mxDOUBLE_CLASS</code>
+     * @param attributes - array flags
+     * @param real - storage of the real part, big-endian
+     * @param imaginary - storage of the imaginary part or <code>null</code>
+     */
+    public MLDouble( String name, int[] dims, int type, int attributes, ByteBuffer real, ByteBuffer imaginary )
+    {
+        super( name, dims, type, attributes, real, imaginary );
+    }
     /**
      * Create a <code>MLDouble</code> array with given name,
      * and dimensions.
@@ -68,7 +85,8 @@ public class MLDouble extends MLNumericArray<Double>
      */
     public MLDouble(String name, double[] vals, int m)
     {
-        this(name, castToDouble( vals ), m );
+        this(name, new int[] { m, vals.length/m } );
+        importReal( vals );
     }
     /* (non-Javadoc)
      * @see com.jmatio.types.GenericArrayCreator#createArray(int, int)
@@ -84,6 +102,7 @@ public class MLDouble extends MLNumericArray<Double>
      */
     public double[][] getArray()
     {
+        DoubleBuffer buffer = getRealDoubleBuffer();
         double[][] result = new double[getM()][];
         
         for ( int m = 0; m < getM(); m++ )
@@ -92,25 +111,159 @@ public class MLDouble extends MLNumericArray<Double>
 
            for ( int n = 0; n < getN(); n++ )
            {               
-               result[m][n] = getReal(m,n);
+               result[m][n] = buffer.get( getIndex(m,n) );
            }
         }
         return result;
     }
     /**
-     * Casts <code>Double[]</code> to <code>double[]</code>
+     * Exports column-packed vector of real elements, without boxing the
+     * elements.
+     * 
+     * @return - column-packed vector of real elements
+     */
+    public double[] exportReal()
+    {
+        double[] result = new double[ getSize() ];
+        getRealDoubleBuffer().get( result );
+        return result;
+    }
+    /**
+     * Exports column-packed vector of imaginary elements, without boxing the
+     * elements.
+     * 
+     * @return - column-packed vector of imaginary elements
+     */
+    public double[] exportImaginary()
+    {
+        double[] result = new double[ getSize() ];
+        getImaginaryDoubleBuffer().get( result );
+        return result;
+    }
+    /**
+     * Sets real part of matrix, without boxing the elements.
+     * 
+     * @param vector - column-packed vector of elements
+     */
+    public void importReal( double[] vector )
+    {
+        checkLength( vector.length, getSize() );
+        ensureWritable();
+        getRealDoubleBuffer().put( vector );
+    }
+    /**
+     * Sets imaginary part of matrix, without boxing the elements.
+     * 
+     * @param vector - column-packed vector of elements
+     */
+    public void importImaginary( double[] vector )
+    {
+        checkLength( vector.length, getSize() );
+        ensureWritable();
+        getImaginaryDoubleBuffer().put( vector );
+    }
+    /**
+     * Gets a column of the real part of a 2D matrix.
+     * 
+     * @param n - column index
+     * @return - the column, <code>getM()</code> elements
+     */
+    public double[] getColumn( int n )
+    {
+        double[] result = new double[ getM() ];
+        DoubleBuffer buffer = getRealDoubleBuffer();
+        buffer.position( getIndex(0,n) );
+        buffer.get( result );
+        return result;
+    }
+    /**
+     * Sets a column of the real part of a 2D matrix.
+     * 
+     * @param column - the column, <code>getM()</code> elements
+     * @param n - column index
+     */
+    public void setColumn( double[] column, int n )
+    {
+        checkLength( column.length, getM() );
+        ensureWritable();
+        DoubleBuffer buffer = getRealDoubleBuffer();
+        buffer.position( getIndex(0,n) );
+        buffer.put( column );
+    }
+    /**
+     * Gets a row of the real part of a 2D matrix.
+     * 
+     * @param m - row index
+     * @return - the row, <code>getN()</code> elements
+     */
+    public double[] getRow( int m )
+    {
+        double[] result = new double[ getN() ];
+        DoubleBuffer buffer = getRealDoubleBuffer();
+        for ( int n = 0; n < result.length; n++ )
+        {
+            result[n] = buffer.get( getIndex(m,n) );
+        }
+        return result;
+    }
+    /**
+     * Sets a row of the real part of a 2D matrix.
      * 
-     * @param - source <code>Double[]</code>
-     * @return - result <code>double[]</code>
+     * @param row - the row, <code>getN()</code> elements
+     * @param m - row index
      */
-    private static Double[] castToDouble( double[] d )
+    public void setRow( double[] row, int m )
+    {
+        checkLength( row.length, getN() );
+        ensureWritable();
+        DoubleBuffer buffer = getRealDoubleBuffer();
+        for ( int n = 0; n < row.length; n++ )
+        {
+            buffer.put( getIndex(m,n), row[n] );
+        }
+    }
+    /**
+     * Gets a view of the real part as column-packed <code>DoubleBuffer</code>.
+     * Changes of the view change the array. The view is read-only if the
+     * storage is read-only, see <code>getRealByteBuffer</code>; such an array
+     * can be changed with <code>importReal</code> or <code>setColumn</code>.
+     * 
+     * @return - view of the real elements
+     */
+    public DoubleBuffer getRealDoubleBuffer()
+    {
+        return asDoubleBuffer( getRealByteBuffer() );
+    }
+    /**
+     * Gets a view of the imaginary part as column-packed
+     * <code>DoubleBuffer</code>, see <code>getRealDoubleBuffer</code>.
+     * 
+     * @return - view of the imaginary elements
+     */
+    public DoubleBuffer getImaginaryDoubleBuffer()
+    {
+        if ( !isComplex() )
+        {
+            throw new IllegalStateException("Array is not complex");
+        }
+        return asDoubleBuffer( getImaginaryByteBuffer() );
+    }
+    /**
+     * Creates a view of the whole storage, independent of the position of the
+     * storage.
+     */
+    private static DoubleBuffer asDoubleBuffer( ByteBuffer storage )
+    {
+        ByteBuffer buffer = storage.duplicate();
+        buffer.clear();
+        return buffer.asDoubleBuffer();
+    }
+    private static void checkLength( int length, int expected )
     {
-        Double[] dest = new Double[d.length];
-        for ( int i = 0; i < d.length; i++ )
+        if ( length != expected )
         {
-            dest[i] = (Double)d[i];
+            throw new IllegalArgumentException("Matrix dimensions do not match. " + expected + " not " + length);
         }
-        return dest;
     }
     /**
      * Converts double[][] to Double[]
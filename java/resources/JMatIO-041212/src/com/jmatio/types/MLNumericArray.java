@@ -39,6 +39,37 @@ public abstract class MLNumericArray<T extends Number> extends MLArray
         
     }
     
+    /**
+     * Creates an array that uses the given buffers as storage, without
+     * copying them. Used by MatFileReader to keep the data of an array in
+     * the memory mapped file.
+     * <p>
+     * The buffers hold the elements in big-endian byte order. Read-only
+     * buffers are copied to the heap the first time the array is changed.
+     * 
+     * @param name - array name
+     * @param dims - array dimensions
+     * @param type - array type
+     * @param attributes - array flags
+     * @param real - storage of the real part
+     * @param imaginary - storage of the imaginary part, <code>null</code> if
+     *            the array is not complex
+     */
+    protected MLNumericArray(String name, int[] dims, int type, int attributes,
+                             ByteBuffer real, ByteBuffer imaginary)
+    {
+        super(name, dims, type, attributes);
+        int capacity = getSize()*getBytesAllocated();
+        if ( real.capacity() != capacity 
+                || ( isComplex() && ( imaginary == null || imaginary.capacity() != capacity ) ) )
+        {
+            throw new IllegalArgumentException("Storage does not match the array dimensions.");
+        }
+        this.real = real;
+        this.imaginary = isComplex() ? imaginary : null;
+        bytes = new byte[ getBytesAllocated() ];
+    }
+    
     protected void allocate( )
     {
         real = ByteBuffer.allocate( getSize()*getBytesAllocated());
@@ -266,16 +297,50 @@ public abstract class MLNumericArray<T extends Number> extends MLArray
     
     protected void _set( ByteBuffer buffer, T value, int index )
     {
+        if ( buffer.isReadOnly() )
+        {
+            //copy on write
+            boolean isReal = ( buffer == real );
+            ensureWritable();
+            buffer = isReal ? real : imaginary;
+        }
         buffer.position( getByteOffset(index) );
         buffer.put( getByteArray( value ) );
     }
     
+    /**
+     * Copies read-only storage, e.g. a part of a memory mapped file, to the
+     * heap so that it can be changed.
+     */
+    protected void ensureWritable()
+    {
+        if ( real.isReadOnly() )
+        {
+            real = copyToHeap( real );
+        }
+        if ( imaginary != null && imaginary.isReadOnly() )
+        {
+            imaginary = copyToHeap( imaginary );
+        }
+    }
+    
+    private static ByteBuffer copyToHeap( ByteBuffer buffer )
+    {
+        ByteBuffer source = buffer.duplicate();
+        source.clear();
+        ByteBuffer copy = ByteBuffer.allocate( source.capacity() );
+        copy.put( source );
+        copy.clear();
+        return copy;
+    }
+    
     public void putImaginaryByteBuffer( ByteBuffer buff )
     {
         if ( !isComplex() )
         {
             throw new RuntimeException("Array is not complex");
         }
+        ensureWritable();
         imaginary.rewind();
         imaginary.put( buff );
     }
@@ -287,10 +352,17 @@ public abstract class MLNumericArray<T extends Number> extends MLArray
     
     public void putRealByteBuffer( ByteBuffer buff )
     {
+        ensureWritable();
         real.rewind();
         real.put( buff );
     }
     
+    /**
+     * Gets the storage of the real part. The buffer is read-only if the
+     * array has been read from a memory mapped file and not changed since.
+     * 
+     * @return the storage of the real part
+     */
     public ByteBuffer getRealByteBuffer()
     {
         return real;
@@ -1,18 +1,35 @@
 package com.jmatio.types;
 
 import java.nio.ByteBuffer;
-import java.util.SortedMap;
-import java.util.SortedSet;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.Arrays;
 
+/**
+ * Sparse double array (matrix).
+ * <p>
+ * The non-zero elements are stored in compressed sparse column form, like in
+ * the MAT-file: <tt>ir</tt> holds the row index and <tt>pr</tt> (and
+ * <tt>pi</tt>) the value of each element, column after column, rows
+ * ascending within a column. <tt>jc[n]</tt> is the index of the first element
+ * of column <tt>n</tt>, <tt>jc[N]</tt> the number of elements.
+ * <p>
+ * Elements are best added in column-major order, setting an element before
+ * existing elements moves the following ones. Many elements in any order can
+ * be collected with a <code>{@link Builder}</code>.
+ *
+ * @author Wojciech Gradkowski <wgradkowski@gmail.com>
+ */
 public class MLSparse extends MLNumericArray<Double>
 {
     int nzmax;
-    private SortedSet<IndexMN> indexSet;
-    private SortedMap<IndexMN, Double> real;  
-    private SortedMap<IndexMN, Double> imaginary;  
-    
+    /** row indices, the first <code>jc[N]</code> are used */
+    private int[] ir;
+    /** index of the first element of each column, length N+1 */
+    private int[] jc;
+    /** real parts */
+    private double[] pr;
+    /** imaginary parts, <code>null</code> if the array is not complex */
+    private double[] pi;
+
     /**
      * @param name
      * @param dims
@@ -24,68 +41,135 @@ public class MLSparse extends MLNumericArray<Double>
         super(name, dims, MLArray.mxSPARSE_CLASS, attributes);
         this.nzmax = nzmax;
     }
-    
+
+    /**
+     * Creates a sparse array from its compressed sparse column arrays, as
+     * stored in a MAT-file. The arrays are used without copying them.
+     *
+     * @param name - array name
+     * @param dims - array dimensions
+     * @param attributes - array flags
+     * @param nzmax - maximum number of non-zero values
+     * @param ir - row indices, at least <tt>jc[N]</tt> elements, ascending
+     *            within a column
+     * @param jc - index of the first element of each column, N+1 elements
+     * @param pr - real parts, at least <tt>jc[N]</tt> elements
+     * @param pi - imaginary parts, at least <tt>jc[N]</tt> elements, or
+     *            <code>null</code> if the array is not complex
+     */
+    public MLSparse(String name, int[] dims, int attributes, int nzmax,
+                    int[] ir, int[] jc, double[] pr, double[] pi )
+    {
+        this(name, dims, attributes, nzmax);
+        if ( jc.length != getN() + 1 || jc[0] != 0 )
+        {
+            throw new IllegalArgumentException("Column indices do not match the array dimensions.");
+        }
+        for ( int n = 0; n < getN(); n++ )
+        {
+            if ( jc[n+1] < jc[n] )
+            {
+                throw new IllegalArgumentException("Column indices are not ascending at column " + n + ".");
+            }
+        }
+        int nnz = jc[getN()];
+        if ( ir.length < nnz || pr.length < nnz || ( isComplex() && ( pi == null || pi.length < nnz ) ) )
+        {
+            throw new IllegalArgumentException("Storage does not match the number of non-zero values.");
+        }
+        for ( int n = 0; n < getN(); n++ )
+        {
+            for ( int k = jc[n]; k < jc[n+1]; k++ )
+            {
+                if ( ir[k] < 0 || ir[k] >= getM() || ( k > jc[n] && ir[k] <= ir[k-1] ) )
+                {
+                    throw new IllegalArgumentException("Row indices are not ascending in column " + n + ".");
+                }
+            }
+        }
+        this.ir = ir;
+        this.jc = jc;
+        this.pr = pr;
+        this.pi = isComplex() ? pi : null;
+    }
+
     protected void allocate()
     {
-        real = new TreeMap<IndexMN, Double>();
+        ir = new int[0];
+        jc = new int[getN()+1];
+        pr = new double[0];
         if ( isComplex() )
         {
-            imaginary = new TreeMap<IndexMN, Double>();
+            pi = new double[0];
         }
-        indexSet = new TreeSet<IndexMN>();
     }
-    
+
     /**
      * Gets maximum number of non-zero values
-     * 
+     *
      * @return
      */
     public int getMaxNZ()
     {
-        return nzmax;
+        return Math.max( nzmax, getNZ() );
+    }
+    /**
+     * Gets number of non-zero values, the elements that have been set.
+     *
+     * @return
+     */
+    public int getNZ()
+    {
+        return jc[getN()];
     }
     /**
      * Gets row indices
-     * 
+     *
      * <tt>ir</tt> points to an integer array of length nzmax containing the row indices of
      * the corresponding elements in <tt>pr</tt> and <tt>pi</tt>.
      */
     public int[] getIR()
     {
-        int[] ir = new int[nzmax];
-        int i = 0;
-        for ( IndexMN index : indexSet )
-        {
-            ir[i++] = index.m;
-        }
-        return ir;
+        return Arrays.copyOf( ir, getMaxNZ() );
     }
     /**
-     * Gets column indices. 
-     * 
+     * Gets column indices.
+     *
      * <tt>jc</tt> points to an integer array of length N+1 that contains column index information.
      * For j, in the range <tt>0&lt;=j&lt;=N1</tt>, <tt>jc[j]</tt> is the index in ir and <tt>pr</tt> (and <tt>pi</tt>
      * if it exists) of the first nonzero entry in the jth column and <tt>jc[j+1]1</tt> index
      * of the last nonzero entry. As a result, <tt>jc[N]</tt> is also equal to nnz, the number
      * of nonzero entries in the matrix. If nnz is less than nzmax, then more nonzero
      * entries can be inserted in the array without allocating additional storage
-     * 
+     *
      * @return
      */
     public int[] getJC()
     {
-        int[] jc = new int[getN()+1];
-        // jc[j] is the number of nonzero elements in all preceeding columns
-        for ( IndexMN index : indexSet )
-        {
-            for (int column = index.n + 1; column < jc.length; column++)
-            {
-                jc[column]++;
-            }
-        }
-        return jc;
+        return jc.clone();
     }
-    
+    /**
+     * Gets the real parts (PR) of the non-zero values, in the order of
+     * <code>getIR</code>.
+     *
+     * @return real parts, <code>getNZ()</code> elements
+     */
+    public double[] getPR()
+    {
+        return Arrays.copyOf( pr, getNZ() );
+    }
+    /**
+     * Gets the imaginary parts (PI) of the non-zero values, in the order of
+     * <code>getIR</code>.
+     *
+     * @return imaginary parts, <code>getNZ()</code> elements
+     */
+    public double[] getPI()
+    {
+        checkComplex();
+        return Arrays.copyOf( pi, getNZ() );
+    }
+
     /* (non-Javadoc)
      * @see com.paradigmdesigner.matlab.types.GenericArrayCreator#createArray(int, int)
      */
@@ -98,14 +182,10 @@ public class MLSparse extends MLNumericArray<Double>
      */
     public Double getReal(int m, int n)
     {
-        IndexMN i = new IndexMN(m,n);
-        if ( real.containsKey(i) )
-        {
-            return real.get(i);
-        }
-        return new Double(0);
+        int k = find(m, n);
+        return k >= 0 ? pr[k] : 0.0;
     }
-    
+
     /* (non-Javadoc)
      * @see com.jmatio.types.MLNumericArray#getReal(int)
      */
@@ -121,9 +201,9 @@ public class MLSparse extends MLNumericArray<Double>
      */
     public void setReal(Double value, int m, int n)
     {
-        IndexMN i = new IndexMN(m,n);
-        indexSet.add(i);
-        real.put(i, value );
+        //insert first, it may replace the arrays
+        int k = findOrInsert(m, n);
+        pr[k] = value;
     }
     /**
      * @param value
@@ -141,9 +221,9 @@ public class MLSparse extends MLNumericArray<Double>
      */
     public void setImaginary(Double value, int m, int n)
     {
-        IndexMN i = new IndexMN(m,n);
-        indexSet.add(i);
-        imaginary.put(i, value );
+        checkComplex();
+        int k = findOrInsert(m, n);
+        pi[k] = value;
     }
     /**
      * @param value
@@ -159,12 +239,9 @@ public class MLSparse extends MLNumericArray<Double>
      */
     public Double getImaginary(int m, int n)
     {
-        IndexMN i = new IndexMN(m,n);
-        if ( imaginary.containsKey(i) )
-        {
-            return imaginary.get(i);
-        }
-        return new Double(0);
+        checkComplex();
+        int k = find(m, n);
+        return k >= 0 ? pi[k] : 0.0;
     }
     /* (non-Javadoc)
      * @see com.jmatio.types.MLNumericArray#getImaginary(int)
@@ -174,46 +251,109 @@ public class MLSparse extends MLNumericArray<Double>
         throw new IllegalArgumentException("Can't get Sparse array elements by index. " +
         "Please use getImaginary(int index) instead.");
     }
-    
+
     /**
      * Returns the real part (PR) array. PR has length number-of-nonzero-values.
+     * <p>
+     * <code>getPR</code> returns the same values without boxing them.
      *
      * @return real part
      */
     public Double[] exportReal()
     {
-        Double[] ad = new Double[indexSet.size()];
-        int i = 0;
-        for (IndexMN index: indexSet) {
-            if (real.containsKey(index)) {
-                ad[i] = real.get(index);
-            } else {
-                ad[i] = 0.0;
-            }
-            i++;
-        }
-        return ad;
+        return box( pr, getNZ() );
     }
-    
+
     /**
      * Returns the imaginary part (PI) array. PI has length number-of-nonzero-values.
+     * <p>
+     * <code>getPI</code> returns the same values without boxing them.
      *
      * @return
      */
     public Double[] exportImaginary()
     {
-        Double[] ad = new Double[indexSet.size()];
-        int i = 0;
-        for (IndexMN index: indexSet) {
-            if (imaginary.containsKey(index)) {
-                ad[i] = imaginary.get(index);
-            } else {
-                ad[i] = 0.0;
-            }
-            i++;
+        checkComplex();
+        return box( pi, getNZ() );
+    }
+
+    private static Double[] box( double[] values, int length )
+    {
+        Double[] ad = new Double[length];
+        for ( int i = 0; i < length; i++ )
+        {
+            ad[i] = values[i];
         }
         return ad;
     }
+
+    /**
+     * Finds the storage index of element (m,n).
+     *
+     * @return the index, or <code>-(insertion point)-1</code> if the element
+     *         is not stored
+     */
+    private int find( int m, int n )
+    {
+        checkIndex(m, n);
+        return Arrays.binarySearch( ir, jc[n], jc[n+1], m );
+    }
+
+    /**
+     * Finds the storage index of element (m,n), a zero element is inserted if
+     * it is not stored yet.
+     */
+    private int findOrInsert( int m, int n )
+    {
+        int k = find(m, n);
+        if ( k >= 0 )
+        {
+            return k;
+        }
+        k = -k - 1;
+        int nnz = getNZ();
+        if ( nnz == ir.length )
+        {
+            int capacity = Math.max( Math.max( nnz + 1, 2 * nnz ), Math.min( nzmax, Integer.MAX_VALUE - 8 ) );
+            ir = Arrays.copyOf( ir, capacity );
+            pr = Arrays.copyOf( pr, capacity );
+            if ( pi != null )
+            {
+                pi = Arrays.copyOf( pi, capacity );
+            }
+        }
+        System.arraycopy( ir, k, ir, k + 1, nnz - k );
+        System.arraycopy( pr, k, pr, k + 1, nnz - k );
+        ir[k] = m;
+        pr[k] = 0.0;
+        if ( pi != null )
+        {
+            System.arraycopy( pi, k, pi, k + 1, nnz - k );
+            pi[k] = 0.0;
+        }
+        for ( int column = n + 1; column < jc.length; column++ )
+        {
+            jc[column]++;
+        }
+        return k;
+    }
+
+    private void checkIndex( int m, int n )
+    {
+        if ( m < 0 || m >= getM() || n < 0 || n >= getN() )
+        {
+            throw new IndexOutOfBoundsException("Index (" + m + "," + n + ") is outside of the array dimensions.");
+        }
+    }
+
+    private void checkComplex()
+    {
+        if ( pi == null )
+        {
+            throw new IllegalStateException("Array is not complex");
+        }
+    }
+
     /* (non-Javadoc)
      * @see com.paradigmdesigner.matlab.types.MLArray#contentToString()
      */
@@ -221,72 +361,61 @@ public class MLSparse extends MLNumericArray<Double>
     {
         StringBuffer sb = new StringBuffer();
         sb.append(name + " = \n");
-        
-        for ( IndexMN i : indexSet )
+
+        for ( int n = 0; n < getN(); n++ )
         {
-            sb.append("\t(");
-            sb.append(i.m + "," + i.n);
-            sb.append(")");
-            sb.append("\t" + getReal(i.m, i.n) );
-            if ( isComplex() )
+            for ( int k = jc[n]; k < jc[n+1]; k++ )
             {
-                sb.append("+" + getImaginary(i.m, i.n) );
+                sb.append("\t(");
+                sb.append(ir[k] + "," + n);
+                sb.append(")");
+                sb.append("\t" + pr[k] );
+                if ( isComplex() )
+                {
+                    sb.append("+" + pi[k] );
+                }
+                sb.append("\n");
             }
-            sb.append("\n");
-            
         }
-        
+
         return sb.toString();
     }
-    
-    /**
-     * Matrix index (m,n)
-     * 
-     * @author Wojciech Gradkowski <wgradkowski@gmail.com>
+
+    /* (non-Javadoc)
+     * @see com.jmatio.types.MLNumericArray#equals(java.lang.Object)
      */
-    private class IndexMN implements Comparable<IndexMN>
+    @Override
+    public boolean equals(Object o)
     {
-        int m;
-        int n;
-        
-        public IndexMN( int m, int n )
+        if ( o instanceof MLSparse )
         {
-            this.m = m;
-            this.n = n;
-        }
-        
-        
-        /* (non-Javadoc)
-         * @see java.lang.Comparable#compareTo(java.lang.Object)
-         */
-        public int compareTo(IndexMN anOtherIndex) {
-            return getIndex(m,n) - getIndex(anOtherIndex.m,anOtherIndex.n);
+            MLSparse other = (MLSparse) o;
+            int nnz = getNZ();
+            return Arrays.equals( dims, other.dims )
+                    && Arrays.equals( jc, other.jc )
+                    && Arrays.equals( Arrays.copyOf( ir, nnz ), Arrays.copyOf( other.ir, nnz ) )
+                    && Arrays.equals( Arrays.copyOf( pr, nnz ), Arrays.copyOf( other.pr, nnz ) )
+                    && isComplex() == other.isComplex()
+                    && ( !isComplex() || Arrays.equals( Arrays.copyOf( pi, nnz ), Arrays.copyOf( other.pi, nnz ) ) );
         }
+        return super.equals( o );
+    }
 
-        /* (non-Javadoc)
-         * @see java.lang.Object#equals(java.lang.Object)
-         */
-        public boolean equals(Object o)
-        {
-            if (o instanceof IndexMN )
-            {
-                return m == ((IndexMN)o).m && n == ((IndexMN)o).n;
-            }
-            return super.equals(o);
-        }
-        /* (non-Javadoc)
-         * @see java.lang.Object#toString()
-         */
-        public String toString()
+    /* (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode()
+    {
+        int nnz = getNZ();
+        int hash = 31 * Arrays.hashCode( dims ) + Arrays.hashCode( jc );
+        hash = 31 * hash + Arrays.hashCode( Arrays.copyOf( ir, nnz ) );
+        hash = 31 * hash + Arrays.hashCode( Arrays.copyOf( pr, nnz ) );
+        if ( isComplex() )
         {
-            StringBuffer sb = new StringBuffer();
-            sb.append("{");
-            sb.append("m=" + m);
-            sb.append(", ");
-            sb.append("n=" + n);
-            sb.append("}");
-            return sb.toString();
+            hash = 31 * hash + Arrays.hashCode( Arrays.copyOf( pi, nnz ) );
         }
+        return hash;
     }
 
     public int getBytesAllocated()
@@ -297,12 +426,12 @@ public class MLSparse extends MLNumericArray<Double>
     {
         if ( bytes.length != getBytesAllocated() )
         {
-            throw new IllegalArgumentException( 
-                        "To build from byte array I need array of size: " 
+            throw new IllegalArgumentException(
+                        "To build from byte array I need array of size: "
                                 + getBytesAllocated() );
         }
         return ByteBuffer.wrap( bytes ).getDouble();
-        
+
     }
     public byte[] getByteArray(Double value)
     {
@@ -311,11 +440,165 @@ public class MLSparse extends MLNumericArray<Double>
         buff.putDouble( value );
         return buff.array();
     }
-    
+
     public Class<Double> getStorageClazz()
     {
         return Double.class;
     }
 
+    /**
+     * Collects the elements of a sparse array in any order and creates the
+     * array in one step, sorting the elements once instead of inserting them
+     * one by one.
+     * <pre><code>
+     * MLSparse.Builder builder = new MLSparse.Builder( "S", new int[] { 1000, 1000 }, 0 );
+     * builder.setReal( 2.5, 999, 3 );
+     * builder.setReal( 1.0, 0, 3 );
+     * MLSparse sparse = builder.build();
+     * </code></pre>
+     * If an element is set more than once the last value is used, like with
+     * <code>MLSparse.setReal</code>.
+     */
+    public static class Builder
+    {
+        private final String name;
+        private final int[] dims;
+        private final int attributes;
+
+        private int size;
+        private int[] rows = new int[16];
+        private int[] columns = new int[16];
+        private double[] values = new double[16];
+        /** <code>true</code> for imaginary parts */
+        private boolean[] imaginary = new boolean[16];
+
+        /**
+         * @param name - array name
+         * @param dims - array dimensions
+         * @param attributes - array flags, e.g. <code>MLArray.mtFLAG_COMPLEX</code>
+         */
+        public Builder( String name, int[] dims, int attributes )
+        {
+            if ( dims.length != 2 )
+            {
+                throw new IllegalArgumentException("Sparse arrays have two dimensions.");
+            }
+            this.name = name;
+            this.dims = dims.clone();
+            this.attributes = attributes;
+        }
+
+        /**
+         * Sets the real part of element (m,n).
+         *
+         * @return this builder
+         */
+        public Builder setReal( double value, int m, int n )
+        {
+            add( value, m, n, false );
+            return this;
+        }
+
+        /**
+         * Sets the imaginary part of element (m,n).
+         *
+         * @return this builder
+         */
+        public Builder setImaginary( double value, int m, int n )
+        {
+            if ( (attributes & MLArray.mtFLAG_COMPLEX) == 0 )
+            {
+                throw new IllegalStateException("Array is not complex");
+            }
+            add( value, m, n, true );
+            return this;
+        }
+
+        private void add( double value, int m, int n, boolean isImaginary )
+        {
+            if ( m < 0 || m >= dims[0] || n < 0 || n >= dims[1] )
+            {
+                throw new IndexOutOfBoundsException("Index (" + m + "," + n + ") is outside of the array dimensions.");
+            }
+            if ( size == rows.length )
+            {
+                int capacity = 2 * size;
+                rows = Arrays.copyOf( rows, capacity );
+                columns = Arrays.copyOf( columns, capacity );
+                values = Arrays.copyOf( values, capacity );
+                imaginary = Arrays.copyOf( imaginary, capacity );
+            }
+            rows[size] = m;
+            columns[size] = n;
+            values[size] = value;
+            imaginary[size] = isImaginary;
+            size++;
+        }
+
+        /**
+         * Creates the array. The builder can be used further.
+         *
+         * @return the sparse array, with <code>nzmax</code> equal to the
+         *         number of non-zero values
+         */
+        public MLSparse build()
+        {
+            int numberOfColumns = dims[1];
+
+            //sort by column, stable
+            int[] start = new int[numberOfColumns + 1];
+            for ( int i = 0; i < size; i++ )
+            {
+                start[ columns[i] + 1 ]++;
+            }
+            for ( int n = 0; n < numberOfColumns; n++ )
+            {
+                start[n+1] += start[n];
+            }
+            int[] next = start.clone();
+            //row in the upper, insertion order in the lower half
+            long[] keys = new long[size];
+            for ( int i = 0; i < size; i++ )
+            {
+                keys[ next[ columns[i] ]++ ] = ( (long) rows[i] << 32 ) | i;
+            }
+
+            //sort by row within the columns, merge elements set more than once
+            boolean complex = ( (attributes & MLArray.mtFLAG_COMPLEX) != 0 );
+            int[] ir = new int[size];
+            int[] jc = new int[numberOfColumns + 1];
+            double[] pr = new double[size];
+            double[] pi = complex ? new double[size] : null;
+            int nnz = 0;
+            for ( int n = 0; n < numberOfColumns; n++ )
+            {
+                Arrays.sort( keys, start[n], start[n+1] );
+                int previousRow = -1;
+                for ( int k = start[n]; k < start[n+1]; k++ )
+                {
+                    int row = (int) ( keys[k] >>> 32 );
+                    int i = (int) keys[k];
+                    if ( row != previousRow )
+                    {
+                        ir[nnz] = row;
+                        nnz++;
+                        previousRow = row;
+                    }
+                    if ( imaginary[i] )
+                    {
+                        pi[nnz-1] = values[i];
+                    }
+                    else
+                    {
+                        pr[nnz-1] = values[i];
+                    }
+                }
+                jc[n+1] = nnz;
+            }
+            return new MLSparse( name, dims, attributes, nnz, Arrays.copyOf( ir, nnz ), jc,
+                    Arrays.copyOf( pr, nnz ), complex ? Arrays.copyOf( pi, nnz ) : null );
+        }
+    }
+
 
-}
\ No newline at end of file
+}
@@ -1,7 +1,9 @@
 package com.jmatio.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -11,8 +13,10 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -20,9 +24,13 @@ import org.junit.Test;
 
 import sun.org.mozilla.javascript.internal.UintMap;
 
+import com.jmatio.io.CodecPool;
+import com.jmatio.io.MatFileColumnWriter;
 import com.jmatio.io.MatFileFilter;
 import com.jmatio.io.MatFileIncrementalWriter;
+import com.jmatio.io.MatFilePatcher;
 import com.jmatio.io.MatFileReader;
+import com.jmatio.io.MatFileWriteOptions;
 import com.jmatio.io.MatFileWriter;
 import com.jmatio.types.MLArray;
 import com.jmatio.types.MLCell;
@@ -553,6 +561,59 @@ public class MatIOTest
         }
     }
     
+    /**
+     * Tests building a <code>MLSparse</code> from unsorted elements.
+     * 
+     * @throws IOException
+     */
+    @Test public void testMLSparseBuilder() throws IOException
+    {
+        String name = "sparsearr";
+        String fileName = "mlsparse_builder.mat";
+        
+        MLSparse.Builder builder = new MLSparse.Builder( name, new int[] {3, 2}, MLArray.mtFLAG_COMPLEX );
+        builder.setImaginary( 6.0, 2, 1 );
+        builder.setReal( 4.0, 0, 1 );
+        builder.setReal( 2.0, 1, 0 );
+        builder.setReal( 9.0, 0, 0 );
+        builder.setImaginary( 2.0, 1, 0 );
+        builder.setReal( 1.3, 0, 0 );
+        MLSparse built = builder.build();
+        
+        MLSparse mlSparse = new MLSparse(name, new int[] {3, 2}, MLArray.mtFLAG_COMPLEX, 4);
+        mlSparse.setReal(1.3, 0, 0);
+        mlSparse.setReal(4.0, 0, 1);
+        mlSparse.setReal(2.0, 1, 0);
+        mlSparse.setImaginary(2.0, 1, 0);
+        mlSparse.setImaginary(6.0, 2, 1);
+        assertEquals( mlSparse, built );
+        assertEquals( mlSparse.hashCode(), built.hashCode() );
+        
+        //the imaginary part is compared both ways
+        MLSparse real = new MLSparse(name, new int[] {3, 2}, 0, 4);
+        real.setReal(1.3, 0, 0);
+        real.setReal(4.0, 0, 1);
+        real.setReal(2.0, 1, 0);
+        real.setReal(0.0, 2, 1);
+        assertFalse( real.equals( built ) );
+        assertFalse( built.equals( real ) );
+        
+        //compressed sparse column arrays
+        assertEquals( 4, built.getNZ() );
+        assertTrue( Arrays.equals( new int[] { 0, 1, 0, 2 }, built.getIR() ) );
+        assertTrue( Arrays.equals( new int[] { 0, 2, 4 }, built.getJC() ) );
+        assertTrue( Arrays.equals( new double[] { 1.3, 2.0, 4.0, 0.0 }, built.getPR() ) );
+        assertTrue( Arrays.equals( new double[] { 0.0, 2.0, 0.0, 6.0 }, built.getPI() ) );
+        
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        list.add( built );
+        new MatFileWriter( fileName, list );
+        MLSparse read = (MLSparse) new MatFileReader( fileName ).getMLArray( name );
+        assertEquals( built, read );
+        assertEquals( 6.0, read.getImaginary( 2, 1 ), 0.0 );
+        assertEquals( 0.0, read.getReal( 2, 0 ), 0.0 );
+    }
+    
     /**
      * Regression bug
      * 
@@ -685,6 +746,649 @@ public class MatIOTest
     }
     
     
+    /**
+     * Tests reading the index of a file and reading arrays only when they
+     * are requested.
+     * 
+     * @throws IOException
+     */
+    @Test 
+    public void testReadIndex() throws IOException
+    {
+        final String fileName = "index.mat";
+
+        MLDouble m1 = new MLDouble( "m1", new double[] { 1.3, 2.0, 3.0, 4.0, 5.0, 6.0 }, 3 );
+        MLChar c1 = new MLChar( "c1", "I am dummy" );
+        MLDouble m2 = new MLDouble( "an_array_with_a_rather_long_name_to_read_from_the_header", new double[] { 3.1415 }, 1 );
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        list.add( m1 );
+        list.add( c1 );
+        list.add( m2 );
+        new MatFileWriter( fileName, list );
+        
+        MatFileReader mfr = new MatFileReader();
+        Set<String> names = mfr.readIndex( new File(fileName) );
+        assertEquals( Arrays.asList("m1", "c1", m2.getName()), new ArrayList<String>(names) );
+        
+        //arrays are read on request
+        assertEquals("Test if value red from file equals value stored", m2, mfr.getMLArray( m2.getName() ));
+        assertEquals("Test if value red from file equals value stored", m1, mfr.getMLArray( "m1" ));
+        assertEquals( null, mfr.getMLArray( "none" ) );
+        
+        //the content keeps the order of the file
+        Map<String, MLArray> content = mfr.getContent();
+        assertEquals( Arrays.asList("m1", "c1", m2.getName()), new ArrayList<String>(content.keySet()) );
+        assertEquals( "I am dummy", ((MLChar)content.get("c1")).getString(0) );
+        
+        //filtered index
+        MatFileFilter filter = new MatFileFilter();
+        filter.addArrayName( "c1" );
+        names = mfr.readIndex( new File(fileName), filter );
+        assertEquals( 1, names.size() );
+        assertEquals( 1, mfr.getContent().size() );
+    }
+    
+    /**
+     * Tests that uncompressed double arrays read with
+     * <code>MEMORY_MAPPED_ARRAYS</code> use the mapped file as storage and
+     * are copied when they are changed.
+     * 
+     * @throws IOException
+     */
+    @Test 
+    public void testMemoryMappedArrays() throws IOException
+    {
+        final String fileName = "mapped.mat";
+        
+        MLDouble m1 = new MLDouble( "m1", new double[] { 1.3, 2.0, 3.0, 4.0, 5.0, 6.0 }, 3 );
+        MLChar c1 = new MLChar( "c1", "I am dummy" );
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        list.add( m1 );
+        list.add( c1 );
+        new MatFileWriter( "compressed.mat", list );
+        writeUncompressed( new File("compressed.mat"), new File(fileName) );
+        
+        MatFileReader mfr = new MatFileReader();
+        Map<String, MLArray> content = mfr.read( new File(fileName), MatFileReader.MEMORY_MAPPED_ARRAYS );
+        MLDouble mapped = (MLDouble) content.get( "m1" );
+        assertEquals("Test if value red from file equals value stored", m1, mapped );
+        assertEquals( "I am dummy", ((MLChar)content.get("c1")).getString(0) );
+        assertTrue( "storage is the mapped file", mapped.getRealByteBuffer().isReadOnly() );
+        
+        //copy on write
+        mapped.set( 7.0, 1, 1 );
+        assertTrue( !mapped.getRealByteBuffer().isReadOnly() );
+        assertEquals( 7.0, mapped.get( 1, 1 ), 0.0 );
+        assertEquals( 1.3, mapped.get( 0, 0 ), 0.0 );
+        assertEquals( m1, new MatFileReader( fileName ).getMLArray( "m1" ) );
+    }
+    
+    /**
+     * Rewrites a MAT-file written by <code>MatFileWriter</code> with
+     * uncompressed elements.
+     */
+    private static void writeUncompressed( File compressed, File uncompressed ) throws IOException
+    {
+        byte[] bytes = new byte[(int)compressed.length()];
+        java.io.DataInputStream in = new java.io.DataInputStream( new java.io.FileInputStream(compressed) );
+        in.readFully( bytes );
+        in.close();
+        
+        java.io.FileOutputStream out = new java.io.FileOutputStream( uncompressed );
+        out.write( bytes, 0, 128 );
+        ByteBuffer buf = ByteBuffer.wrap( bytes );
+        buf.position( 128 );
+        while ( buf.remaining() > 0 )
+        {
+            buf.getInt(); //miCOMPRESSED
+            int size = buf.getInt();
+            java.util.zip.InflaterInputStream iis = new java.util.zip.InflaterInputStream(
+                    new ByteArrayInputStream( bytes, buf.position(), size ) );
+            byte[] chunk = new byte[1024];
+            int n;
+            while ( (n = iis.read(chunk)) > 0 )
+            {
+                out.write( chunk, 0, n );
+            }
+            buf.position( buf.position() + size );
+        }
+        out.close();
+    }
+    
+    /**
+     * Tests reading large compressed double arrays, the inflated data is
+     * used as array storage.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testReadCompressedDouble() throws IOException
+    {
+        final String fileName = "inflated.mat";
+        
+        double[] src = new double[500 * 40];
+        for ( int i = 0; i < src.length; i++ )
+        {
+            src[i] = Math.sin( i );
+        }
+        MLDouble m1 = new MLDouble( "m1", src, 500 );
+        MLDouble m2 = new MLDouble( "m2", new int[] { 1, 2 }, MLArray.mxDOUBLE_CLASS, MLArray.mtFLAG_COMPLEX );
+        m2.setReal( 1.0, 0 );
+        m2.setReal( 2.0, 1 );
+        m2.setImaginary( 3.0, 0 );
+        m2.setImaginary( 4.0, 1 );
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        list.add( m1 );
+        list.add( m2 );
+        new MatFileWriter( fileName, list );
+        
+        for ( int policy : new int[] { MatFileReader.HEAP_BYTE_BUFFER, MatFileReader.MEMORY_MAPPED_FILE } )
+        {
+            Map<String, MLArray> content = new MatFileReader().read( new File(fileName), policy );
+            assertEquals( m1, content.get( "m1" ) );
+            assertEquals( m2, content.get( "m2" ) );
+            
+            MLDouble inflated = (MLDouble) content.get( "m1" );
+            inflated.set( 7.0, 499, 39 );
+            assertEquals( 7.0, inflated.get( 499, 39 ), 0.0 );
+            assertEquals( src[0], inflated.get( 0, 0 ), 0.0 );
+        }
+    }
+    
+    /**
+     * Tests reading a compressed little-endian file, as written by MATLAB.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testReadCompressedLittleEndian() throws IOException
+    {
+        final String fileName = "little.mat";
+        
+        //2x2 complex double array "m1"
+        ByteBuffer matrix = ByteBuffer.allocate( 8 + 16 + 16 + 8 + 2 * (8 + 32) );
+        matrix.order( java.nio.ByteOrder.LITTLE_ENDIAN );
+        matrix.putInt( 14 ).putInt( matrix.capacity() - 8 ); //miMATRIX
+        matrix.putInt( 6 ).putInt( 8 ).putInt( MLArray.mxDOUBLE_CLASS | MLArray.mtFLAG_COMPLEX ).putInt( 0 );
+        matrix.putInt( 5 ).putInt( 8 ).putInt( 2 ).putInt( 2 );
+        matrix.putInt( 1 | (2 << 16) ).put( "m1".getBytes() ).putShort( (short)0 );
+        matrix.putInt( 9 ).putInt( 32 );
+        matrix.putDouble( 1.0 ).putDouble( 2.0 ).putDouble( 3.0 ).putDouble( 4.0 );
+        matrix.putInt( 9 ).putInt( 32 );
+        matrix.putDouble( -1.0 ).putDouble( -2.0 ).putDouble( -3.0 ).putDouble( -4.0 );
+        
+        java.util.zip.Deflater deflater = new java.util.zip.Deflater();
+        deflater.setInput( matrix.array() );
+        deflater.finish();
+        byte[] compressed = new byte[1024];
+        int size = deflater.deflate( compressed );
+        deflater.end();
+        
+        ByteBuffer file = ByteBuffer.allocate( 128 + 8 + size );
+        file.order( java.nio.ByteOrder.LITTLE_ENDIAN );
+        byte[] description = "MATLAB 5.0 MAT-file, little-endian test".getBytes();
+        file.put( description );
+        Arrays.fill( file.array(), description.length, 124, (byte)' ' );
+        file.position( 124 );
+        file.putShort( (short)0x0100 ).put( (byte)'I' ).put( (byte)'M' );
+        file.putInt( 15 ).putInt( size ).put( compressed, 0, size ); //miCOMPRESSED
+        java.io.FileOutputStream out = new java.io.FileOutputStream( fileName );
+        out.write( file.array() );
+        out.close();
+        
+        MLDouble m1 = (MLDouble) new MatFileReader( fileName ).getMLArray( "m1" );
+        assertEquals( 2, m1.getM() );
+        assertEquals( 2, m1.getN() );
+        assertTrue( m1.isComplex() );
+        assertEquals( 3.0, m1.getReal( 0, 1 ), 0.0 );
+        assertEquals( -2.0, m1.getImaginary( 1, 0 ), 0.0 );
+    }
+    
+    /**
+     * Tests inflating the compressed elements in parallel.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testReadParallel() throws IOException
+    {
+        final String fileName = "parallel.mat";
+        
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        for ( int k = 0; k < 8; k++ )
+        {
+            double[] src = new double[100 * 20];
+            for ( int i = 0; i < src.length; i++ )
+            {
+                src[i] = k * 1000.0 + i;
+            }
+            list.add( new MLDouble( "m" + k, src, 100 ) );
+        }
+        list.add( new MLChar( "c1", "I am dummy" ) );
+        new MatFileWriter( fileName, list );
+        
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool( 4 );
+        try
+        {
+            for ( int policy : new int[] { MatFileReader.HEAP_BYTE_BUFFER, MatFileReader.MEMORY_MAPPED_FILE } )
+            {
+                MatFileReader mfr = new MatFileReader();
+                mfr.setExecutor( executor );
+                Map<String, MLArray> content = mfr.read( new File(fileName), policy );
+                assertEquals( list.size(), content.size() );
+                int k = 0;
+                for ( MLArray array : content.values() )
+                {
+                    assertEquals( list.get(k++), array );
+                }
+            }
+            
+            //lazy mode
+            MatFileReader mfr = new MatFileReader();
+            mfr.setExecutor( executor );
+            mfr.readIndex( new File(fileName) );
+            assertEquals( list.get(3), mfr.getMLArray( "m3" ) );
+            Map<String, MLArray> content = mfr.getContent();
+            assertEquals( list.size(), content.size() );
+            int k = 0;
+            for ( MLArray array : content.values() )
+            {
+                assertEquals( list.get(k++), array );
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * Tests that no inflating task is left running on the mapped file when
+     * a parallel read fails.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testReadParallelError() throws IOException
+    {
+        final String fileName = "parallelError.mat";
+        
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        for ( int k = 0; k < 8; k++ )
+        {
+            double[] src = new double[200 * 100];
+            for ( int i = 0; i < src.length; i++ )
+            {
+                src[i] = Math.sin( k * 1000.0 + i );
+            }
+            list.add( new MLDouble( "m" + k, src, 200 ) );
+        }
+        new MatFileWriter( fileName, list );
+        
+        //corrupt the compressed data of the first element
+        java.io.RandomAccessFile raf = new java.io.RandomAccessFile( fileName, "rw" );
+        try
+        {
+            raf.seek( 128 + 8 + 16 );
+            raf.write( new byte[64] );
+        }
+        finally
+        {
+            raf.close();
+        }
+        
+        final java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool( 4 );
+        final List<Runnable> tasks = Collections.synchronizedList( new ArrayList<Runnable>() );
+        try
+        {
+            MatFileReader mfr = new MatFileReader();
+            mfr.setExecutor( new java.util.concurrent.Executor()
+            {
+                public void execute(Runnable command)
+                {
+                    tasks.add( command );
+                    executor.execute( command );
+                }
+            } );
+            try
+            {
+                mfr.read( new File(fileName), MatFileReader.MEMORY_MAPPED_FILE );
+                fail( "the first element is corrupt" );
+            }
+            catch ( IOException e )
+            {
+                //expected
+            }
+            //every task has run to its end, none is left reading the file
+            assertEquals( list.size(), tasks.size() );
+            for ( Runnable task : tasks )
+            {
+                java.util.concurrent.Future<?> future = (java.util.concurrent.Future<?>) task;
+                assertTrue( future.isDone() );
+                assertFalse( future.isCancelled() );
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * Tests the primitive bulk accessors of <code>MLDouble</code>.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testMLDoubleBulkAccess() throws IOException
+    {
+        //[ 1.0 4.0 ;
+        //  2.0 5.0 ;
+        //  3.0 6.0 ]
+        double[] src = new double[] { 1.0, 2.0, 3.0, 4.0, 5.0, 6.0 };
+        MLDouble m1 = new MLDouble( "m1", src, 3 );
+        
+        assertTrue( Arrays.equals( src, m1.exportReal() ) );
+        assertTrue( Arrays.equals( new double[] { 4.0, 5.0, 6.0 }, m1.getColumn( 1 ) ) );
+        assertTrue( Arrays.equals( new double[] { 2.0, 5.0 }, m1.getRow( 1 ) ) );
+        assertEquals( 6.0, m1.getRealDoubleBuffer().get( 5 ), 0.0 );
+        assertEquals( new MLDouble( "m1", new Double[] { 1.0, 2.0, 3.0, 4.0, 5.0, 6.0 }, 3 ), m1 );
+        
+        m1.setColumn( new double[] { 7.0, 8.0, 9.0 }, 0 );
+        m1.setRow( new double[] { -1.0, -2.0 }, 2 );
+        assertTrue( Arrays.equals( new double[] { 7.0, 8.0, -1.0, 4.0, 5.0, -2.0 }, m1.exportReal() ) );
+        
+        //read-only storage is copied before it is changed
+        final String fileName = "bulk.mat";
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        list.add( m1 );
+        new MatFileWriter( "bulk_compressed.mat", list );
+        writeUncompressed( new File("bulk_compressed.mat"), new File(fileName) );
+        MLDouble mapped = (MLDouble) new MatFileReader().read( new File(fileName),
+                MatFileReader.MEMORY_MAPPED_ARRAYS ).get( "m1" );
+        assertTrue( mapped.getRealDoubleBuffer().isReadOnly() );
+        mapped.importReal( src );
+        assertTrue( Arrays.equals( src, mapped.exportReal() ) );
+        assertTrue( Arrays.equals( new double[] { 7.0, 8.0, -1.0, 4.0, 5.0, -2.0 },
+                ((MLDouble) new MatFileReader( fileName ).getMLArray( "m1" )).exportReal() ) );
+    }
+    
+    /**
+     * Tests writing a matrix column by column.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testColumnWriter() throws IOException
+    {
+        final String fileName = "columns.mat";
+        
+        double[] src = new double[3 * 5];
+        for ( int i = 0; i < src.length; i++ )
+        {
+            src[i] = i * 0.5;
+        }
+        MLDouble expected = new MLDouble( "X", src, 3 );
+        
+        MatFileColumnWriter writer = new MatFileColumnWriter( new File(fileName), "X", 3 );
+        writer.write( new MLChar( "c1", "I am dummy" ) );
+        for ( int n = 0; n < 5; n++ )
+        {
+            writer.appendColumn( Arrays.copyOfRange( src, 3 * n, 3 * n + 3 ) );
+        }
+        assertEquals( 5, writer.getColumns() );
+        writer.close();
+        
+        MatFileReader mfr = new MatFileReader( fileName );
+        assertEquals( expected, mfr.getMLArray( "X" ) );
+        assertEquals( "I am dummy", ((MLChar) mfr.getMLArray( "c1" )).getString( 0 ) );
+        Map<String, MLArray> mapped = new MatFileReader().read( new File(fileName),
+                MatFileReader.MEMORY_MAPPED_ARRAYS );
+        assertEquals( expected, mapped.get( "X" ) );
+        
+        //no columns, long name
+        writer = new MatFileColumnWriter( new File(fileName), "empty_matrix", 64 );
+        writer.close();
+        MLArray empty = new MatFileReader( fileName ).getMLArray( "empty_matrix" );
+        assertEquals( 64, empty.getM() );
+        assertEquals( 0, empty.getN() );
+    }
+    
+    /**
+     * Tests the compression level and parallel compression of the writers.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testWriteOptions() throws IOException
+    {
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        for ( int k = 0; k < 6; k++ )
+        {
+            double[] src = new double[64 * 100];
+            for ( int i = 0; i < src.length; i++ )
+            {
+                src[i] = k + i % 64;
+            }
+            list.add( new MLDouble( "E" + k, src, 64 ) );
+        }
+        list.add( new MLChar( "startTime", "2015-10-01 00:00:00" ) );
+        
+        //uncompressed
+        File uncompressed = new File( "options_uncompressed.mat" );
+        new MatFileWriter( uncompressed, list,
+                new MatFileWriteOptions().setCompressionLevel( java.util.zip.Deflater.NO_COMPRESSION ) );
+        assertTrue( uncompressed.length() > 6 * 64 * 100 * 8 );
+        MLDouble mapped = (MLDouble) new MatFileReader().read( uncompressed,
+                MatFileReader.MEMORY_MAPPED_ARRAYS ).get( "E0" );
+        assertTrue( "uncompressed storage is mapped", mapped.getRealByteBuffer().isReadOnly() );
+        
+        //parallel, best speed
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool( 3 );
+        File parallel = new File( "options_parallel.mat" );
+        try
+        {
+            new MatFileWriter( parallel, list, new MatFileWriteOptions()
+                    .setCompressionLevel( java.util.zip.Deflater.BEST_SPEED ).setExecutor( executor ) );
+            MatFileIncrementalWriter writer = new MatFileIncrementalWriter( new File("options_incremental.mat"),
+                    new MatFileWriteOptions().setExecutor( executor ) );
+            writer.write( list );
+            writer.close();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        assertTrue( parallel.length() < uncompressed.length() );
+        
+        for ( String fileName : new String[] { uncompressed.getName(), parallel.getName(), "options_incremental.mat" } )
+        {
+            Map<String, MLArray> content = new MatFileReader( fileName ).getContent();
+            assertEquals( list.size(), content.size() );
+            int k = 0;
+            for ( MLArray array : content.values() )
+            {
+                assertEquals( list.get(k++), array );
+            }
+        }
+    }
+    
+    /**
+     * Tests writing numeric arrays in place into an existing file.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testPatch() throws IOException
+    {
+        File file = new File( "patch.mat" );
+        MatFileWriteOptions uncompressed = new MatFileWriteOptions()
+                .setCompressionLevel( java.util.zip.Deflater.NO_COMPRESSION );
+
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        list.add( new MLDouble( "E", new double[] { 1, 2, 3, 4, 5, 6 }, 3 ) );
+        list.add( new MLInt64( "n", new long[] { 7, 8 }, 1 ) );
+        new MatFileWriter( file, list, uncompressed );
+        long length = file.length();
+
+        //same shapes, patched
+        list.clear();
+        list.add( new MLDouble( "E", new double[] { 6, 5, 4, 3, 2, 1 }, 3 ) );
+        list.add( new MLInt64( "n", new long[] { -1, Long.MAX_VALUE }, 1 ) );
+        assertTrue( MatFilePatcher.write( file, list, uncompressed ) );
+        assertEquals( length, file.length() );
+        MatFileReader mfr = new MatFileReader( file );
+        assertEquals( list.get(0), mfr.getMLArray( "E" ) );
+        assertEquals( list.get(1), mfr.getMLArray( "n" ) );
+
+        //resized array, rewritten
+        list.set( 0, new MLDouble( "E", new double[] { 1, 2, 3, 4 }, 2 ) );
+        assertFalse( MatFilePatcher.write( file, list, uncompressed ) );
+        assertEquals( list.get(0), new MatFileReader( file ).getMLArray( "E" ) );
+
+        //fewer arrays than in the file, rewritten
+        assertFalse( MatFilePatcher.write( file, new ArrayList<MLArray>( list.subList( 0, 1 ) ), uncompressed ) );
+        assertEquals( 1, new MatFileReader( file ).getContent().size() );
+
+        //compressed, rewritten
+        new MatFileWriter( file, list );
+        assertFalse( MatFilePatcher.write( file, list, uncompressed ) );
+        assertTrue( MatFilePatcher.write( file, list, uncompressed ) );
+
+        //single array
+        MatFilePatcher patcher = new MatFilePatcher( file );
+        try
+        {
+            assertFalse( patcher.canPatch( new MLDouble( "E", new double[] { 0, 0, 0, 0 }, 4 ) ) );
+            assertFalse( patcher.canPatch( new MLChar( "E", "abcd" ) ) );
+            patcher.patch( new MLDouble( "E", new double[] { 9, 9, 9, 9 }, 2 ) );
+        }
+        finally
+        {
+            patcher.close();
+        }
+        assertEquals( 9.0, ((MLDouble) new MatFileReader( file ).getMLArray( "E" )).get( 1, 1 ), 0.0 );
+
+        //range of elements, the other elements keep their values
+        patcher = new MatFilePatcher( file );
+        try
+        {
+            patcher.patch( new MLDouble( "E", new double[] { 0, 0, 5, 0 }, 2 ), 2, 3 );
+        }
+        finally
+        {
+            patcher.close();
+        }
+        mfr = new MatFileReader( file );
+        assertEquals( 9.0, ((MLDouble) mfr.getMLArray( "E" )).get( 1, 0 ), 0.0 );
+        assertEquals( 5.0, ((MLDouble) mfr.getMLArray( "E" )).get( 0, 1 ), 0.0 );
+        assertEquals( 9.0, ((MLDouble) mfr.getMLArray( "E" )).get( 1, 1 ), 0.0 );
+
+        //little-endian file with a name in the small data element format
+        ByteBuffer buf = ByteBuffer.allocate( 128 + 8 + 64 ).order( java.nio.ByteOrder.LITTLE_ENDIAN );
+        buf.put( "MATLAB 5.0 MAT-file, written by hand".getBytes() );
+        while ( buf.position() < 116 )
+        {
+            buf.put( (byte) ' ' );
+        }
+        buf.position( 124 );
+        buf.putShort( (short) 0x0100 ).put( (byte) 'I' ).put( (byte) 'M' );
+        buf.putInt( 14 ).putInt( 64 );
+        buf.putInt( 6 ).putInt( 8 ).putInt( MLArray.mxDOUBLE_CLASS ).putInt( 0 );
+        buf.putInt( 5 ).putInt( 8 ).putInt( 2 ).putInt( 1 );
+        buf.putInt( 1 << 16 | 1 ).put( (byte) 'x' ).put( new byte[3] );
+        buf.putInt( 9 ).putInt( 16 ).putDouble( 1.5 ).putDouble( -2.5 );
+        java.io.FileOutputStream fos = new java.io.FileOutputStream( file );
+        fos.write( buf.array() );
+        fos.close();
+        assertEquals( -2.5, ((MLDouble) new MatFileReader( file ).getMLArray( "x" )).get( 1 ), 0.0 );
+
+        list.clear();
+        list.add( new MLDouble( "x", new double[] { 3.25, Math.PI }, 2 ) );
+        assertTrue( MatFilePatcher.write( file, list, uncompressed ) );
+        assertEquals( list.get(0), new MatFileReader( file ).getMLArray( "x" ) );
+
+        patcher = new MatFilePatcher( file );
+        try
+        {
+            patcher.patch( new MLDouble( "x", new double[] { 0, 7.5 }, 2 ), 1, 2 );
+        }
+        finally
+        {
+            patcher.close();
+        }
+        mfr = new MatFileReader( file );
+        assertEquals( 3.25, ((MLDouble) mfr.getMLArray( "x" )).get( 0 ), 0.0 );
+        assertEquals( 7.5, ((MLDouble) mfr.getMLArray( "x" )).get( 1 ), 0.0 );
+
+        //int32 array, as written by MATLAB; MatFileWriter can not write it
+        buf = ByteBuffer.allocate( 128 + 8 + 56 );
+        buf.put( "MATLAB 5.0 MAT-file, written by hand".getBytes() );
+        while ( buf.position() < 116 )
+        {
+            buf.put( (byte) ' ' );
+        }
+        buf.position( 124 );
+        buf.putShort( (short) 0x0100 ).put( (byte) 'M' ).put( (byte) 'I' );
+        buf.putInt( 14 ).putInt( 56 );
+        buf.putInt( 6 ).putInt( 8 ).putInt( MLArray.mxINT32_CLASS ).putInt( 0 );
+        buf.putInt( 5 ).putInt( 8 ).putInt( 2 ).putInt( 1 );
+        buf.putInt( 1 << 16 | 1 ).put( (byte) 'n' ).put( new byte[3] );
+        buf.putInt( 5 ).putInt( 8 ).putInt( 3 ).putInt( -4 );
+        fos = new java.io.FileOutputStream( file );
+        fos.write( buf.array() );
+        fos.close();
+        assertEquals( Integer.valueOf( -4 ), ((MLInt32) new MatFileReader( file ).getMLArray( "n" )).get( 1 ) );
+
+        list.clear();
+        list.add( new MLInt32( "n", new int[] { Integer.MAX_VALUE, Integer.MIN_VALUE }, 2 ) );
+        assertTrue( MatFilePatcher.write( file, list, uncompressed ) );
+        assertEquals( 128 + 8 + 56, file.length() );
+        assertEquals( list.get(0), new MatFileReader( file ).getMLArray( "n" ) );
+    }
+
+    /**
+     * Tests that reading and writing reuses the pooled deflaters, inflaters
+     * and buffers.
+     * 
+     * @throws IOException
+     */
+    @Test
+    public void testCodecPool() throws IOException
+    {
+        final String fileName = "pool.mat";
+        double[] src = new double[64 * 100];
+        for ( int i = 0; i < src.length; i++ )
+        {
+            src[i] = i % 64;
+        }
+        ArrayList<MLArray> list = new ArrayList<MLArray>();
+        list.add( new MLDouble( "E", src, 64 ) );
+        list.add( new MLChar( "startTime", "2015-10-01 00:00:00" ) );
+        
+        CodecPool.clear();
+        long misses = 0;
+        for ( int round = 0; round < 3; round++ )
+        {
+            new MatFileWriter().write( new File(fileName), list );
+            assertEquals( list.get(0), new MatFileReader( fileName ).getMLArray( "E" ) );
+            Map<String, MLArray> content = new MatFileReader().read( new File(fileName),
+                    MatFileReader.DIRECT_BYTE_BUFFER );
+            assertEquals( list.get(0), content.get( "E" ) );
+            new MatFileWriter( new File(fileName), list,
+                    new MatFileWriteOptions().setCompressionLevel( java.util.zip.Deflater.NO_COMPRESSION ) );
+            assertEquals( list.get(0), new MatFileReader( fileName ).getMLArray( "E" ) );
+            if ( round == 1 )
+            {
+                misses = CodecPool.getMisses();
+            }
+        }
+        //steady state, everything comes from the pool
+        assertEquals( misses, CodecPool.getMisses() );
+        assertTrue( CodecPool.getHits() > 0 );
+        CodecPool.clear();
+    }
+    
     /**
      * Regression bug: Test writing several arrays into a single file.
      * 
@@ -0,0 +1,197 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Messages and timings of the operations of the wrappers.
+ * <p>
+ * An operation, e.g. Ewrapper.finish, is declared once as a constant of its class
+ * and named there. The parts of a message are only concatenated when the message is
+ * printed or thrown, so a call that succeeds does not build any strings. Each
+ * operation counts its calls, failures and the time spent in it.
+ * <p>
+ * The system property org.openda.model_RRMDA_Themi.diagnostics enables the output: <br>
+ * info: informational messages, e.g. the files written, are printed. <br>
+ * timings: the timings of all operations are printed when the JVM exits. <br>
+ * Both are enabled with info,timings. Warnings are always printed.
+ * <p>
+ * copyright hydrosolutions ltd. 2015 <br>
+ * license   see LICENSE
+ *
+ */
+final class Diagnostics {
+
+	static final String PROPERTY = "org.openda.model_RRMDA_Themi.diagnostics";
+
+	private static final List<Operation> operations = new CopyOnWriteArrayList<Operation>();
+	private static volatile boolean info = false;
+
+	static {
+		boolean timings = false;
+		for (String flag : System.getProperty(PROPERTY, "").split(",")) {
+			if (flag.trim().equals("info")) {
+				info = true;
+			} else if (flag.trim().equals("timings")) {
+				timings = true;
+			}
+		}
+		if (timings) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					System.out.print(report());
+				}
+			});
+		}
+	}
+
+	private Diagnostics() {
+	}
+
+	/**
+	 * An operation of a wrapper, e.g. the finish method of a class.
+	 */
+	static final class Operation {
+
+		private final String name;
+		private final AtomicLong calls = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		private Operation(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return the start time of a call, to be passed to stop.
+		 */
+		long start() {
+			return System.nanoTime();
+		}
+
+		/**
+		 * Count a call that has been completed.
+		 *
+		 * @param start the value returned by start.
+		 */
+		void stop(long start) {
+			long elapsed = System.nanoTime() - start;
+			calls.incrementAndGet();
+			totalNanos.addAndGet(elapsed);
+			long max = maxNanos.get();
+			while (elapsed > max && !maxNanos.compareAndSet(max, elapsed)) {
+				max = maxNanos.get();
+			}
+		}
+
+		/**
+		 * Print an informational message if enabled.
+		 *
+		 * @param parts parts of the message, concatenated only if it is printed.
+		 */
+		void info(Object... parts) {
+			if (info) {
+				System.out.println(message(parts));
+			}
+		}
+
+		/**
+		 * Print a warning.
+		 *
+		 * @param parts parts of the message.
+		 */
+		void warn(Object... parts) {
+			System.out.println(message(parts));
+		}
+
+		/**
+		 * Count a failure and create the exception to be thrown.
+		 *
+		 * @param parts parts of the message.
+		 * @return the exception, its message starts with the name of the operation.
+		 */
+		RuntimeException error(Object... parts) {
+			failures.incrementAndGet();
+			return new RuntimeException(message(parts));
+		}
+
+		String getName() {
+			return name;
+		}
+
+		long getCalls() {
+			return calls.get();
+		}
+
+		long getFailures() {
+			return failures.get();
+		}
+
+		long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		private String message(Object[] parts) {
+			StringBuilder message = new StringBuilder(name).append("(): ");
+			for (Object part : parts) {
+				message.append(part);
+			}
+			return message.toString();
+		}
+	}
+
+	/**
+	 * Declare an operation.
+	 *
+	 * @param name name of the operation, class and method, e.g. Ewrapper.finish.
+	 * @return the operation.
+	 */
+	static Operation operation(String name) {
+		Operation operation = new Operation(name);
+		operations.add(operation);
+		return operation;
+	}
+
+	/**
+	 * @param enabled true to print informational messages.
+	 */
+	static void setInfo(boolean enabled) {
+		info = enabled;
+	}
+
+	/**
+	 * @return true if informational messages are printed.
+	 */
+	static boolean isInfo() {
+		return info;
+	}
+
+	/**
+	 * @return the timings of the operations that have been called, one line each.
+	 */
+	static String report() {
+		StringBuilder report = new StringBuilder();
+		String lineSeparator = System.getProperty("line.separator");
+		for (Operation operation : operations) {
+			long calls = operation.getCalls();
+			if (calls == 0 && operation.getFailures() == 0) {
+				continue;
+			}
+			double total = operation.getTotalNanos() / 1e6;
+			report.append(String.format(Locale.ROOT, "%s: %d calls, %d failed, total %.3f ms, mean %.3f ms, max %.3f ms",
+					operation.getName(), calls, operation.getFailures(), total,
+					calls == 0 ? 0.0 : total / calls, operation.getMaxNanos() / 1e6));
+			report.append(lineSeparator);
+		}
+		return report.toString();
+	}
+
+}
@@ -0,0 +1,185 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+
+import com.jmatio.io.MatFilePatcher;
+import com.jmatio.io.MatFileWriteOptions;
+import com.jmatio.types.MLArray;
+import com.jmatio.types.MLDouble;
+
+/**
+ * Matrix of an ensemble, shared by the members in one JVM and written to a
+ * .mat file once all members have contributed their column.
+ * <p>
+ * Each member copies its column into its own part of the matrix, no lock is
+ * taken. The member that completes the matrix writes the file and then starts
+ * the next round, so the file is written once per analysis step. A member that
+ * contributes to the next step while the file is being written waits until the
+ * next round has started. If the write fails, the contribution of the member
+ * that completed the round is withdrawn, so that member can contribute again
+ * to retry the write with the columns of the others. A member can contribute
+ * only once per round; a member contributing again to an incomplete round
+ * means that the previous analysis is incomplete, which is reported with the
+ * members that did not contribute. Columns of the matrix beyond the ensemble
+ * size are filled with the columns of the members, repeated, so the matrix
+ * keeps the shape the model expects.
+ * <p>
+ * copyright hydrosolutions ltd. 2015 <br>
+ * license   see LICENSE
+ *
+ */
+class EnsembleMatrix {
+
+	// Shared matrices, keyed by the canonical path of the output file.
+	private static final ConcurrentHashMap<String, EnsembleMatrix> matrices =
+			new ConcurrentHashMap<String, EnsembleMatrix>();
+
+	private final File file;
+	private final String name;
+	private final int rows;
+	private final int columns;
+	private final int ensembleSize;
+	private final AtomicReference<Round> round;
+
+	/**
+	 * Contributions of one analysis step.
+	 */
+	private static class Round {
+		final double[] data;
+		final AtomicIntegerArray contributed;
+		final AtomicInteger count = new AtomicInteger();
+
+		Round(int rows, int columns, int ensembleSize) {
+			data = new double[rows * columns];
+			contributed = new AtomicIntegerArray(ensembleSize);
+		}
+	}
+
+	private EnsembleMatrix(File file, String name, int rows, int columns, int ensembleSize) {
+		this.file = file;
+		this.name = name;
+		this.rows = rows;
+		this.columns = columns;
+		this.ensembleSize = ensembleSize;
+		this.round = new AtomicReference<Round>(new Round(rows, columns, ensembleSize));
+	}
+
+	/**
+	 * Get the matrix written to a file, it is created by the first member.
+	 * All members must use the same name and dimensions.
+	 *
+	 * @param file .mat file the matrix is written to.
+	 * @param name name of the matrix in the file.
+	 * @param rows number of rows, the length of a column.
+	 * @param columns number of columns of the matrix in the file.
+	 * @param ensembleSize number of members, at most columns.
+	 * @return the shared matrix.
+	 */
+	static EnsembleMatrix get(File file, String name, int rows, int columns, int ensembleSize) {
+		if (ensembleSize < 1 || ensembleSize > columns) {
+			throw new RuntimeException("EnsembleMatrix.get(): ensemble size " + ensembleSize
+					+ " does not fit into " + columns + " columns of " + name);
+		}
+		String key;
+		try {
+			key = file.getCanonicalPath();
+		} catch (IOException e) {
+			key = file.getAbsolutePath();
+		}
+		EnsembleMatrix matrix = matrices.get(key);
+		if (matrix == null) {
+			EnsembleMatrix created = new EnsembleMatrix(new File(key), name, rows, columns, ensembleSize);
+			matrix = matrices.putIfAbsent(key, created);
+			if (matrix == null) {
+				matrix = created;
+			}
+		}
+		if (!matrix.name.equals(name) || matrix.rows != rows || matrix.columns != columns
+				|| matrix.ensembleSize != ensembleSize) {
+			throw new RuntimeException("EnsembleMatrix.get(): " + key + " is already used for a "
+					+ matrix.rows + "x" + matrix.columns + " matrix " + matrix.name + " of "
+					+ matrix.ensembleSize + " members");
+		}
+		return matrix;
+	}
+
+	/**
+	 * Contribute the column of a member. The member completing the round
+	 * writes the file before returning.
+	 *
+	 * @param member index of the member, from 0 to ensemble size - 1.
+	 * @param column values of the member, one per row.
+	 * @return true if this call wrote the file.
+	 */
+	boolean contribute(int member, double[] column) {
+		if (member < 0 || member >= ensembleSize) {
+			throw new RuntimeException("EnsembleMatrix.contribute(): member " + member
+					+ " is not in the ensemble of " + ensembleSize + " members of " + file);
+		}
+		if (column.length != rows) {
+			throw new RuntimeException("EnsembleMatrix.contribute(): column of member " + member
+					+ " has " + column.length + " values, expected " + rows);
+		}
+		Round current = round.get();
+		while (!current.contributed.compareAndSet(member, 0, 1)) {
+			if (current.count.get() < ensembleSize) {
+				throw new RuntimeException("EnsembleMatrix.contribute(): the previous analysis of " + file
+						+ " is incomplete, member " + member + " contributed again before members "
+						+ missing(current) + " of " + ensembleSize + " contributed");
+			}
+			// The round is complete and being written, wait for the next one.
+			Thread.yield();
+			current = round.get();
+		}
+		System.arraycopy(column, 0, current.data, member * rows, rows);
+		// The increment publishes the column to the member completing the round.
+		if (current.count.incrementAndGet() < ensembleSize) {
+			return false;
+		}
+		try {
+			write(current.data);
+		} catch (RuntimeException e) {
+			// Withdraw the contribution, the member can contribute again to retry.
+			current.count.decrementAndGet();
+			current.contributed.set(member, 0);
+			throw e;
+		}
+		round.set(new Round(rows, columns, ensembleSize));
+		return true;
+	}
+
+	// Members that have not contributed to a round, e.g. "3, 4".
+	private String missing(Round round) {
+		StringBuilder members = new StringBuilder();
+		for (int member = 0; member < ensembleSize; member++) {
+			if (round.contributed.get(member) == 0) {
+				members.append(members.length() == 0 ? "" : ", ").append(member);
+			}
+		}
+		return members.toString();
+	}
+
+	private void write(double[] data) {
+		// Columns beyond the ensemble repeat the members.
+		for (int j = ensembleSize; j < columns; j++) {
+			System.arraycopy(data, (j % ensembleSize) * rows, data, j * rows, rows);
+		}
+		ArrayList<MLArray> list = new ArrayList<MLArray>();
+		list.add(new MLDouble(name, data, rows));
+		try {
+			MatFilePatcher.write(file, list,
+					new MatFileWriteOptions().setCompressionLevel(Deflater.NO_COMPRESSION));
+		} catch (IOException e) {
+			throw new RuntimeException("EnsembleMatrix.write(): problem writing to file " + file
+					+ " : " + e.getMessage());
+		}
+	}
+
+}
@@ -3,17 +3,22 @@ package org.openda.model_RRMDA_Themi;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Set;
+import java.util.zip.Deflater;
 
 import org.openda.blackbox.interfaces.IoObjectInterface;
+import org.openda.exchange.DoublesExchangeItem;
 import org.openda.exchange.timeseries.TimeSeries;
 import org.openda.interfaces.IExchangeItem;
 import org.openda.interfaces.IPrevExchangeItem;
+import org.openda.interfaces.IPrevExchangeItem.Role;
 
+import com.jmatio.io.MatFilePatcher;
 import com.jmatio.io.MatFileReader;
-import com.jmatio.io.MatFileWriter;
+import com.jmatio.io.MatFileWriteOptions;
 import com.jmatio.types.MLArray;
 import com.jmatio.types.MLChar;
 import com.jmatio.types.MLDouble;
@@ -49,6 +54,22 @@ import com.jmatio.types.MLDouble;
  * call to openDA to copy the contents of E.mat (among others) in the openDA working 
  * directories to the original E.mat such that the following routines in RRMDA_Themi 
  * can run successfully. 
+ * <p>
+ * The argument exchangeItems=&lt;layout&gt; selects the exchange items: <br>
+ * scalars (default): one item per state or parameter and sub-catchment, e.g. S3. <br>
+ * vector: one item E with the first column of E.mat, 8 values per sub-catchment. <br>
+ * variables: one item per state or parameter, e.g. S, with one value per sub-catchment. <br>
+ * The vector and variables layouts work for any number of sub-catchments and 
+ * exchange the values as one array per item. 
+ * <p>
+ * With the argument ensembleFile=&lt;path relative to the working directory&gt; the 
+ * members of an ensemble also write the analysed ensemble to a shared file: each 
+ * member contributes its column and the last member writes the matrix E, once per 
+ * analysis. The member index is the number at the end of the working directory name 
+ * (work0, work1, ...) minus the argument firstMember (default 0). The argument 
+ * ensembleSize=&lt;number of members&gt; is required with ensembleFile. Each member 
+ * still writes its own E.mat in full, with its column repeated in all columns, 
+ * because RRM reads the replicates from it. 
  *  
  * @author Beatrice Marti, hydrosolutions ltd., marti@hydrosolutions.ch
  *
@@ -62,16 +83,19 @@ public class Ewrapper implements IoObjectInterface {
 	String configString;
 	String fileName = null;
 	int[] readDataDim = {0,0};
-	HashMap<String, TimeSeries> items = new LinkedHashMap<String, TimeSeries>();
-	HashMap<String, IExchangeItem> map = new HashMap<>();
-	String[] exchangeItemIDs = new String[] {"Q1","S1","G1","ETact1","a11","a21","a31","Smax1",
-			 								 "Q2","S2","G2","ETact2","a12","a22","a32","Smax2",
-											 "Q3","S3","G3","ETact3","a13","a23","a33","Smax3",
-											 "Q4","S4","G4","ETact4","a14","a24","a34","Smax4",
-											 "Q5","S5","G5","ETact5","a15","a25","a35","Smax5",
-											 "Q6","S6","G6","ETact6","a16","a26","a36","Smax6",
-											 "Q7","S7","G7","ETact7","a17","a27","a37","Smax7",
-											 "Q8","S8","G8","ETact8","a18","a28","a38","Smax8"};
+	HashMap<String, IExchangeItem> items = new LinkedHashMap<String, IExchangeItem>();
+	// States and parameters of a sub-catchment, in the order of the rows of E.mat.
+	static final String[] variableIDs = new String[] {"Q","S","G","ETact","a1","a2","a3","Smax"};
+	// Exchange item ids of the scalars layout, e.g. a13 for alpha1 of sub-catchment 3.
+	String[] exchangeItemIDs;
+	String layout = "scalars";
+	// Shared ensemble file, null if the ensemble is not written.
+	File ensembleFile = null;
+	int ensembleSize = 0;
+	int firstMember = 0;
+	// Operations reported by Diagnostics.
+	private static final Diagnostics.Operation INITIALIZE = Diagnostics.operation("Ewrapper.initialize");
+	private static final Diagnostics.Operation FINISH = Diagnostics.operation("Ewrapper.finish");
 	
 	/**
 	 * Initialize the IoObject. Reads the content of a .mat file (fileName) in
@@ -87,26 +111,52 @@ public class Ewrapper implements IoObjectInterface {
 	 */
 	public void initialize(File workingDir, String fileName, String[] arguments) {
 		
+		long start = INITIALIZE.start();
 		this.workingDir = workingDir;
 		this.fileName = fileName;
+		if (arguments != null) {
+			for (String argument : arguments) {
+				int separator = argument.indexOf('=');
+				String key = separator < 0 ? argument : argument.substring(0, separator).trim();
+				String argumentValue = separator < 0 ? "" : argument.substring(separator + 1).trim();
+				if (key.equals("exchangeItems")) {
+					layout = argumentValue;
+				} else if (key.equals("ensembleFile")) {
+					ensembleFile = new File(workingDir, argumentValue);
+				} else if (key.equals("ensembleSize")) {
+					ensembleSize = Integer.parseInt(argumentValue);
+				} else if (key.equals("firstMember")) {
+					firstMember = Integer.parseInt(argumentValue);
+				} else {
+					throw INITIALIZE.error("unknown argument " + argument);
+				}
+			}
+		}
+		if (!layout.equals("scalars") && !layout.equals("vector") && !layout.equals("variables")) {
+			throw INITIALIZE.error("unknown exchange item layout " + layout
+					+ ", expected scalars, vector or variables");
+		}
+		if (ensembleFile != null && ensembleSize <= 0) {
+			throw INITIALIZE.error("argument ensembleSize=<number of members> is required with ensembleFile");
+		}
 		
 		double[] values;
 		double[] time = new double[1];
 		double[] value = new double[1];
-		double[][] d;
 		String id;
 		
 		File file = new File(workingDir, fileName);
 		if (!file.exists()) {
-			throw new RuntimeException("Ewrapper.initialize(): input file "
+			throw INITIALIZE.error("input file "
 					+ file.getAbsolutePath() + " does not exist");
 		}
 		
 		
 		try {
 			
-			// Read the .mat file.
-			MatFileReader matfilereader = new MatFileReader( file );
+			// Read the index of the .mat file, only the needed variables are decoded.
+			MatFileReader matfilereader = new MatFileReader();
+			matfilereader.readIndex( file );
 			MLArray readData = matfilereader.getMLArray("E");
 			MLArray readTime = matfilereader.getMLArray("startTime");
 			
@@ -115,20 +165,14 @@ public class Ewrapper implements IoObjectInterface {
 			readDataDim = readData.getDimensions(); // e.g. [number of rows, number of columns] for 2D arrays. 
 			int readDataType = readData.getType();
 			if (readDataType != 6) {
-				throw new RuntimeException("Ewrapper.initialize(): input file " + file.getAbsolutePath() + 
+				throw INITIALIZE.error("input file " + file.getAbsolutePath() + 
 						" problem reading file type.\n   Expected " + MLArray.typeToString(6) + " but got " + 
 						MLArray.typeToString(readDataType));
 			}
 			
 			// Cast to MLDouble only after verifying that the type of readData is indeed a double array. 
-			d = ((MLDouble) readData).getArray(); 
-			
-			
 			// Store the central model states and parameters in an array. 
-			values = new double[readDataDim[0]];
-			for (int i = 0; i<readDataDim[0]; i++) {
-				values[i] = d[i][0];
-			}
+			values = ((MLDouble) readData).getColumn(0);
 			
 			String timeString = ((MLChar)readTime).getString(0);
 			try {
@@ -137,21 +181,45 @@ public class Ewrapper implements IoObjectInterface {
 				e.printStackTrace();
 			}
 			
-			TimeSeries temp;
-			// Store data in exchange items.
+			if (readDataDim[0] % variableIDs.length != 0) {
+				throw INITIALIZE.error("input file " + file.getAbsolutePath() + 
+						" has " + readDataDim[0] + " rows, expected " + variableIDs.length + " per sub-catchment");
+			}
+			int numberOfSubcatchments = readDataDim[0] / variableIDs.length;
+			exchangeItemIDs = new String[readDataDim[0]];
 			for (int i = 0; i<readDataDim[0]; i++) {
-				value[0] = values[i];
-				id = exchangeItemIDs[i];
-				temp = new TimeSeries(time,value);
-				temp.setId(id);
-				this.items.put(id,temp);
-				IExchangeItem x = new TimeSeries(temp);
-				map.put(id, x);
+				exchangeItemIDs[i] = variableIDs[i % variableIDs.length] + (i / variableIDs.length + 1);
+			}
+			
+			// Store data in exchange items.
+			if (layout.equals("vector")) {
+				// The whole column in one item.
+				this.items.put("E", new DoublesExchangeItem("E", Role.InOut, values));
+			} else if (layout.equals("variables")) {
+				// One item per variable with the values of all sub-catchments.
+				for (int v = 0; v<variableIDs.length; v++) {
+					// Each item keeps its own array.
+					double[] variable = new double[numberOfSubcatchments];
+					for (int c = 0; c<numberOfSubcatchments; c++) {
+						variable[c] = values[c * variableIDs.length + v];
+					}
+					this.items.put(variableIDs[v], new DoublesExchangeItem(variableIDs[v], Role.InOut, variable));
+				}
+			} else {
+				TimeSeries temp;
+				for (int i = 0; i<readDataDim[0]; i++) {
+					value[0] = values[i];
+					id = exchangeItemIDs[i];
+					temp = new TimeSeries(time,value);
+					temp.setId(id);
+					this.items.put(id,temp);
+				}
 			}
 		    
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		INITIALIZE.stop(start);
 		
 		
 	   
@@ -180,56 +248,86 @@ public class Ewrapper implements IoObjectInterface {
 
 	public void finish() {
 		
-		class Local {};
-        String methodName = Local.class.getEnclosingMethod().getName();
-        String className = this.getClass().getName();
+		long start = FINISH.start();
 		
-		// Iterate over hash map items and store data in a double array.
+		// Collect the values of the exchange items in the first column.
 		double[] data = new double[readDataDim[0]*readDataDim[1]];
-		if (items.size() != readDataDim[0]) {
-			throw new RuntimeException(className + "." + methodName + ": Problem with the dimension of read data.");
+		if (layout.equals("vector")) {
+			double[] column = items.get("E").getValuesAsDoubles();
+			if (column.length != readDataDim[0]) {
+				throw FINISH.error("Problem with the dimension of read data.");
+			}
+			System.arraycopy(column, 0, data, 0, readDataDim[0]);
+		} else if (layout.equals("variables")) {
+			int numberOfSubcatchments = readDataDim[0] / variableIDs.length;
+			for (int v = 0; v<variableIDs.length; v++) {
+				double[] variable = items.get(variableIDs[v]).getValuesAsDoubles();
+				if (variable.length != numberOfSubcatchments) {
+					throw FINISH.error("Problem with the dimension of read data.");
+				}
+				for (int c = 0; c<numberOfSubcatchments; c++) {
+					data[c * variableIDs.length + v] = variable[c];
+				}
+			}
+		} else {
+			if (items.size() != readDataDim[0]) {
+				throw FINISH.error("Problem with the dimension of read data.");
+			}
+			for (int i = 0; i<items.size(); i++) {
+				IPrevExchangeItem ei = items.get(exchangeItemIDs[i]);
+				data[i] = ei.getValuesAsDoubles()[0];
+			}
 		}
-		for (int i = 0; i<items.size(); i++) {
-			IPrevExchangeItem ei = map.get(exchangeItemIDs[i]);
-			data[i] = ei.getValuesAsDoubles()[0];
+		// Contribute the column to the analysed ensemble.
+		if (ensembleFile != null) {
+			EnsembleMatrix.get(ensembleFile, "E", readDataDim[0], readDataDim[1], ensembleSize)
+					.contribute(getMember(), Arrays.copyOf(data, readDataDim[0]));
 		}
 		// Store the same data in the same number of columns that has been read from E.mat.
 		for (int j=1; j<readDataDim[1]; j++) {
-			for (int i=0;i<readDataDim[0];i++) {
-				data[i+j*readDataDim[0]] = data[i];
-			}
+			System.arraycopy(data, 0, data, j*readDataDim[0], readDataDim[0]);
 		}
 		
 		// Writing.
-		System.out.println(className + "." + methodName + ": Writing to file: "+
-                           this.workingDir + System.getProperty("line.separator") + this.fileName);
+		FINISH.info("Writing to file: ", this.workingDir, File.separator, this.fileName);
 		try{
 			File outputFile = new File(this.workingDir,this.fileName);
-			try{
-				if(outputFile.isFile()){
-					outputFile.delete();
-				}
-			}catch (Exception e) {
-				System.out.println(className + "." + methodName + ": trouble removing file "+ fileName);
-			}
 			try {
 				
-				MLDouble mlDouble = new MLDouble( "E", data, 64 ); // Store in 64 rows.
+				MLDouble mlDouble = new MLDouble( "E", data, readDataDim[0] ); // Store in 64 rows for 8 sub-catchments.
 		        ArrayList<MLArray> list = new ArrayList<MLArray>();
 		        list.add( mlDouble );
 		        
-		        new MatFileWriter( outputFile, list );
+		        // E.mat is written for every member and cycle, uncompressed is faster. Once it 
+		        // is uncompressed and has the same shape, only the values of E are overwritten.
+		        MatFilePatcher.write( outputFile, list,
+		        		new MatFileWriteOptions().setCompressionLevel(Deflater.NO_COMPRESSION) );
 				
 			} catch (Exception e) {
-				throw new RuntimeException(className + "." + methodName + ": Problem writing to file " + 
-						                   fileName+" : " + System.getProperty("line.separator") + e.getMessage());
+				throw FINISH.error("Problem writing to file ", fileName, " : ", e.getMessage());
 			}
 		}catch (Exception e) {
-			System.out.println(className + "." + methodName + ": Problem creating file.");
+			FINISH.warn("Problem creating file.");
 		}
+		FINISH.stop(start);
 		
 	}
 
-	
+	/**
+	 * @return index of the ensemble member, from the number at the end of the 
+	 *         name of the working directory.
+	 */
+	int getMember() {
+		String name = workingDir.getAbsoluteFile().getName();
+		int start = name.length();
+		while (start > 0 && Character.isDigit(name.charAt(start - 1))) {
+			start--;
+		}
+		if (start == name.length()) {
+			throw new RuntimeException("Ewrapper.getMember(): working directory " + workingDir
+					+ " does not end with the member number");
+		}
+		return Integer.parseInt(name.substring(start)) - firstMember;
+	}
 
 }
@@ -0,0 +1,67 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Input stream over a byte range of a file.
+ * <p>
+ * Reads the bytes [start, end) of a file with positional reads on a
+ * FileChannel. The position of the channel is not changed, so several
+ * streams can read different ranges of the same channel. Used to read
+ * only the appended tail of iMoMo.csv, or only the part of the file that
+ * existed when its size was taken.
+ * <p>
+ * copyright hydrosolutions ltd. 2015 <br>
+ * license   see LICENSE
+ *
+ */
+class FileChannelInputStream extends InputStream {
+
+	private final FileChannel channel;
+	private final long end;
+	private long position;
+
+	/**
+	 * @param channel channel of the file, not closed by this stream.
+	 * @param start first byte to read.
+	 * @param end byte after the last byte to read.
+	 */
+	FileChannelInputStream(FileChannel channel, long start, long end) {
+		this.channel = channel;
+		this.position = start;
+		this.end = end;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return (n < 1) ? -1 : (b[0] & 0xff);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (position >= end) {
+			return -1;
+		}
+		int n = (int) Math.min(len, end - position);
+		int read = channel.read(ByteBuffer.wrap(b, off, n), position);
+		if (read < 0) {
+			return -1;
+		}
+		position += read;
+		return read;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, end - position);
+	}
+
+}
@@ -0,0 +1,244 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+import com.jmatio.io.MatFileReader;
+import com.jmatio.types.MLArray;
+import com.jmatio.types.MLDouble;
+
+/**
+ * Content of a S0G0.mat file, kept in memory between the calls of the wrapper.
+ * <p>
+ * The templates are kept in a cache keyed by the checksum of the content of
+ * the file, so a file is parsed once per JVM: the members of an ensemble start
+ * from copies of the same S0G0.mat and the first member to read it parses it
+ * for all of them. The checksum is computed from the bytes of the file on
+ * every call, which is cheap for a file of a few kB and, unlike the
+ * modification time, also detects a rewrite by the model within the same
+ * second. The wrapper updates the cache after writing S0 and G0, so the
+ * following cycles of a member do not parse the file again.
+ * <p>
+ * The replicates SG are not changed by the wrapper. The templates with the same
+ * SG share one read-only storage of it, and the members write SG from it
+ * instead of reading it.
+ * <p>
+ * copyright hydrosolutions ltd. 2015 <br>
+ * license   see LICENSE
+ *
+ */
+class S0G0Template {
+
+	// Number of templates kept, one per content, at least one per ensemble member.
+	private static final int CACHE_SIZE = 1024;
+
+	private static final Map<Key, S0G0Template> cache =
+			new LinkedHashMap<Key, S0G0Template>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Key, S0G0Template> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			};
+
+	// Storages of SG by content, shared by the templates while they are in use.
+	private static final WeakHashMap<ByteBuffer, WeakReference<ByteBuffer>> sgStorages =
+			new WeakHashMap<ByteBuffer, WeakReference<ByteBuffer>>();
+
+	// Buffer for computing the checksums, one per thread.
+	private static final ThreadLocal<ByteBuffer> checksumBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(64 * 1024);
+		}
+	};
+
+	// Length and checksums of the content of a file.
+	private static final class Key {
+
+		private final long length;
+		private final long crc;
+		private final long adler;
+
+		Key(long length, long crc, long adler) {
+			this.length = length;
+			this.crc = crc;
+			this.adler = adler;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return length == other.length && crc == other.crc && adler == other.adler;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (crc ^ (adler << 7) ^ length);
+		}
+	}
+
+	private final double[] s0;
+	private final double[] g0;
+	private final int[] sgDims;
+	// Storage of SG, read-only.
+	private final ByteBuffer sg;
+
+	private S0G0Template(double[] s0, double[] g0, int[] sgDims, ByteBuffer sg) {
+		this.s0 = s0;
+		this.g0 = g0;
+		this.sgDims = sgDims;
+		this.sg = sg;
+	}
+
+	/**
+	 * Get the template of the content of a file from the cache, the file is
+	 * parsed if the content is not in the cache.
+	 *
+	 * @param file S0G0.mat.
+	 * @return the template.
+	 * @throws IOException if the file can not be read.
+	 */
+	static S0G0Template get(File file) throws IOException {
+		Key key = checksum(file);
+		synchronized (cache) {
+			S0G0Template template = cache.get(key);
+			if (template != null) {
+				return template;
+			}
+		}
+		S0G0Template template = read(file);
+		// Only cached if the file has not been changed while it was parsed.
+		if (key.equals(checksum(file))) {
+			synchronized (cache) {
+				cache.put(key, template);
+			}
+		}
+		return template;
+	}
+
+	/**
+	 * Get the template of the content of a file if it is in the cache.
+	 *
+	 * @param file S0G0.mat.
+	 * @return the template or null, the file is not parsed.
+	 * @throws IOException if the file can not be read.
+	 */
+	static S0G0Template find(File file) throws IOException {
+		Key key = checksum(file);
+		synchronized (cache) {
+			return cache.get(key);
+		}
+	}
+
+	/**
+	 * Cache the content of a file after S0 and G0 have been written. SG must
+	 * be unchanged.
+	 *
+	 * @param file S0G0.mat, written.
+	 * @param previous template of the file before it was written.
+	 * @param s0 initial soil moisture storage written.
+	 * @param g0 initial groundwater storage written.
+	 * @throws IOException if the file can not be read.
+	 */
+	static void update(File file, S0G0Template previous, double[] s0, double[] g0) throws IOException {
+		S0G0Template template = new S0G0Template(s0.clone(), g0.clone(), previous.sgDims, previous.sg);
+		Key key = checksum(file);
+		synchronized (cache) {
+			cache.put(key, template);
+		}
+	}
+
+	/**
+	 * @return initial soil moisture storage, a copy.
+	 */
+	double[] getS0() {
+		return s0.clone();
+	}
+
+	/**
+	 * @return initial groundwater storage, a copy.
+	 */
+	double[] getG0() {
+		return g0.clone();
+	}
+
+	/**
+	 * @return SG backed by the shared storage, it must not be changed.
+	 */
+	MLDouble getSG() {
+		return new MLDouble("SG", sgDims, MLArray.mxDOUBLE_CLASS, 0, sg.duplicate(), null);
+	}
+
+	/**
+	 * @return true if the storage of SG is shared with another template.
+	 */
+	boolean sharesSG(S0G0Template other) {
+		return sg == other.sg;
+	}
+
+	// Length, CRC32 and Adler32 of the content of a file.
+	private static Key checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		Adler32 adler = new Adler32();
+		ByteBuffer buffer = checksumBuffer.get();
+		long length = 0;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			buffer.clear();
+			int n;
+			while ((n = channel.read(buffer)) >= 0) {
+				crc.update(buffer.array(), 0, n);
+				adler.update(buffer.array(), 0, n);
+				length += n;
+				buffer.clear();
+			}
+		} finally {
+			in.close();
+		}
+		return new Key(length, crc.getValue(), adler.getValue());
+	}
+
+	private static S0G0Template read(File file) throws IOException {
+		MatFileReader matfilereader = new MatFileReader();
+		matfilereader.readIndex(file);
+		MLArray s0 = matfilereader.getMLArray("S0");
+		MLArray g0 = matfilereader.getMLArray("G0");
+		MLArray sg = matfilereader.getMLArray("SG");
+		if (!(s0 instanceof MLDouble) || !(g0 instanceof MLDouble) || !(sg instanceof MLDouble)) {
+			throw new IOException("the file does not contain the double arrays S0, G0 and SG");
+		}
+		return new S0G0Template(((MLDouble) s0).getRow(0), ((MLDouble) g0).getRow(0),
+				sg.getDimensions(), share(((MLDouble) sg).getRealByteBuffer()));
+	}
+
+	// The storage of SG with the same content used by other templates, or this one.
+	private static ByteBuffer share(ByteBuffer storage) {
+		ByteBuffer sg = storage.asReadOnlyBuffer();
+		sg.rewind();
+		synchronized (sgStorages) {
+			WeakReference<ByteBuffer> shared = sgStorages.get(sg);
+			ByteBuffer existing = shared == null ? null : shared.get();
+			if (existing != null) {
+				return existing;
+			}
+			sgStorages.put(sg, new WeakReference<ByteBuffer>(sg));
+			return sg;
+		}
+	}
+
+}
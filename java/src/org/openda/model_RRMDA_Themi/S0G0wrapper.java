@@ -8,14 +8,17 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Set;
+import java.util.zip.Deflater;
 
 import org.openda.blackbox.interfaces.IoObjectInterface;
 import org.openda.exchange.timeseries.TimeSeries;
 import org.openda.interfaces.IExchangeItem;
 import org.openda.interfaces.IPrevExchangeItem;
 
-import com.jmatio.io.MatFileReader;
+import com.jmatio.io.MatFilePatcher;
+import com.jmatio.io.MatFileWriteOptions;
 import com.jmatio.io.MatFileWriter;
+import com.jmatio.io.MatlabIOException;
 import com.jmatio.types.MLArray;
 import com.jmatio.types.MLDouble;
 
@@ -38,8 +41,11 @@ import com.jmatio.types.MLDouble;
  * to each state. SG contains the same values for soil moisture storage and groundwater
  * storage as E.mat and is read by the rainfall-runoff model but immediately overwritten 
  * with S0 and G0 so it doesn't have to be figured as extra exchange item. However it  
- * has to be written for the rainfall-runoff model to run successfully. Therefore SG 
- * is read to a class-owned variable and written from this variable. 
+ * has to be written for the rainfall-runoff model to run successfully. Therefore the 
+ * content of the file is parsed once per JVM and kept as a template keyed by its 
+ * checksum (see {@link S0G0Template}) that finish updates, SG is written unchanged 
+ * from the template, whose storage is shared by the members, and once S0G0.mat has 
+ * been written uncompressed only S0 and G0 are overwritten in place. 
  * <p>
  * The data in S0G0.mat comes without time reference. The time reference has to be 
  * figured out in this wrapper. The file S0G0.mat is written on a daily basis. For the 
@@ -65,11 +71,12 @@ public class S0G0wrapper implements IoObjectInterface {
 	String fileName = null;
 	int[] readS0Dim = {0,0};
 	int[] readG0Dim = {0,0};
-	int[] readSGDim = {0,0};
-	double[] valuesSG;
-	HashMap<String, TimeSeries> items = new LinkedHashMap<String, TimeSeries>();
-	HashMap<String, IExchangeItem> map = new HashMap<>();
-	int numberOfStatesInSG = 16;
+	HashMap<String, IExchangeItem> items = new LinkedHashMap<String, IExchangeItem>();
+	// Content of the file read, SG is written from it.
+	S0G0Template template;
+	// Operations reported by Diagnostics.
+	private static final Diagnostics.Operation INITIALIZE = Diagnostics.operation("S0G0wrapper.initialize");
+	private static final Diagnostics.Operation FINISH = Diagnostics.operation("S0G0wrapper.finish");
 	
 	/**
 	 * Initialize the IoObject. Reads the content of a .mat file (fileName) in
@@ -85,9 +92,7 @@ public class S0G0wrapper implements IoObjectInterface {
 	 */
 		public void initialize(File workingDir, String fileName, String[] arguments) {
 			
-			class Local {};
-	        String methodName = Local.class.getEnclosingMethod().getName();
-	        String className = this.getClass().getName();
+			long start = INITIALIZE.start();
 			
 			this.workingDir = workingDir;
 			this.fileName = fileName;
@@ -95,55 +100,25 @@ public class S0G0wrapper implements IoObjectInterface {
 			double refdate = 0;
 			double[] time = new double[1];
 			double[] value = new double[1];
-			double[][] sData;
-			double[][] gData;
-			double[][] sgData;
+			double[] sData;
+			double[] gData;
 			String id;
 			
 			File file = new File(workingDir, fileName);
 			if (!file.exists()) {
-				throw new RuntimeException("Ewrapper.initialize(): input file "
+				throw INITIALIZE.error("input file "
 						+ file.getAbsolutePath() + " does not exist");
 			}
 			
 			
 			try {
 				
-				// Read the .mat file.
-				MatFileReader matfilereader = new MatFileReader( file );
-				MLArray readS0 = matfilereader.getMLArray("S0");
-				MLArray readG0 = matfilereader.getMLArray("G0");
-				MLArray readSG = matfilereader.getMLArray("SG");
-				
-				// Parse the MLArray to an array of doubles. E contains an ensemble of states 
-				// and parameters. We're interested here only in the central model: The first column.
-				readS0Dim = readS0.getDimensions();
-				readG0Dim = readG0.getDimensions();
-				readSGDim = readSG.getDimensions();
-				
-				int readDataType = readS0.getType();
-				if (readDataType != 6) {
-					throw new RuntimeException(className+"."+methodName+"(): input file " + file.getAbsolutePath() + 
-							" problem reading file type.\n   Expected " + MLArray.typeToString(6) + " but got " + 
-							MLArray.typeToString(readDataType));
-				}
-				readDataType = readG0.getType();
-				if (readDataType != 6) {
-					throw new RuntimeException(className+"."+methodName+"(): input file " + file.getAbsolutePath() + 
-							" problem reading file type.\n   Expected " + MLArray.typeToString(6) + " but got " + 
-							MLArray.typeToString(readDataType));
-				}
-				readDataType = readSG.getType();
-				if (readDataType != 6) {
-					throw new RuntimeException(className+"."+methodName+"(): input file " + file.getAbsolutePath() + 
-							" problem reading file type.\n   Expected " + MLArray.typeToString(6) + " but got " + 
-							MLArray.typeToString(readDataType));
-				}
-				
-				// Cast to MLDouble only after verifying that the type of readData is indeed a double array. 
-				sData = ((MLDouble) readS0).getArray();
-				gData = ((MLDouble) readG0).getArray();
-				sgData = ((MLDouble) readSG).getArray();
+				// Content already parsed in this JVM is taken from the cache, finish updates it.
+				template = S0G0Template.get(file);
+				sData = template.getS0();
+				gData = template.getG0();
+				readS0Dim = new int[] {1, sData.length};
+				readG0Dim = new int[] {1, gData.length};
 				
 				// Read the modified date from the file S0G0.mat.
 				SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
@@ -154,40 +129,30 @@ public class S0G0wrapper implements IoObjectInterface {
 				}	
 				//System.out.println(sdf.format(file.lastModified()) + " , " + refdate);
 				
-				// Store the model states in an array. 
-				valuesSG = new double[readSGDim[0]*readSGDim[1]];
-				for (int j=0; j<readSGDim[1]; j++) {
-					for (int i = 0; i<readSGDim[0]; i++) {
-						valuesSG[j*readSGDim[0]+i] = sgData[i][j];						
-					}
-				}
-				
 				time[0] = refdate;
 				
 				TimeSeries temp;
 				// Store data in exchange items.
 				for (int i=0; i<readS0Dim[1]; i++) {
-					value[0] = sData[0][i];
+					value[0] = sData[i];
 					id = "S0"+(i+1);
 					temp = new TimeSeries(time,value);
 					temp.setId(id);
 					this.items.put(id,temp);
-					IExchangeItem x = new TimeSeries(temp);
-					map.put(id, x);
 				}
 				for (int i=0; i<readG0Dim[1]; i++) {
-					value[0] = gData[0][i];
+					value[0] = gData[i];
 					id = "G0"+(i+1);
 					temp = new TimeSeries(time,value);
 					temp.setId(id);
 					this.items.put(id,temp);
-					IExchangeItem x = new TimeSeries(temp);
-					map.put(id, x);
 				}
 			    
 			} catch (IOException e) {
-				e.printStackTrace();
+				throw INITIALIZE.error("problem reading input file ",
+						file.getAbsolutePath(), " : ", e.getMessage());
 			}
+			INITIALIZE.stop(start);
 			
 			
 		   
@@ -216,54 +181,80 @@ public class S0G0wrapper implements IoObjectInterface {
 
 		public void finish() {
 			
-			class Local {};
-	        String methodName = Local.class.getEnclosingMethod().getName();
-	        String className = this.getClass().getName();
+			long start = FINISH.start();
 			
 			// Iterate over hash map items and store data in a double array.
 			double[] dataS0 = new double[readS0Dim[1]];
 			for (int i = 0; i<readS0Dim[1]; i++) {
-				IPrevExchangeItem ei = map.get("S0"+(i+1));
+				IPrevExchangeItem ei = items.get("S0"+(i+1));
 				dataS0[i] = ei.getValuesAsDoubles()[0];
 			}
 			double[] dataG0 = new double[readG0Dim[1]];
 			for (int i = 0; i<readG0Dim[1]; i++) {
-				IPrevExchangeItem ei = map.get("G0"+(i+1));
+				IPrevExchangeItem ei = items.get("G0"+(i+1));
 				dataG0[i] = ei.getValuesAsDoubles()[0];
 			}
 			
 			// Writing.
-			System.out.println(className + "." + methodName + ": Writing to file: "+
-	                           this.workingDir + System.getProperty("line.separator") + this.fileName);
+			FINISH.info("Writing to file: ", this.workingDir, File.separator, this.fileName);
 			try{
 				File outputFile = new File(this.workingDir,this.fileName);
-				try{
-					if(outputFile.isFile()){
-						outputFile.delete();
-					}
-				}catch (Exception e) {
-					System.out.println(className + "." + methodName + ": trouble removing file "+ fileName);
-				}
 				try {
 					
 					MLDouble mlDoubleS0 = new MLDouble( "S0", dataS0, 1 ); // Store test in 1 row.
 					MLDouble mlDoubleG0 = new MLDouble( "G0", dataG0, 1);
-					MLDouble mlDoubleSG = new MLDouble( "SG", valuesSG, numberOfStatesInSG);
-			        ArrayList<MLArray> list = new ArrayList<MLArray>();
-			        list.add( mlDoubleS0 );
-			        list.add( mlDoubleG0 );
-			        list.add( mlDoubleSG );
-			        
-			        new MatFileWriter( outputFile, list );
+					
+					// SG is not changed, once the file is uncompressed only S0 and G0 are written.
+					if (!patchStates(outputFile, mlDoubleS0, mlDoubleG0)) {
+						// SG comes from the template of the file that is replaced.
+						MLDouble mlDoubleSG = template.getSG();
+				        ArrayList<MLArray> list = new ArrayList<MLArray>();
+				        list.add( mlDoubleS0 );
+				        list.add( mlDoubleG0 );
+				        list.add( mlDoubleSG );
+				        
+				        // Small file written every cycle, no compression.
+				        new MatFileWriter( outputFile, list,
+				        		new MatFileWriteOptions().setCompressionLevel(Deflater.NO_COMPRESSION) );
+					}
+					S0G0Template.update(outputFile, template, dataS0, dataG0);
 					
 				} catch (Exception e) {
-					throw new RuntimeException(className + "." + methodName + ": Problem writing to file " + 
-							                   fileName+" : " + System.getProperty("line.separator") + e.getMessage());
+					throw FINISH.error("Problem writing to file ", fileName, " : ", e.getMessage());
 				}
 			}catch (Exception e) {
-				System.out.println(className + "." + methodName + ": Problem creating file.");
+				FINISH.warn("Problem creating file.");
 			}
+			FINISH.stop(start);
 			
 		}
+
+		/**
+		 * Overwrite S0 and G0 in place if the file contains them uncompressed with 
+		 * the same shape, next to SG.
+		 * 
+		 * @return true if the file was patched.
+		 */
+		private boolean patchStates(File file, MLDouble s0, MLDouble g0) throws IOException {
+			if (!file.isFile()) {
+				return false;
+			}
+			MatFilePatcher patcher;
+			try {
+				patcher = new MatFilePatcher(file);
+			} catch (MatlabIOException e) {
+				return false;
+			}
+			try {
+				if (!patcher.getNames().contains("SG") || !patcher.canPatch(s0) || !patcher.canPatch(g0)) {
+					return false;
+				}
+				patcher.patch(s0);
+				patcher.patch(g0);
+				return true;
+			} finally {
+				patcher.close();
+			}
+		}
 	
 }
@@ -2,59 +2,339 @@ package org.openda.model_RRMDA_Themi;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.zip.Deflater;
 
 import org.openda.blackbox.interfaces.IoObjectInterface;
 import org.openda.exchange.timeseries.TimeSeries;
 import org.openda.interfaces.IExchangeItem;
 import org.openda.interfaces.IPrevExchangeItem;
 
+import com.jmatio.io.MatFilePatcher;
 import com.jmatio.io.MatFileReader;
+import com.jmatio.io.MatFileWriteOptions;
 import com.jmatio.io.MatFileWriter;
+import com.jmatio.io.MatlabIOException;
 import com.jmatio.types.MLArray;
 import com.jmatio.types.MLDouble;
 
 
 /**
- * Allows reading of a matlab .mat file and storing read data in <code>oda</code> 
- * exchange items. 
+ * Allows reading of a matlab .mat file and storing read data in <code>oda</code>
+ * exchange items.
  * <p>
  * The file sub_FP.mat stores forecast data for 8 sub-catchments in the Themi basin
  * for a forecast period of 5 days. The time steps are stored in mjd.
- * 
- * This is an optional wrapper if stochastic boundary conditions are to be used in 
- * the model. This wrapper is under construction. 
- * 
+ * <p>
+ * This is an optional wrapper if stochastic boundary conditions are to be used in
+ * the model. The file is expected to contain:
+ * <p>
+ * time: The time steps of the forecast in mjd, a row or a column vector. <br>
+ * One or more forcing matrices, e.g. precipitation and potential evapotranspiration,
+ *     with one row per time step and one column per sub-catchment. Matrices with one
+ *     column per time step and one row per sub-catchment are read as well. <br>
+ * <p>
+ * Each sub-catchment of a forcing matrix is stored in a time series exchange item
+ * holding all time steps, named after the matrix and the number of the sub-catchment,
+ * separated by a dot, e.g. P.3 for the precipitation of sub-catchment 3.
+ * <p>
+ * Arguments: <br>
+ * time=&lt;name&gt;: the name of the time steps in the file (default time). <br>
+ * variables=&lt;name&gt;,&lt;name&gt;: the forcing matrices that are exchanged (default:
+ *     all double matrices in the file with one dimension equal to the number of
+ *     time steps). <br>
+ * orientation=rows|columns: whether the time steps are the rows or the columns of
+ *     a square forcing matrix, i.e. if there are as many time steps as
+ *     sub-catchments. Required if the file holds such a matrix, the orientation
+ *     of the other matrices follows from their dimensions.
+ * <p>
+ * Only the index of the file and the requested matrices are read. When writing, only
+ * the values changed by <code>openDA</code> are written: the range of each matrix
+ * from the first to the last changed value is overwritten in place, so perturbing the
+ * forcing of an ensemble costs each member the changed columns only. A compressed
+ * file, as written by matlab, can not be patched. It is rewritten once, uncompressed,
+ * with all its variables, and patched in the following cycles. The time steps are not
+ * written.
+ *
  * @author Beatrice Marti, hydrosolutions ltd., marti@hydrosolutions.ch
  *
  * Copyright (c) 2015, hydrosolutions ltd.
- * 
+ *
  */
 public class SubFPwrapper implements IoObjectInterface {
 
+	// A forcing matrix of the file and the values last read or written.
+	private static class Forcing {
+
+		final String name;
+		final int rows;
+		final int columns;
+		// True if the time steps are the rows, the sub-catchments the columns.
+		final boolean timeInRows;
+		double[] values;
+
+		Forcing(String name, int rows, int columns, boolean timeInRows, double[] values) {
+			this.name = name;
+			this.rows = rows;
+			this.columns = columns;
+			this.timeInRows = timeInRows;
+			this.values = values;
+		}
+
+		int numberOfSubcatchments() {
+			return timeInRows ? columns : rows;
+		}
+
+		// Index of a value in the column-major storage of the matrix.
+		int index(int step, int subcatchment) {
+			return timeInRows ? subcatchment * rows + step : step * rows + subcatchment;
+		}
+	}
+
+	// Class specific values
+	File workingDir;
+	String fileName = null;
+	String timeName = "time";
+	// Names of the exchanged forcing matrices, null for all.
+	String[] variableNames = null;
+	// True if the time steps are the rows of square matrices, null if not given.
+	Boolean squareTimeInRows = null;
+	double[] times;
+	ArrayList<Forcing> forcings = new ArrayList<Forcing>();
+	HashMap<String, IExchangeItem> items = new LinkedHashMap<String, IExchangeItem>();
+	// Operations reported by Diagnostics.
+	private static final Diagnostics.Operation INITIALIZE = Diagnostics.operation("SubFPwrapper.initialize");
+	private static final Diagnostics.Operation FINISH = Diagnostics.operation("SubFPwrapper.finish");
+
+	/**
+	 * Initialize the IoObject. Reads the content of a .mat file (fileName) in
+	 * directory (workingDir) with given arguments.
+	 *
+	 * @param workingDir
+	 *            Working directory
+	 * @param fileName
+	 *            The name of the file containing the data (relative to the
+	 *            working directory.)
+	 * @param arguments
+	 *            Additional arguments (may be null zero-length)
+	 */
 	@Override
 	public void initialize(File workingDir, String fileName, String[] arguments) {
-		// TODO Auto-generated method stub
-		
+
+		long start = INITIALIZE.start();
+		this.workingDir = workingDir;
+		this.fileName = fileName;
+		if (arguments != null) {
+			for (String argument : arguments) {
+				int separator = argument.indexOf('=');
+				String key = separator < 0 ? argument : argument.substring(0, separator).trim();
+				String argumentValue = separator < 0 ? "" : argument.substring(separator + 1).trim();
+				if (key.equals("time")) {
+					timeName = argumentValue;
+				} else if (key.equals("variables")) {
+					variableNames = argumentValue.split("\\s*,\\s*");
+				} else if (key.equals("orientation")) {
+					if (argumentValue.equals("rows")) {
+						squareTimeInRows = Boolean.TRUE;
+					} else if (argumentValue.equals("columns")) {
+						squareTimeInRows = Boolean.FALSE;
+					} else {
+						throw INITIALIZE.error("orientation must be rows or columns: " + argument);
+					}
+				} else {
+					throw INITIALIZE.error("unknown argument " + argument);
+				}
+			}
+		}
+
+		File file = new File(workingDir, fileName);
+		if (!file.exists()) {
+			throw INITIALIZE.error("input file "
+					+ file.getAbsolutePath() + " does not exist");
+		}
+
+		try {
+
+			// Read the index of the .mat file, only the time steps and the forcing are decoded.
+			MatFileReader matfilereader = new MatFileReader();
+			Set<String> names = matfilereader.readIndex( file );
+			MLArray readTime = matfilereader.getMLArray(timeName);
+			if (!(readTime instanceof MLDouble)) {
+				throw INITIALIZE.error("input file " + file.getAbsolutePath() +
+						" does not contain the time steps " + timeName);
+			}
+			times = ((MLDouble) readTime).exportReal();
+
+			boolean explicit = variableNames != null;
+			if (!explicit) {
+				ArrayList<String> others = new ArrayList<String>(names);
+				others.remove(timeName);
+				variableNames = others.toArray(new String[others.size()]);
+			}
+
+			for (String name : variableNames) {
+				MLArray readData = matfilereader.getMLArray(name);
+				int[] readDataDim = readData == null ? null : readData.getDimensions();
+				boolean timeInRows = readDataDim != null && readDataDim.length == 2 && readDataDim[0] == times.length;
+				boolean timeInColumns = readDataDim != null && readDataDim.length == 2 && readDataDim[1] == times.length;
+				if (!(readData instanceof MLDouble) || readData.isComplex() || !(timeInRows || timeInColumns)) {
+					if (explicit) {
+						throw INITIALIZE.error("input file " + file.getAbsolutePath() +
+								" does not contain a double matrix " + name + " with " + times.length + " time steps");
+					}
+					continue;
+				}
+				if (timeInRows && timeInColumns) {
+					// Square: the dimensions do not tell which are the time steps.
+					if (squareTimeInRows == null) {
+						throw INITIALIZE.error("input file " + file.getAbsolutePath() + ": " + name + " has "
+								+ times.length + " rows and columns, set orientation=rows or orientation=columns");
+					}
+					timeInRows = squareTimeInRows.booleanValue();
+				}
+				Forcing forcing = new Forcing(name, readDataDim[0], readDataDim[1], timeInRows,
+						((MLDouble) readData).exportReal());
+				forcings.add(forcing);
+
+				// Store data in exchange items, one time series per sub-catchment.
+				for (int c = 0; c<forcing.numberOfSubcatchments(); c++) {
+					double[] value = new double[times.length];
+					for (int t = 0; t<times.length; t++) {
+						value[t] = forcing.values[forcing.index(t, c)];
+					}
+					String id = id(name, c);
+					TimeSeries temp = new TimeSeries(times, value);
+					temp.setId(id);
+					this.items.put(id, temp);
+				}
+			}
+
+		} catch (IOException e) {
+			throw INITIALIZE.error("problem reading file " + file.getAbsolutePath()
+					+ " : " + e.getMessage());
+		}
+		INITIALIZE.stop(start);
+
 	}
 
+	/**
+	 * Ask which elements can be accessed
+	 *
+	 *
+	 * @return The list of element identifiers that can be accessed
+	 */
 	@Override
 	public IPrevExchangeItem[] getExchangeItems() {
-		// TODO Auto-generated method stub
-		return null;
+		return this.items.values().toArray(new IExchangeItem[this.items.size()]);
 	}
 
 	@Override
 	public void finish() {
-		// TODO Auto-generated method stub
-		
+
+		long start = FINISH.start();
+		// Collect the changed matrices and the range of changed values of each.
+		ArrayList<MLArray> changed = new ArrayList<MLArray>();
+		ArrayList<int[]> ranges = new ArrayList<int[]>();
+		ArrayList<Forcing> changedForcings = new ArrayList<Forcing>();
+		for (Forcing forcing : forcings) {
+			double[] values = forcing.values.clone();
+			for (int c = 0; c<forcing.numberOfSubcatchments(); c++) {
+				double[] value = items.get(id(forcing.name, c)).getValuesAsDoubles();
+				for (int t = 0; t<times.length; t++) {
+					values[forcing.index(t, c)] = value[t];
+				}
+			}
+			int from = 0;
+			while (from < values.length && sameValue(values[from], forcing.values[from])) {
+				from++;
+			}
+			if (from == values.length) {
+				continue;
+			}
+			int to = values.length;
+			while (sameValue(values[to-1], forcing.values[to-1])) {
+				to--;
+			}
+			changed.add(new MLDouble(forcing.name, values, forcing.rows));
+			ranges.add(new int[] {from, to});
+			changedForcings.add(forcing);
+		}
+		if (changed.isEmpty()) {
+			FINISH.stop(start);
+			return;
+		}
+
+		File outputFile = new File(this.workingDir, this.fileName);
+		try {
+			if (!patchForcing(outputFile, changed, ranges)) {
+				rewrite(outputFile, changed);
+			}
+		} catch (IOException e) {
+			throw FINISH.error("problem writing to file " +
+					outputFile.getAbsolutePath() + " : " + e.getMessage());
+		}
+		for (int i = 0; i<changed.size(); i++) {
+			changedForcings.get(i).values = ((MLDouble) changed.get(i)).exportReal();
+		}
+		FINISH.stop(start);
+
+	}
+
+	/**
+	 * Overwrite the changed ranges of the forcing matrices in place if the file
+	 * contains all of them uncompressed with the same shape.
+	 *
+	 * @return true if the file was patched.
+	 */
+	private boolean patchForcing(File file, ArrayList<MLArray> changed, ArrayList<int[]> ranges) throws IOException {
+		MatFilePatcher patcher;
+		try {
+			patcher = new MatFilePatcher(file);
+		} catch (MatlabIOException e) {
+			return false;
+		}
+		try {
+			for (MLArray array : changed) {
+				if (!patcher.canPatch(array)) {
+					return false;
+				}
+			}
+			for (int i = 0; i<changed.size(); i++) {
+				patcher.patch(changed.get(i), ranges.get(i)[0], ranges.get(i)[1]);
+			}
+			return true;
+		} finally {
+			patcher.close();
+		}
+	}
+
+	/**
+	 * Write the file with all its variables, the changed forcing matrices replaced.
+	 * It is written uncompressed so that it can be patched afterwards.
+	 */
+	private void rewrite(File file, ArrayList<MLArray> changed) throws IOException {
+		Map<String, MLArray> content = new LinkedHashMap<String, MLArray>(
+				new MatFileReader().read(file, MatFileReader.HEAP_BYTE_BUFFER));
+		for (MLArray array : changed) {
+			content.put(array.getName(), array);
+		}
+		new MatFileWriter( file, content.values(),
+				new MatFileWriteOptions().setCompressionLevel(Deflater.NO_COMPRESSION) );
+	}
+
+	// Id of the exchange item of a sub-catchment, counted from 0. The dot keeps the ids
+	// of different matrices apart, e.g. sub-catchment 11 of P and 1 of P1.
+	private static String id(String name, int subcatchment) {
+		return name + "." + (subcatchment+1);
+	}
+
+	// Values are compared bitwise, so that NaN values of missing data are unchanged.
+	private static boolean sameValue(double a, double b) {
+		return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
 	}
 
-	
-	
 }
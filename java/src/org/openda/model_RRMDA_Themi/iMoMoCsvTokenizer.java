@@ -0,0 +1,320 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streaming tokenizer for the rows of iMoMo.csv.
+ * <p>
+ * The tokenizer reads the file through a fixed char buffer and parses only
+ * the relevant columns of a row: dataValue (column 0), variableID (column 1),
+ * dateTimeUTC (column 2) and siteID (column 5). Numbers are parsed directly
+ * from the buffer into primitives and the date is copied into a reusable
+ * char array, so no objects are created per row. Lines are not kept after
+ * they have been parsed.
+ * <p>
+ * Header lines (first column starting with a D) are skipped, as are empty
+ * lines. A row with an empty dataValue is not an empty line, it can not be
+ * read like a row with an invalid number.
+ * <p>
+ * copyright hydrosolutions ltd. 2015 <br>
+ * license   see LICENSE
+ *
+ */
+class iMoMoCsvTokenizer {
+
+	// Columns of iMoMo.csv that are read.
+	static final int DATA_VALUE_COLUMN = 0;
+	static final int VARIABLE_ID_COLUMN = 1;
+	static final int DATE_COLUMN = 2;
+	static final int SITE_ID_COLUMN = 5;
+
+	private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	// Exact powers of ten for the fast path of parseDouble.
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private final Reader reader;
+	private char[] buffer;
+	private int position = 0;
+	private int limit = 0;
+	private boolean eof = false;
+	private long lineNumber = 0;
+
+	// Content of the current row.
+	private double dataValue;
+	private int variableID;
+	private int siteID;
+	private char[] date = new char[32];
+	private int dateLength;
+
+	iMoMoCsvTokenizer(Reader reader) {
+		this(reader, DEFAULT_BUFFER_SIZE);
+	}
+
+	iMoMoCsvTokenizer(Reader reader, int bufferSize) {
+		this.reader = reader;
+		this.buffer = new char[bufferSize];
+	}
+
+	/**
+	 * Advance to the next data row.
+	 *
+	 * @return false if the end of the input has been reached.
+	 * @throws NumberFormatException if a relevant column of the row can not
+	 *         be parsed.
+	 */
+	boolean next() {
+		while (true) {
+			int lineEnd = findLineEnd();
+			if (lineEnd < 0) {
+				return false;
+			}
+			int lineStart = position;
+			// Continue after the line break.
+			position = (lineEnd < limit) ? lineEnd + 1 : lineEnd;
+			lineNumber++;
+			if (parseLine(lineStart, lineEnd)) {
+				return true;
+			}
+		}
+	}
+
+	double getDataValue() {
+		return dataValue;
+	}
+
+	int getVariableID() {
+		return variableID;
+	}
+
+	int getSiteID() {
+		return siteID;
+	}
+
+	/**
+	 * @return characters of dateTimeUTC, valid up to {@link #getDateLength()}.
+	 *         The array is reused for the next row.
+	 */
+	char[] getDateChars() {
+		return date;
+	}
+
+	int getDateLength() {
+		return dateLength;
+	}
+
+	String getDate() {
+		return new String(date, 0, dateLength);
+	}
+
+	/**
+	 * @return number of the line last read, starting at 1.
+	 */
+	long getLineNumber() {
+		return lineNumber;
+	}
+
+	// Find the end of the line starting at position. Refills the buffer if
+	// the line is not complete. Returns -1 at the end of the input.
+	private int findLineEnd() {
+		int scan = position;
+		while (true) {
+			for (; scan < limit; scan++) {
+				if (buffer[scan] == '\n') {
+					return scan;
+				}
+			}
+			if (eof) {
+				return (position < limit) ? limit : -1;
+			}
+			int scanned = scan - position;
+			fill();
+			scan = position + scanned;
+		}
+	}
+
+	// Move the remainder of the buffer to the front and read more characters.
+	private void fill() {
+		int remaining = limit - position;
+		if (remaining == buffer.length) {
+			// Line longer than buffer.
+			char[] larger = new char[buffer.length * 2];
+			System.arraycopy(buffer, position, larger, 0, remaining);
+			buffer = larger;
+		} else if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, remaining);
+		}
+		position = 0;
+		limit = remaining;
+		try {
+			int n = reader.read(buffer, limit, buffer.length - limit);
+			if (n < 0) {
+				eof = true;
+			} else {
+				limit += n;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Problem reading line from file.");
+		}
+	}
+
+	// Parse the relevant columns of a line. Returns false for lines that
+	// have to be skipped.
+	private boolean parseLine(int start, int end) {
+		// Trim trailing carriage return.
+		if (end > start && buffer[end - 1] == '\r') {
+			end--;
+		}
+		// Skip empty lines.
+		int first = start;
+		while (first < end && buffer[first] <= ' ') {
+			first++;
+		}
+		if (first == end) {
+			return false;
+		}
+		int column = 0;
+		int fieldStart = start;
+		boolean dataRow = true;
+		for (int i = start; i <= end && dataRow; i++) {
+			if (i == end || buffer[i] == ',') {
+				dataRow = parseField(column, fieldStart, i);
+				column++;
+				fieldStart = i + 1;
+				if (column > SITE_ID_COLUMN) {
+					break;
+				}
+			}
+		}
+		if (!dataRow) {
+			return false;
+		}
+		if (column <= SITE_ID_COLUMN) {
+			throw new NumberFormatException("Line " + lineNumber + " has only " + column + " columns.");
+		}
+		return true;
+	}
+
+	private boolean parseField(int column, int start, int end) {
+		// Remove superfluous spaces.
+		while (start < end && buffer[start] <= ' ') {
+			start++;
+		}
+		while (end > start && buffer[end - 1] <= ' ') {
+			end--;
+		}
+		switch (column) {
+		case DATA_VALUE_COLUMN:
+			if (start == end) {
+				throw new NumberFormatException("Line " + lineNumber + " has no dataValue.");
+			}
+			if (buffer[start] == 'D' && end - start > 1) {
+				// Header line.
+				return false;
+			}
+			dataValue = parseDouble(start, end);
+			break;
+		case VARIABLE_ID_COLUMN:
+			variableID = parseInt(start, end);
+			break;
+		case DATE_COLUMN:
+			dateLength = end - start;
+			if (dateLength > date.length) {
+				date = new char[dateLength];
+			}
+			System.arraycopy(buffer, start, date, 0, dateLength);
+			break;
+		case SITE_ID_COLUMN:
+			siteID = parseInt(start, end);
+			break;
+		default:
+			break;
+		}
+		return true;
+	}
+
+	private int parseInt(int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+			negative = buffer[i] == '-';
+			i++;
+		}
+		if (i == end || end - i > 9) {
+			// Empty or possibly too large, let Integer report it.
+			return Integer.parseInt(new String(buffer, start, end - start));
+		}
+		int result = 0;
+		for (; i < end; i++) {
+			int digit = buffer[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("For input string: \"" + new String(buffer, start, end - start)
+						+ "\" in line " + lineNumber);
+			}
+			result = result * 10 + digit;
+		}
+		return negative ? -result : result;
+	}
+
+	// Parses plain decimal numbers with up to 15 significant digits exactly.
+	// Everything else is handed to Double.parseDouble.
+	private double parseDouble(int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+			negative = buffer[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int scale = 0;
+		boolean seenDigit = false;
+		boolean seenPoint = false;
+		for (; i < end; i++) {
+			char c = buffer[i];
+			if (c >= '0' && c <= '9') {
+				seenDigit = true;
+				if (mantissa == 0 && c == '0') {
+					// Leading zeros are not significant.
+					if (seenPoint) {
+						scale++;
+					}
+					continue;
+				}
+				if (digits == 15) {
+					return slowParseDouble(start, end);
+				}
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (seenPoint) {
+					scale++;
+				}
+			} else if (c == '.' && !seenPoint) {
+				seenPoint = true;
+			} else {
+				// Exponent or invalid character.
+				return slowParseDouble(start, end);
+			}
+		}
+		if (!seenDigit) {
+			return slowParseDouble(start, end);
+		}
+		if (scale >= POWERS_OF_TEN.length) {
+			return slowParseDouble(start, end);
+		}
+		double result = (double) mantissa / POWERS_OF_TEN[scale];
+		return negative ? -result : result;
+	}
+
+	private double slowParseDouble(int start, int end) {
+		try {
+			return Double.parseDouble(new String(buffer, start, end - start));
+		} catch (NumberFormatException e) {
+			throw new NumberFormatException(e.getMessage() + " in line " + lineNumber);
+		}
+	}
+
+}
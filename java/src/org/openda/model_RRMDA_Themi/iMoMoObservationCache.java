@@ -0,0 +1,317 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Binary cache of a parsed iMoMo.csv file.
+ * <p>
+ * The observations parsed from iMoMo.csv are written to a sidecar file
+ * next to the csv file (iMoMo.csv.cache). The sidecar is valid as long as
+ * the size and the modification date of the csv file are the same as when
+ * it was written. Later reads of the same csv file, e.g. when a hindcast is
+ * restarted, read the sidecar instead of parsing the text. The sidecar is read
+ * with a plain channel read, not memory-mapped, since a mapping would keep the
+ * file locked on Windows until it is garbage collected and block the
+ * replacement of the sidecar. The sidecar
+ * also holds the byte offset where reading stopped, together with checksums
+ * of the csv file. If rows have been appended to the csv file since, only
+ * the appended rows have to be parsed (see
+ * {@link iMoMoObservationReader#readFile(File, boolean)}).
+ * <p>
+ * The sidecar stores the data in columns: <br>
+ *   header: magic, version, csv size, csv modification date, resume offset,
+ *           checksums of the csv file, number of skipped rows and removed
+ *           duplicate readings, all readings flag, number of series,
+ *           number of readings <br>
+ *   per series: variableID, siteID, number of readings in the csv, time and value
+ *           of the latest reading, number of stored readings <br>
+ *   per reading: time (MJD) and value, grouped by series and sorted by time <br>
+ * If only the latest readings have been parsed, no readings are stored. A
+ * sidecar has to fit into one buffer, larger files (about 134 million
+ * readings) are not cached.
+ * <p>
+ * copyright hydrosolutions ltd. 2015 <br>
+ * license   see LICENSE
+ *
+ */
+class iMoMoObservationCache {
+
+	static final String SUFFIX = ".cache";
+
+	private static final int MAGIC = 0x694D6F4D; // iMoM
+	private static final int VERSION = 3;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 8 + 8 + 8 + 8 + 4 + 4 + 4;
+	private static final int SERIES_SIZE = 4 + 4 + 4 + 8 + 8 + 4;
+	// Largest sidecar that fits into one buffer.
+	static final long MAX_SIZE = Integer.MAX_VALUE - 8;
+
+	// Operations reported by Diagnostics.
+	private static final Diagnostics.Operation LOAD = Diagnostics.operation("iMoMoObservationCache.load");
+	private static final Diagnostics.Operation STORE = Diagnostics.operation("iMoMoObservationCache.store");
+
+	private iMoMoObservationCache() {
+	}
+
+	/**
+	 * @param csvFile iMoMo.csv
+	 * @return the sidecar file of iMoMo.csv.
+	 */
+	static File getCacheFile(File csvFile) {
+		return new File(csvFile.getPath() + SUFFIX);
+	}
+
+	/**
+	 * @param numberOfSeries number of series.
+	 * @param numberOfReadings number of stored readings of all series.
+	 * @return size of the sidecar in bytes.
+	 */
+	static long size(long numberOfSeries, long numberOfReadings) {
+		return HEADER_SIZE + numberOfSeries * SERIES_SIZE + numberOfReadings * 16;
+	}
+
+	/**
+	 * Read the observations from the sidecar of a csv file.
+	 * <p>
+	 * The sidecar is returned even if the csv file has changed since it was
+	 * written. The state of the csv file at that time is set in the returned
+	 * reader, it is up to the caller to check it.
+	 *
+	 * @param csvFile iMoMo.csv
+	 * @param allReadings true if all readings are needed, not only the latest.
+	 * @return the observations or null if there is no usable sidecar.
+	 */
+	static iMoMoObservationReader load(File csvFile, boolean allReadings) {
+
+		File cacheFile = getCacheFile(csvFile);
+		if (!cacheFile.isFile()) {
+			return null;
+		}
+
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(cacheFile, "r");
+			FileChannel channel = file.getChannel();
+			long fileSize = channel.size();
+			if (fileSize < HEADER_SIZE || fileSize > MAX_SIZE) {
+				return null;
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) fileSize);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				// Read until the buffer is full.
+			}
+			if (buffer.hasRemaining()) {
+				return null; // Truncated while reading.
+			}
+			buffer.flip();
+
+			// Header.
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return null;
+			}
+			long csvLength = buffer.getLong();
+			long csvLastModified = buffer.getLong();
+			long resumeOffset = buffer.getLong();
+			long headChecksum = buffer.getLong();
+			long tailChecksum = buffer.getLong();
+			long rejectedRows = buffer.getLong();
+			long duplicateReadings = buffer.getLong();
+			boolean cachedAllReadings = buffer.getInt() != 0;
+			int numberOfSeries = buffer.getInt();
+			int numberOfReadings = buffer.getInt();
+			if (allReadings && !cachedAllReadings) {
+				return null;
+			}
+			if (fileSize != size(numberOfSeries, numberOfReadings)) {
+				return null; // Incomplete.
+			}
+
+			// Series.
+			int[] variableIDs = new int[numberOfSeries];
+			int[] siteIDs = new int[numberOfSeries];
+			int[] counts = new int[numberOfSeries];
+			double[] latestMjds = new double[numberOfSeries];
+			double[] latestValues = new double[numberOfSeries];
+			int[] sizes = new int[numberOfSeries];
+			int position = HEADER_SIZE;
+			position = getInts(buffer, position, variableIDs);
+			position = getInts(buffer, position, siteIDs);
+			position = getInts(buffer, position, counts);
+			position = getDoubles(buffer, position, latestMjds);
+			position = getDoubles(buffer, position, latestValues);
+			position = getInts(buffer, position, sizes);
+
+			// Readings.
+			int timesPosition = position;
+			int valuesPosition = position + numberOfReadings * 8;
+			List<iMoMoSiteSeries> series = new ArrayList<iMoMoSiteSeries>(numberOfSeries);
+			for (int i = 0; i < numberOfSeries; i++) {
+				double[] times = null;
+				double[] values = null;
+				if (cachedAllReadings) {
+					times = new double[sizes[i]];
+					values = new double[sizes[i]];
+					timesPosition = getDoubles(buffer, timesPosition, times);
+					valuesPosition = getDoubles(buffer, valuesPosition, values);
+				}
+				series.add(new iMoMoSiteSeries(variableIDs[i], siteIDs[i], counts[i], latestMjds[i],
+						latestValues[i], times, values));
+			}
+
+			iMoMoObservationReader reader = iMoMoObservationReader.fromSeries(cachedAllReadings, series);
+			reader.setFileState(csvLength, csvLastModified, resumeOffset, headChecksum, tailChecksum);
+			reader.setCounters(rejectedRows, duplicateReadings);
+			return reader;
+
+		} catch (IOException e) {
+			LOAD.warn("problem reading ", cacheFile.getAbsolutePath(), " : ", e.getMessage());
+			return null;
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Write the observations to the sidecar of a csv file. Problems writing
+	 * the sidecar are reported but do not stop the run.
+	 *
+	 * @param csvFile iMoMo.csv
+	 * @param reader observations parsed from iMoMo.csv, with the state of
+	 *        iMoMo.csv when it was parsed.
+	 */
+	static void store(File csvFile, iMoMoObservationReader reader) {
+
+		boolean allReadings = reader.hasAllReadings();
+		Collection<iMoMoSiteSeries> series = reader.getAllSeries();
+		int numberOfSeries = series.size();
+		long readings = 0;
+		if (allReadings) {
+			for (iMoMoSiteSeries s : series) {
+				readings += s.getTimes().length;
+			}
+		}
+		File cacheFile = getCacheFile(csvFile);
+		long size = size(numberOfSeries, readings);
+		if (size > MAX_SIZE) {
+			STORE.warn(readings, " readings of ", csvFile.getAbsolutePath(),
+					" are too many for a sidecar, it is not written.");
+			cacheFile.delete();
+			return;
+		}
+		int numberOfReadings = (int) readings;
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) size);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putLong(reader.getFileLength());
+		buffer.putLong(reader.getFileLastModified());
+		buffer.putLong(reader.getResumeOffset());
+		buffer.putLong(reader.getHeadChecksum());
+		buffer.putLong(reader.getTailChecksum());
+		buffer.putLong(reader.getRejectedRows());
+		buffer.putLong(reader.getDuplicateReadings());
+		buffer.putInt(allReadings ? 1 : 0);
+		buffer.putInt(numberOfSeries);
+		buffer.putInt(numberOfReadings);
+		for (iMoMoSiteSeries s : series) {
+			buffer.putInt(s.variableID);
+		}
+		for (iMoMoSiteSeries s : series) {
+			buffer.putInt(s.siteID);
+		}
+		for (iMoMoSiteSeries s : series) {
+			buffer.putInt(s.getCount());
+		}
+		for (iMoMoSiteSeries s : series) {
+			buffer.putDouble(s.getLatestMjd());
+		}
+		for (iMoMoSiteSeries s : series) {
+			buffer.putDouble(s.getLatestValue());
+		}
+		for (iMoMoSiteSeries s : series) {
+			buffer.putInt(allReadings ? s.getTimes().length : 0);
+		}
+		if (allReadings) {
+			int position = buffer.position();
+			DoubleBuffer times = buffer.asDoubleBuffer();
+			for (iMoMoSiteSeries s : series) {
+				times.put(s.getTimes());
+			}
+			buffer.position(position + numberOfReadings * 8);
+			DoubleBuffer values = buffer.asDoubleBuffer();
+			for (iMoMoSiteSeries s : series) {
+				values.put(s.getValues());
+			}
+			buffer.position(buffer.position() + numberOfReadings * 8);
+		}
+		buffer.flip();
+
+		// Write to a temporary file first, so that readers never see a partial sidecar.
+		// Its name is unique, several JVMs may store the same sidecar at once.
+		File tempFile = null;
+		FileOutputStream out = null;
+		try {
+			tempFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+			out = new FileOutputStream(tempFile);
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			out.close();
+			out = null;
+			if (cacheFile.exists() && !cacheFile.delete()) {
+				throw new IOException("can not replace " + cacheFile.getAbsolutePath());
+			}
+			if (!tempFile.renameTo(cacheFile)) {
+				throw new IOException("can not rename " + tempFile.getAbsolutePath());
+			}
+		} catch (IOException e) {
+			STORE.warn("problem writing ", cacheFile.getAbsolutePath(), " : ", e.getMessage());
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private static int getInts(ByteBuffer buffer, int position, int[] destination) {
+		buffer.position(position);
+		IntBuffer view = buffer.asIntBuffer();
+		view.get(destination);
+		return position + destination.length * 4;
+	}
+
+	private static int getDoubles(ByteBuffer buffer, int position, double[] destination) {
+		buffer.position(position);
+		DoubleBuffer view = buffer.asDoubleBuffer();
+		view.get(destination);
+		return position + destination.length * 8;
+	}
+
+	private static void close(RandomAccessFile file) {
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,797 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+
+import org.openda.exchange.timeseries.TimeSeries;
+
+/**
+ * Reads iMoMo.csv once for all sub-catchments.
+ * <p>
+ * The observations of all sites are stored in the same iMoMo.csv file (see
+ * {@link iMoMoTimeSeriesFormatter} for a description of the columns).
+ * Instead of parsing the file once per sub-catchment, the reader parses it
+ * once and indexes the rows by variableID and siteID. The formatters of the
+ * individual sub-catchments then take their time series from the index.
+ * While the file is streamed only the latest reading of each variable and
+ * site is kept (see {@link iMoMoSiteSeries}), unless all readings are
+ * requested. In that case the complete time series of each site is
+ * available through {@link #getAll(int, int, String)}.
+ * <p>
+ * The last files read with {@link #readFile(File)} are kept in a cache,
+ * the least recently used file is dropped when it is full. The cached index
+ * is reused as long as the size and the modification date of the file do
+ * not change. The index is also
+ * written to a binary sidecar next to the file (see
+ * {@link iMoMoObservationCache}), so that later runs on the same file do
+ * not have to parse it again. When rows have been appended to the file,
+ * only the appended rows are parsed (see {@link #readFile(File, boolean)}).
+ * <p>
+ * Large files are split into line-aligned byte ranges (shards) that are
+ * parsed in parallel on a ForkJoinPool. Each shard is indexed separately,
+ * the indexes are then merged in the order of the shards in the file, so
+ * that the result is the same as when the file is parsed in one go.
+ * <p>
+ * copyright hydrosolutions ltd. 2015 <br>
+ * license   see LICENSE
+ *
+ */
+public class iMoMoObservationReader {
+
+	// variableID of discharge measurements.
+	public static final int DISCHARGE = 25;
+
+	// Number of bytes at the start and before the resume offset that are
+	// compared to detect a rewritten file.
+	private static final int CHECKSUM_BYTES = 4096;
+
+	// Size of the byte ranges of a file that are parsed in parallel. Files
+	// smaller than two shards are parsed in the calling thread.
+	static final long SHARD_SIZE = 16L * 1024 * 1024;
+
+	// Pool for parsing shards, created when the first large file is read.
+	private static ForkJoinPool pool = null;
+
+	// Operations reported by Diagnostics.
+	private static final Diagnostics.Operation READ_FILE = Diagnostics.operation("iMoMoObservationReader.readFile");
+	private static final Diagnostics.Operation SCREEN = Diagnostics.operation("iMoMoObservationReader.screen");
+
+	// Number of parsed files kept in this JVM. A file that is dropped is
+	// taken from its sidecar the next time it is read.
+	static final int CACHE_SIZE = 8;
+
+	// Files parsed in this JVM, keyed by their canonical path, least recently
+	// used first.
+	private static final Map<String, iMoMoObservationReader> parsedFiles =
+			new LinkedHashMap<String, iMoMoObservationReader>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, iMoMoObservationReader> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			};
+
+	// Observations of iMoMo.csv, keyed by variableID and siteID.
+	private HashMap<Long, iMoMoSiteSeries> index = new HashMap<Long, iMoMoSiteSeries>();
+	private boolean allReadings;
+
+	// State of the file at the time it was read.
+	private long fileLength = -1;
+	private long fileLastModified = -1;
+	private long resumeOffset = -1;
+	private long headChecksum = 0;
+	private long tailChecksum = 0;
+
+	// Rows that could not be read and readings removed because of duplicate times.
+	private long rejectedRows = 0;
+	private long duplicateReadings = 0;
+	private String firstRejection = null;
+
+	private iMoMoObservationReader(boolean allReadings) {
+		this.allReadings = allReadings;
+	}
+
+	/**
+	 * Parse iMoMo.csv from a stream.
+	 *
+	 * @param in input stream with the content of iMoMo.csv.
+	 * @return reader holding the indexed rows.
+	 */
+	public static iMoMoObservationReader read(InputStream in) {
+		return read(new InputStreamReader(in), false);
+	}
+
+	/**
+	 * Parse iMoMo.csv from a stream.
+	 *
+	 * @param in input stream with the content of iMoMo.csv.
+	 * @param allReadings true to keep all readings, not only the latest.
+	 * @return reader holding the indexed rows.
+	 */
+	public static iMoMoObservationReader read(InputStream in, boolean allReadings) {
+		return read(new InputStreamReader(in), allReadings);
+	}
+
+	/**
+	 * Parse iMoMo.csv from a reader.
+	 * <p>
+	 * The rows are streamed through a {@link iMoMoCsvTokenizer}. Header lines
+	 * (lines starting with a D) are skipped. All other rows are reduced into
+	 * the index.
+	 *
+	 * @param in reader with the content of iMoMo.csv.
+	 * @return reader holding the indexed rows.
+	 */
+	public static iMoMoObservationReader read(Reader in) {
+		return read(in, false);
+	}
+
+	/**
+	 * Parse iMoMo.csv from a reader.
+	 *
+	 * @param in reader with the content of iMoMo.csv.
+	 * @param allReadings true to keep all readings, not only the latest.
+	 * @return reader holding the indexed rows.
+	 */
+	public static iMoMoObservationReader read(Reader in, boolean allReadings) {
+
+		iMoMoObservationReader reader = new iMoMoObservationReader(allReadings);
+		reader.parse(in);
+		reader.reportRejectedRows("iMoMo.csv", 0);
+
+		return reader;
+	}
+
+	/**
+	 * Parse iMoMo.csv from a file or take the index from the cache if the
+	 * file has already been parsed and has not changed since.
+	 *
+	 * @param file iMoMo.csv
+	 * @return reader holding the indexed rows.
+	 */
+	public static iMoMoObservationReader readFile(File file) {
+		return readFile(file, false);
+	}
+
+	/**
+	 * Parse iMoMo.csv from a file or take the index from the cache if the
+	 * file has already been parsed and has not changed since. If all readings
+	 * are requested but the cached index only holds the latest readings, the
+	 * file is parsed again.
+	 * <p>
+	 * iMoMo.csv is append-only. If rows have been appended since the file
+	 * was parsed, only the appended rows are read, starting at the byte
+	 * offset where the previous read stopped. The file is parsed from the
+	 * start if it has been truncated or rewritten, i.e. if it is shorter
+	 * than before or if its first or last bytes before the offset have
+	 * changed.
+	 *
+	 * @param file iMoMo.csv
+	 * @param allReadings true to keep all readings, not only the latest.
+	 * @return reader holding the indexed rows.
+	 */
+	public static synchronized iMoMoObservationReader readFile(File file, boolean allReadings) {
+
+		String key = key(file);
+		long length = file.length();
+		long lastModified = file.lastModified();
+
+		// Take the last read of the file, from this JVM or from the sidecar.
+		iMoMoObservationReader previous = parsedFiles.get(key);
+		if (previous == null || (allReadings && !previous.allReadings)) {
+			previous = iMoMoObservationCache.load(file, allReadings);
+		}
+		if (previous != null && previous.fileLength == length && previous.fileLastModified == lastModified) {
+			parsedFiles.put(key, previous);
+			return previous;
+		}
+
+		iMoMoObservationReader reader;
+		long rejectedBefore = 0;
+		RandomAccessFile in = null;
+		try {
+			in = new RandomAccessFile(file, "r");
+			FileChannel channel = in.getChannel();
+			if (previous != null && previous.canResume(channel, length)) {
+				// Read only the rows appended since.
+				reader = previous.copy();
+				rejectedBefore = previous.rejectedRows;
+				reader.merge(readShards(channel, previous.resumeOffset, length, reader.allReadings, SHARD_SIZE));
+			} else {
+				reader = readShards(channel, 0, length, allReadings, SHARD_SIZE);
+			}
+			reader.setFileState(channel, length, lastModified);
+			reader.reportRejectedRows(file.getName(), rejectedBefore);
+		} catch (IOException e) {
+			throw READ_FILE.error("problem reading file ", file.getAbsolutePath(), " : ", e.getMessage());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		parsedFiles.put(key, reader);
+		iMoMoObservationCache.store(file, reader);
+
+		return reader;
+	}
+
+	/**
+	 * Reader of a file parsed in this JVM, without parsing it.
+	 *
+	 * @param file iMoMo.csv
+	 * @return the last reader of the file, null if it is not kept.
+	 */
+	static synchronized iMoMoObservationReader find(File file) {
+		return parsedFiles.get(key(file));
+	}
+
+	private static String key(File file) {
+		try {
+			return file.getCanonicalPath();
+		} catch (IOException e) {
+			return file.getAbsolutePath();
+		}
+	}
+
+	/**
+	 * Parse the bytes [start, end) of iMoMo.csv. If the range is larger than
+	 * two shards it is split at line ends and the shards are parsed in
+	 * parallel.
+	 *
+	 * @param channel channel of iMoMo.csv, start has to be at the start of a line.
+	 * @param start first byte to read.
+	 * @param end byte after the last byte to read.
+	 * @param allReadings true to keep all readings, not only the latest.
+	 * @param shardSize size of the byte ranges that are parsed in one task.
+	 * @return reader holding the indexed rows.
+	 */
+	static iMoMoObservationReader readShards(FileChannel channel, long start, long end, boolean allReadings,
+			long shardSize) throws IOException {
+		if (end - start < 2 * shardSize) {
+			iMoMoObservationReader reader = new iMoMoObservationReader(allReadings);
+			reader.parse(new InputStreamReader(new FileChannelInputStream(channel, start, end)));
+			return reader;
+		}
+		try {
+			return getPool().invoke(new ShardTask(channel, start, end, allReadings, shardSize));
+		} catch (ShardException e) {
+			throw e.getCause();
+		}
+	}
+
+	// Build a reader from observations read before.
+	static iMoMoObservationReader fromSeries(boolean allReadings, Collection<iMoMoSiteSeries> series) {
+		iMoMoObservationReader reader = new iMoMoObservationReader(allReadings);
+		for (iMoMoSiteSeries s : series) {
+			reader.index.put(key(s.variableID, s.siteID), s);
+		}
+		return reader;
+	}
+
+	/**
+	 * Set the state of the file the observations have been read from.
+	 *
+	 * @param length size of the file when it was read.
+	 * @param lastModified modification date of the file when it was read.
+	 * @param resumeOffset byte offset to continue reading at, -1 if the file
+	 *        can not be resumed.
+	 * @param headChecksum checksum of the first bytes of the file.
+	 * @param tailChecksum checksum of the last bytes before resumeOffset.
+	 */
+	void setFileState(long length, long lastModified, long resumeOffset, long headChecksum, long tailChecksum) {
+		this.fileLength = length;
+		this.fileLastModified = lastModified;
+		this.resumeOffset = resumeOffset;
+		this.headChecksum = headChecksum;
+		this.tailChecksum = tailChecksum;
+	}
+
+	long getFileLength() {
+		return fileLength;
+	}
+
+	long getFileLastModified() {
+		return fileLastModified;
+	}
+
+	long getResumeOffset() {
+		return resumeOffset;
+	}
+
+	long getHeadChecksum() {
+		return headChecksum;
+	}
+
+	long getTailChecksum() {
+		return tailChecksum;
+	}
+
+	/**
+	 * @return true if all readings have been kept, not only the latest.
+	 */
+	boolean hasAllReadings() {
+		return allReadings;
+	}
+
+	/**
+	 * @return the observations of all variables and sites.
+	 */
+	Collection<iMoMoSiteSeries> getAllSeries() {
+		return index.values();
+	}
+
+	/**
+	 * Get the observations of a variable at a site.
+	 *
+	 * @param variableID variableID column of iMoMo.csv.
+	 * @param siteID siteID column of iMoMo.csv.
+	 * @return observations, null if there are none.
+	 */
+	iMoMoSiteSeries getSeries(int variableID, int siteID) {
+		return index.get(key(variableID, siteID));
+	}
+
+	/**
+	 * Get the last measurement of a variable at a site as a time series.
+	 * <p>
+	 * If several data points have been measured for a given site the last
+	 * one is used. If there is no data for the site an empty time series
+	 * is returned.
+	 *
+	 * @param variableID variableID column of iMoMo.csv.
+	 * @param siteID siteID column of iMoMo.csv.
+	 * @param location location of the returned time series.
+	 * @return TimeSeries containing time and value.
+	 */
+	public TimeSeries getLatest(int variableID, int siteID, String location) {
+		return getLatest(new int[] {variableID}, siteID, location, iMoMoTimeSeriesFormatter.DEFAULT_QUANTITY);
+	}
+
+	/**
+	 * Get the last measurement of one or more variables at a site as a time
+	 * series.
+	 *
+	 * @param variableIDs variableID column of iMoMo.csv.
+	 * @param siteID siteID column of iMoMo.csv.
+	 * @param location location of the returned time series.
+	 * @param quantity quantity of the returned time series.
+	 * @return TimeSeries containing time and value.
+	 */
+	public TimeSeries getLatest(int[] variableIDs, int siteID, String location, String quantity) {
+		return getLatest(variableIDs, siteID, location, quantity, iMoMoScreening.NONE);
+	}
+
+	/**
+	 * Get the last accepted measurement of one or more variables at a site as
+	 * a time series.
+	 * <p>
+	 * The measurements of all given variables are combined. If several data
+	 * points have been measured at the same time the one of the first
+	 * variable is used. The measurements are screened first, the last one
+	 * that passes the screening is returned, so a rejected reading falls back
+	 * to the latest accepted one. The screening therefore needs all readings.
+	 * If there is no (accepted) data for the site an empty time series is
+	 * returned.
+	 *
+	 * @param variableIDs variableID column of iMoMo.csv.
+	 * @param siteID siteID column of iMoMo.csv.
+	 * @param location location of the returned time series.
+	 * @param quantity quantity of the returned time series.
+	 * @param screening quality screening of the measurements.
+	 * @return TimeSeries containing time and value.
+	 */
+	public TimeSeries getLatest(int[] variableIDs, int siteID, String location, String quantity,
+			iMoMoScreening screening) {
+
+		TimeSeries result = new TimeSeries(); // Initialize TimeSeries for return.
+
+		if (!allReadings && screening.isActive()) {
+			throw new RuntimeException("iMoMoObservationReader.getLatest(): only the latest readings have been read,"
+					+ " the screening needs all readings.");
+		}
+
+		double[] time = null;
+		double[] value = null;
+		if (screening.isActive()) {
+			// Screen all readings and take the last accepted one.
+			iMoMoSiteSeries combined = combine(variableIDs, siteID);
+			if (combined != null) {
+				double[] times = combined.getTimes().clone();
+				double[] values = combined.getValues().clone();
+				int accepted = screen(screening, siteID, times, values);
+				if (accepted > 0) {
+					time = new double[] {times[accepted - 1]};
+					value = new double[] {values[accepted - 1]};
+				}
+			}
+		} else {
+			// Take the latest reading over all variables.
+			iMoMoSiteSeries latest = null;
+			for (int variableID : variableIDs) {
+				iMoMoSiteSeries series = getSeries(variableID, siteID);
+				if (series != null && (latest == null || series.getLatestMjd() > latest.getLatestMjd())) {
+					latest = series;
+				}
+			}
+			if (latest != null) {
+				time = new double[] {latest.getLatestMjd()};
+				value = new double[] {latest.getLatestValue()};
+			}
+		}
+
+		// If there is data for the sub-catchment.
+		if (time != null) {
+			result.setData(time, value);
+			result.setLocation(location);
+		    result.setQuantity(quantity);
+		    result.setSource("measured");
+		}
+
+		return result;
+	}
+
+	/**
+	 * Get all measurements of a variable at a site as a time series.
+	 * <p>
+	 * The time series is sorted by time. If several data points have been
+	 * measured at the same time only the first one is used. If there is no
+	 * data for the site an empty time series is returned.
+	 *
+	 * @param variableID variableID column of iMoMo.csv.
+	 * @param siteID siteID column of iMoMo.csv.
+	 * @param location location of the returned time series.
+	 * @return TimeSeries containing times and values.
+	 */
+	public TimeSeries getAll(int variableID, int siteID, String location) {
+		return getAll(new int[] {variableID}, siteID, location, iMoMoTimeSeriesFormatter.DEFAULT_QUANTITY);
+	}
+
+	/**
+	 * Get all measurements of one or more variables at a site as a time
+	 * series.
+	 *
+	 * @param variableIDs variableID column of iMoMo.csv.
+	 * @param siteID siteID column of iMoMo.csv.
+	 * @param location location of the returned time series.
+	 * @param quantity quantity of the returned time series.
+	 * @return TimeSeries containing times and values.
+	 */
+	public TimeSeries getAll(int[] variableIDs, int siteID, String location, String quantity) {
+		return getAll(variableIDs, siteID, location, quantity, iMoMoScreening.NONE);
+	}
+
+	/**
+	 * Get all accepted measurements of one or more variables at a site as a
+	 * time series.
+	 * <p>
+	 * The measurements of all given variables are combined and sorted by
+	 * time. If several data points have been measured at the same time the
+	 * one of the first variable is used. Measurements that do not pass the
+	 * screening are left out. If there is no (accepted) data for the site an
+	 * empty time series is returned.
+	 *
+	 * @param variableIDs variableID column of iMoMo.csv.
+	 * @param siteID siteID column of iMoMo.csv.
+	 * @param location location of the returned time series.
+	 * @param quantity quantity of the returned time series.
+	 * @param screening quality screening of the measurements.
+	 * @return TimeSeries containing times and values.
+	 */
+	public TimeSeries getAll(int[] variableIDs, int siteID, String location, String quantity,
+			iMoMoScreening screening) {
+
+		if (!allReadings) {
+			throw new RuntimeException("iMoMoObservationReader.getAll(): only the latest readings have been read.");
+		}
+
+		TimeSeries result = new TimeSeries(); // Initialize TimeSeries for return.
+
+		// If there is data for the sub-catchment.
+		iMoMoSiteSeries combined = combine(variableIDs, siteID);
+		if (combined != null) {
+			double[] times = combined.getTimes().clone();
+			double[] values = combined.getValues().clone();
+			int accepted = times.length;
+			if (screening.isActive()) {
+				accepted = screen(screening, siteID, times, values);
+				times = Arrays.copyOf(times, accepted);
+				values = Arrays.copyOf(values, accepted);
+			}
+			if (accepted > 0) {
+				result.setData(times, values);
+				result.setLocation(location);
+			    result.setQuantity(quantity);
+			    result.setSource("measured");
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return number of rows that could not be read and have been skipped.
+	 */
+	public long getRejectedRows() {
+		return rejectedRows;
+	}
+
+	/**
+	 * @return number of readings that have been removed because an earlier
+	 *         reading of the same variable and site has the same time. Only
+	 *         counted if all readings are kept.
+	 */
+	public long getDuplicateReadings() {
+		return duplicateReadings;
+	}
+
+	// Set the counters, e.g. when the observations are restored from the sidecar.
+	void setCounters(long rejectedRows, long duplicateReadings) {
+		this.rejectedRows = rejectedRows;
+		this.duplicateReadings = duplicateReadings;
+	}
+
+	// Combine the readings of several variables at a site, null if there are none.
+	private iMoMoSiteSeries combine(int[] variableIDs, int siteID) {
+		iMoMoSiteSeries combined = null;
+		boolean copied = false;
+		for (int variableID : variableIDs) {
+			iMoMoSiteSeries series = getSeries(variableID, siteID);
+			if (series == null) {
+				continue;
+			}
+			if (combined == null) {
+				combined = series;
+			} else {
+				if (!copied) {
+					// Do not change the index.
+					combined = combined.copy();
+					copied = true;
+				}
+				double[] times = series.getTimes();
+				double[] values = series.getValues();
+				for (int i = 0; i < times.length; i++) {
+					combined.add(times[i], values[i]);
+				}
+				combined.finish();
+			}
+		}
+		return combined;
+	}
+
+	// Screen the readings of a site and report the rejected ones.
+	private static int screen(iMoMoScreening screening, int siteID, double[] times, double[] values) {
+		iMoMoScreening.Result result = screening.screen(times, values, times.length);
+		if (result.getRejectedByRange() > 0 || result.getRejectedByRate() > 0) {
+			SCREEN.warn("rejected ", result.getRejectedByRange(), " readings of site ", siteID,
+					" out of range and ", result.getRejectedByRate(), " changing too fast, ",
+					result.getAccepted(), " accepted");
+		}
+		return result.getAccepted();
+	}
+
+	// Print a warning if rows have been skipped since the given count.
+	private void reportRejectedRows(String source, long before) {
+		if (rejectedRows > before) {
+			READ_FILE.warn("skipped ", rejectedRows - before, " rows of ", source,
+					" that could not be read, e.g. ", firstRejection);
+		}
+	}
+
+	// Parse rows and add them to the index.
+	private void parse(Reader in) {
+		iMoMoCsvTokenizer tokenizer = new iMoMoCsvTokenizer(in);
+		iMoMoTimeParser timeParser = new iMoMoTimeParser();
+		while (true) {
+			// A row that can not be read is skipped, the rest of the file is still read.
+			try {
+				if (!tokenizer.next()) {
+					break;
+				}
+				double value = tokenizer.getDataValue();
+				if (Double.isNaN(value) || Double.isInfinite(value)) {
+					throw new NumberFormatException("dataValue " + value + " in line " + tokenizer.getLineNumber());
+				}
+				double mjd = timeParser.toMjd(tokenizer.getDateChars(), 0, tokenizer.getDateLength());
+				getOrCreate(tokenizer.getVariableID(), tokenizer.getSiteID()).add(mjd, value);
+			} catch (IllegalArgumentException e) {
+				rejectedRows++;
+				if (firstRejection == null) {
+					firstRejection = e.getMessage();
+				}
+			}
+		}
+		finish();
+	}
+
+	// Add the observations of the rows that follow the rows of this index in the file.
+	private void merge(iMoMoObservationReader following) {
+		for (iMoMoSiteSeries s : following.index.values()) {
+			getOrCreate(s.variableID, s.siteID).addAll(s);
+		}
+		rejectedRows += following.rejectedRows;
+		duplicateReadings += following.duplicateReadings;
+		if (firstRejection == null) {
+			firstRejection = following.firstRejection;
+		}
+		finish();
+	}
+
+	// Sort the readings and remove duplicate times.
+	private void finish() {
+		for (iMoMoSiteSeries series : index.values()) {
+			duplicateReadings += series.finish();
+		}
+	}
+
+	// Copy of the index, so that rows can be added without changing the
+	// index that may still be used by other formatters.
+	private iMoMoObservationReader copy() {
+		iMoMoObservationReader reader = new iMoMoObservationReader(allReadings);
+		for (iMoMoSiteSeries s : index.values()) {
+			reader.index.put(key(s.variableID, s.siteID), s.copy());
+		}
+		reader.rejectedRows = rejectedRows;
+		reader.duplicateReadings = duplicateReadings;
+		reader.firstRejection = firstRejection;
+		return reader;
+	}
+
+	// Remember where to continue reading the file. Reading can only be
+	// resumed if the file ends with a complete line.
+	private void setFileState(FileChannel channel, long length, long lastModified) throws IOException {
+		long offset = -1;
+		if (length == 0 || lastByte(channel, length) == '\n') {
+			offset = length;
+		}
+		setFileState(length, lastModified, offset, checksum(channel, 0, Math.min(length, CHECKSUM_BYTES)),
+				checksum(channel, Math.max(0, length - CHECKSUM_BYTES), length));
+	}
+
+	// Check that the file has only been appended to since it was read.
+	private boolean canResume(FileChannel channel, long length) throws IOException {
+		if (resumeOffset < 0 || length < resumeOffset || resumeOffset != fileLength) {
+			return false;
+		}
+		return checksum(channel, 0, Math.min(resumeOffset, CHECKSUM_BYTES)) == headChecksum
+				&& checksum(channel, Math.max(0, resumeOffset - CHECKSUM_BYTES), resumeOffset) == tailChecksum;
+	}
+
+	// Start of the first line that starts at or after position.
+	private static long lineStart(FileChannel channel, long position, long end) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		long offset = position - 1; // position is a line start if the byte before it is a line end.
+		while (offset < end) {
+			buffer.clear();
+			int n = channel.read(buffer, offset);
+			if (n < 0) {
+				break;
+			}
+			for (int i = 0; i < n; i++) {
+				if (buffer.get(i) == '\n') {
+					return Math.min(offset + i + 1, end);
+				}
+			}
+			offset += n;
+		}
+		return end;
+	}
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool();
+		}
+		return pool;
+	}
+
+	private static int lastByte(FileChannel channel, long length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		if (channel.read(buffer, length - 1) < 1) {
+			return -1;
+		}
+		return buffer.get(0);
+	}
+
+	// CRC32 of the bytes [from, to) of a file.
+	private static long checksum(FileChannel channel, long from, long to) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate((int) (to - from));
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, from + buffer.position()) < 0) {
+				break;
+			}
+		}
+		crc.update(buffer.array(), 0, buffer.position());
+		return crc.getValue();
+	}
+
+	// Get the observations of a variable at a site, add them if they do not exist yet.
+	private iMoMoSiteSeries getOrCreate(int variableID, int siteID) {
+		long k = key(variableID, siteID);
+		iMoMoSiteSeries series = index.get(k);
+		if (series == null) {
+			series = new iMoMoSiteSeries(variableID, siteID, allReadings);
+			index.put(k, series);
+		}
+		return series;
+	}
+
+	// Combine variableID and siteID to a single key.
+	static long key(int variableID, int siteID) {
+		return ((long) variableID << 32) | (siteID & 0xffffffffL);
+	}
+
+	// Parses a byte range of iMoMo.csv, splits it in two at a line end while it is larger than a shard.
+	private static class ShardTask extends RecursiveTask<iMoMoObservationReader> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		private final boolean allReadings;
+		private final long shardSize;
+
+		ShardTask(FileChannel channel, long start, long end, boolean allReadings, long shardSize) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.allReadings = allReadings;
+			this.shardSize = shardSize;
+		}
+
+		@Override
+		protected iMoMoObservationReader compute() {
+			try {
+				long middle = (end - start > shardSize) ? lineStart(channel, start + (end - start) / 2, end) : end;
+				if (middle <= start || middle >= end) {
+					iMoMoObservationReader reader = new iMoMoObservationReader(allReadings);
+					reader.parse(new InputStreamReader(new FileChannelInputStream(channel, start, end)));
+					return reader;
+				}
+				ShardTask first = new ShardTask(channel, start, middle, allReadings, shardSize);
+				ShardTask second = new ShardTask(channel, middle, end, allReadings, shardSize);
+				second.fork();
+				iMoMoObservationReader reader = first.compute();
+				reader.merge(second.join());
+				return reader;
+			} catch (IOException e) {
+				throw new ShardException(e);
+			}
+		}
+	}
+
+	// Carries an IOException out of a ShardTask.
+	private static class ShardException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		ShardException(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+
+}
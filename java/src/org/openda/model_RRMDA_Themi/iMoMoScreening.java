@@ -0,0 +1,192 @@
+package org.openda.model_RRMDA_Themi;
+
+/**
+ * Quality screening of the observations of one site of iMoMo.csv.
+ * <p>
+ * The screening works on the parsed readings of a site, sorted by time and
+ * without duplicate times (see {@link iMoMoSiteSeries}), before the time
+ * series for the data assimilation is built. Readings are rejected if <br>
+ *   the value is outside [minValue, maxValue], or <br>
+ *   the value changes faster than maxRatePerDay (absolute change per day)
+ *   compared to both its previous and its next reading. <br>
+ * A reading is never trusted only because it comes first, so a spike in
+ * the first reading is rejected like a spike anywhere else. The first and
+ * the last reading have a single neighbour, they are rejected if they change
+ * too fast compared to it while the neighbour agrees with its own other
+ * neighbour. Of less than three readings it can not be decided which one is
+ * wrong, they are kept. Rows that can not be read at all and readings with
+ * the same time as an earlier reading are already removed by
+ * {@link iMoMoObservationReader}.
+ * <p>
+ * The numbers of rejected readings are returned by {@link #screen(double[], double[], int)}
+ * and reported by the reader per site, so that a bad field upload shows up
+ * in the log instead of stopping the run. The screening itself holds only the
+ * limits and can be shared.
+ * <p>
+ * copyright hydrosolutions ltd. 2015 <br>
+ * license   see LICENSE
+ *
+ */
+public class iMoMoScreening {
+
+	// Screening that accepts all readings.
+	public static final iMoMoScreening NONE = new iMoMoScreening(Double.NEGATIVE_INFINITY,
+			Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+
+	private final double minValue;
+	private final double maxValue;
+	private final double maxRatePerDay;
+
+	/**
+	 * Outcome of the screening of the readings of a site.
+	 */
+	public static final class Result {
+
+		private final int accepted;
+		private final int rejectedByRange;
+		private final int rejectedByRate;
+
+		Result(int accepted, int rejectedByRange, int rejectedByRate) {
+			this.accepted = accepted;
+			this.rejectedByRange = rejectedByRange;
+			this.rejectedByRate = rejectedByRate;
+		}
+
+		/**
+		 * @return number of accepted readings, at the front of the arrays.
+		 */
+		public int getAccepted() {
+			return accepted;
+		}
+
+		/**
+		 * @return number of readings rejected because they were out of range.
+		 */
+		public int getRejectedByRange() {
+			return rejectedByRange;
+		}
+
+		/**
+		 * @return number of readings rejected because they changed too fast.
+		 */
+		public int getRejectedByRate() {
+			return rejectedByRate;
+		}
+	}
+
+	/**
+	 * @param minValue smallest accepted value.
+	 * @param maxValue largest accepted value.
+	 * @param maxRatePerDay largest accepted absolute change of the value per
+	 *        day, compared to the neighbouring readings.
+	 */
+	public iMoMoScreening(double minValue, double maxValue, double maxRatePerDay) {
+		if (minValue > maxValue || maxRatePerDay < 0.0) {
+			throw new IllegalArgumentException("iMoMoScreening: invalid limits, minValue " + minValue
+					+ ", maxValue " + maxValue + ", maxRatePerDay " + maxRatePerDay + ".");
+		}
+		this.minValue = minValue;
+		this.maxValue = maxValue;
+		this.maxRatePerDay = maxRatePerDay;
+	}
+
+	/**
+	 * @return true if the screening can reject readings.
+	 */
+	public boolean isActive() {
+		return hasRangeLimit() || hasRateLimit();
+	}
+
+	public boolean hasRangeLimit() {
+		return minValue != Double.NEGATIVE_INFINITY || maxValue != Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return true if readings are compared to the neighbouring readings.
+	 *         This needs all readings of a site, not only the latest.
+	 */
+	public boolean hasRateLimit() {
+		return maxRatePerDay != Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Screen readings sorted by time. The accepted readings are moved to the
+	 * front of the arrays, in their original order.
+	 *
+	 * @param times times of the readings in MJD, sorted.
+	 * @param values values of the readings.
+	 * @param size number of readings in the arrays.
+	 * @return number of accepted and rejected readings.
+	 */
+	public Result screen(double[] times, double[] values, int size) {
+
+		// Range limits.
+		int accepted = 0;
+		if (hasRangeLimit()) {
+			for (int i = 0; i < size; i++) {
+				double value = values[i];
+				if (value >= minValue && value <= maxValue) {
+					times[accepted] = times[i];
+					values[accepted] = value;
+					accepted++;
+				}
+			}
+		} else {
+			accepted = size;
+		}
+
+		// Rate of change limit, against the neighbours within range. The readings
+		// before i may have been moved already, they are kept in locals.
+		int kept = accepted;
+		if (hasRateLimit() && accepted > 2) {
+			kept = 0;
+			double previousTime = 0.0;
+			double previousValue = 0.0;
+			double beforeTime = 0.0;
+			double beforeValue = 0.0;
+			for (int i = 0; i < accepted; i++) {
+				double time = times[i];
+				double value = values[i];
+				boolean outlier;
+				if (i == 0) {
+					outlier = !withinRate(time, value, times[1], values[1])
+							&& withinRate(times[1], values[1], times[2], values[2]);
+				} else if (i == accepted - 1) {
+					outlier = !withinRate(previousTime, previousValue, time, value)
+							&& withinRate(beforeTime, beforeValue, previousTime, previousValue);
+				} else {
+					outlier = !withinRate(previousTime, previousValue, time, value)
+							&& !withinRate(time, value, times[i + 1], values[i + 1]);
+				}
+				beforeTime = previousTime;
+				beforeValue = previousValue;
+				previousTime = time;
+				previousValue = value;
+				if (!outlier) {
+					times[kept] = time;
+					values[kept] = value;
+					kept++;
+				}
+			}
+		}
+
+		return new Result(kept, size - accepted, accepted - kept);
+	}
+
+		public double getMinValue() {
+		return minValue;
+	}
+
+	public double getMaxValue() {
+		return maxValue;
+	}
+
+	public double getMaxRatePerDay() {
+		return maxRatePerDay;
+	}
+
+	private boolean withinRate(double time, double value, double nextTime, double nextValue) {
+		return Math.abs(nextValue - value) / (nextTime - time) <= maxRatePerDay;
+	}
+
+}
@@ -0,0 +1,237 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.util.Arrays;
+
+/**
+ * Observations of one variable at one site of iMoMo.csv.
+ * <p>
+ * The rows are reduced while the file is streamed: the latest reading
+ * (time in MJD and value) is kept, together with the number of readings.
+ * If several readings have the same time the first one is kept.
+ * <p>
+ * Optionally all readings are kept as well, in primitive arrays. When the
+ * file has been read, {@link #finish()} sorts them by time and removes
+ * readings with the same time as an earlier reading, so that they form a
+ * time series.
+ * <p>
+ * copyright hydrosolutions ltd. 2015 <br>
+ * license   see LICENSE
+ *
+ */
+class iMoMoSiteSeries {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	final int variableID;
+	final int siteID;
+
+	private int count = 0;
+	private double latestMjd = 0.0;
+	private double latestValue = 0.0;
+
+	// All readings, null if only the latest reading is kept.
+	private double[] times;
+	private double[] values;
+	private int size = 0;
+
+	iMoMoSiteSeries(int variableID, int siteID) {
+		this(variableID, siteID, false);
+	}
+
+	/**
+	 * @param variableID variableID column of iMoMo.csv.
+	 * @param siteID siteID column of iMoMo.csv.
+	 * @param keepAllReadings true to keep all readings, not only the latest.
+	 */
+	iMoMoSiteSeries(int variableID, int siteID, boolean keepAllReadings) {
+		this.variableID = variableID;
+		this.siteID = siteID;
+		if (keepAllReadings) {
+			times = new double[INITIAL_CAPACITY];
+			values = new double[INITIAL_CAPACITY];
+		}
+	}
+
+	/**
+	 * Restore observations that have been read before, e.g. from the
+	 * binary cache of {@link iMoMoObservationCache}.
+	 *
+	 * @param variableID variableID column of iMoMo.csv.
+	 * @param siteID siteID column of iMoMo.csv.
+	 * @param count number of readings.
+	 * @param latestMjd time of the latest reading in MJD.
+	 * @param latestValue value of the latest reading.
+	 * @param times times of all readings, sorted and without duplicates, or null.
+	 * @param values values of all readings, or null.
+	 */
+	iMoMoSiteSeries(int variableID, int siteID, int count, double latestMjd, double latestValue,
+			double[] times, double[] values) {
+		this.variableID = variableID;
+		this.siteID = siteID;
+		this.count = count;
+		this.latestMjd = latestMjd;
+		this.latestValue = latestValue;
+		this.times = times;
+		this.values = values;
+		this.size = (times == null) ? 0 : times.length;
+	}
+
+	/**
+	 * Add a reading.
+	 *
+	 * @param mjd time of the reading in MJD.
+	 * @param value value of the reading.
+	 */
+	void add(double mjd, double value) {
+		if (count == 0 || mjd > latestMjd) {
+			latestMjd = mjd;
+			latestValue = value;
+		}
+		count++;
+		if (times != null) {
+			if (size == times.length) {
+				times = Arrays.copyOf(times, Math.max(INITIAL_CAPACITY, size * 2));
+				values = Arrays.copyOf(values, Math.max(INITIAL_CAPACITY, size * 2));
+			}
+			times[size] = mjd;
+			values[size] = value;
+			size++;
+		}
+	}
+
+	/**
+	 * Add the readings of another part of the same file, e.g. when the file
+	 * has been parsed in shards. The other part has to follow this part in
+	 * the file, so that of several readings with the same time the first one
+	 * is kept. {@link #finish()} has to be called afterwards.
+	 *
+	 * @param other observations of the same variable and site.
+	 */
+	void addAll(iMoMoSiteSeries other) {
+		if (other.count == 0) {
+			return;
+		}
+		if (count == 0 || other.latestMjd > latestMjd) {
+			latestMjd = other.latestMjd;
+			latestValue = other.latestValue;
+		}
+		count += other.count;
+		if (times != null && other.times != null) {
+			if (size + other.size > times.length) {
+				times = Arrays.copyOf(times, size + other.size);
+				values = Arrays.copyOf(values, size + other.size);
+			}
+			System.arraycopy(other.times, 0, times, size, other.size);
+			System.arraycopy(other.values, 0, values, size, other.size);
+			size += other.size;
+		}
+	}
+
+	/**
+	 * Sort the kept readings by time and remove duplicate times. Has to be
+	 * called once all readings have been added. Readings can be added again
+	 * afterwards, e.g. when more rows have been appended to iMoMo.csv, as
+	 * long as finish is called again.
+	 *
+	 * @return number of readings removed because of duplicate times.
+	 */
+	int finish() {
+		if (times == null || size == 0) {
+			return 0;
+		}
+		boolean sorted = true;
+		for (int i = 1; i < size && sorted; i++) {
+			sorted = times[i - 1] <= times[i];
+		}
+		if (!sorted) {
+			// Stable, so the first of several readings with the same time stays first.
+			mergeSort(times, values, new double[size], new double[size], 0, size);
+		}
+		int unique = 1;
+		for (int i = 1; i < size; i++) {
+			if (times[i] != times[unique - 1]) {
+				times[unique] = times[i];
+				values[unique] = values[i];
+				unique++;
+			}
+		}
+		int duplicates = size - unique;
+		size = unique;
+		if (size < times.length) {
+			times = Arrays.copyOf(times, size);
+			values = Arrays.copyOf(values, size);
+		}
+		return duplicates;
+	}
+
+	/**
+	 * @return copy of the observations, more readings can be added to the copy.
+	 */
+	iMoMoSiteSeries copy() {
+		return new iMoMoSiteSeries(variableID, siteID, count, latestMjd, latestValue,
+				(times == null) ? null : Arrays.copyOf(times, size),
+				(values == null) ? null : Arrays.copyOf(values, size));
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	double getLatestMjd() {
+		return latestMjd;
+	}
+
+	double getLatestValue() {
+		return latestValue;
+	}
+
+	boolean hasAllReadings() {
+		return times != null;
+	}
+
+	/**
+	 * @return times of all readings in MJD, sorted and without duplicates.
+	 *         The array is not copied.
+	 */
+	double[] getTimes() {
+		return times;
+	}
+
+	/**
+	 * @return values of all readings, in the order of {@link #getTimes()}.
+	 *         The array is not copied.
+	 */
+	double[] getValues() {
+		return values;
+	}
+
+	// Stable merge sort of the range [from, to) of times, values are moved along.
+	private static void mergeSort(double[] times, double[] values, double[] tmpTimes, double[] tmpValues,
+			int from, int to) {
+		if (to - from < 2) {
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		mergeSort(times, values, tmpTimes, tmpValues, from, middle);
+		mergeSort(times, values, tmpTimes, tmpValues, middle, to);
+		if (times[middle - 1] <= times[middle]) {
+			return;
+		}
+		System.arraycopy(times, from, tmpTimes, from, to - from);
+		System.arraycopy(values, from, tmpValues, from, to - from);
+		int left = from;
+		int right = middle;
+		for (int i = from; i < to; i++) {
+			if (right >= to || (left < middle && tmpTimes[left] <= tmpTimes[right])) {
+				times[i] = tmpTimes[left];
+				values[i] = tmpValues[left];
+				left++;
+			} else {
+				times[i] = tmpTimes[right];
+				values[i] = tmpValues[right];
+				right++;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+package org.openda.model_RRMDA_Themi;
+
+/**
+ * Converts the dateTimeUTC column of iMoMo.csv to Modified Julian Days.
+ * <p>
+ * The dates in iMoMo.csv have the fixed layout <br>
+ *   yyyy-MM-dd HH:mm:SS.S <br>
+ * The parser reads the digits directly from the characters of the column
+ * and computes the MJD without building an intermediate oda date string
+ * (yyyyMMddHHmmss) and without SimpleDateFormat. The time part and the
+ * fraction of the seconds are optional. All times are UTC.
+ * <p>
+ * Most readings of a file share a few dates, so the day number of the
+ * date part is kept in a small cache.
+ * <p>
+ * A parser is not thread safe, use one parser per thread.
+ * <p>
+ * copyright hydrosolutions ltd. 2015 <br>
+ * license   see LICENSE
+ *
+ */
+class iMoMoTimeParser {
+
+	// MJD of 1970-01-01.
+	static final double MJD_1970 = 40587.0;
+
+	private static final long MILLIS_PER_DAY = 86400000L;
+	private static final int CACHE_SIZE = 16; // Power of 2.
+
+	// Direct mapped cache from yyyyMMdd to days since 1970-01-01.
+	private final int[] cachedDates = new int[CACHE_SIZE];
+	private final long[] cachedDays = new long[CACHE_SIZE];
+
+	iMoMoTimeParser() {
+		for (int i = 0; i < CACHE_SIZE; i++) {
+			cachedDates[i] = -1;
+		}
+	}
+
+	/**
+	 * @param date date with layout yyyy-MM-dd HH:mm:SS.S
+	 * @return date in MJD.
+	 */
+	double toMjd(String date) {
+		return toMjd(date.toCharArray(), 0, date.length());
+	}
+
+	/**
+	 * @param chars characters holding the date with layout yyyy-MM-dd HH:mm:SS.S
+	 * @param offset index of the first character of the date.
+	 * @param length number of characters of the date.
+	 * @return date in MJD.
+	 * @throws IllegalArgumentException if the date does not have the expected layout.
+	 */
+	double toMjd(char[] chars, int offset, int length) {
+
+		// yyyy-MM-dd
+		if (length < 10 || chars[offset + 4] != '-' || chars[offset + 7] != '-') {
+			throw invalid(chars, offset, length);
+		}
+		int year = digits(chars, offset, 4, offset, length);
+		int month = digits(chars, offset + 5, 2, offset, length);
+		int day = digits(chars, offset + 8, 2, offset, length);
+		if (month < 1 || month > 12 || day < 1 || day > 31) {
+			throw invalid(chars, offset, length);
+		}
+		long millis = daysSince1970(year, month, day) * MILLIS_PER_DAY;
+
+		// HH:mm:SS.S
+		if (length > 10) {
+			char separator = chars[offset + 10];
+			if ((separator != ' ' && separator != 'T') || length < 16 || chars[offset + 13] != ':') {
+				throw invalid(chars, offset, length);
+			}
+			int hours = digits(chars, offset + 11, 2, offset, length);
+			int minutes = digits(chars, offset + 14, 2, offset, length);
+			int seconds = 0;
+			int fraction = 0;
+			if (length > 16) {
+				if (length < 19 || chars[offset + 16] != ':') {
+					throw invalid(chars, offset, length);
+				}
+				seconds = digits(chars, offset + 17, 2, offset, length);
+				if (length > 19) {
+					if (chars[offset + 19] != '.') {
+						throw invalid(chars, offset, length);
+					}
+					// Milliseconds, further digits are ignored.
+					int scale = 100;
+					for (int i = offset + 20; i < offset + length; i++) {
+						int digit = chars[i] - '0';
+						if (digit < 0 || digit > 9) {
+							throw invalid(chars, offset, length);
+						}
+						fraction += digit * scale;
+						scale /= 10;
+					}
+				}
+			}
+			if (hours > 24 || minutes > 59 || seconds > 60) {
+				throw invalid(chars, offset, length);
+			}
+			millis += ((hours * 60L + minutes) * 60L + seconds) * 1000L + fraction;
+		}
+
+		return millis / (double) MILLIS_PER_DAY + MJD_1970;
+	}
+
+	// Days since 1970-01-01 of a date in the proleptic Gregorian calendar.
+	private long daysSince1970(int year, int month, int day) {
+		int key = (year * 100 + month) * 100 + day;
+		int slot = (key ^ (key >>> 5)) & (CACHE_SIZE - 1);
+		if (cachedDates[slot] == key) {
+			return cachedDays[slot];
+		}
+		// Count years from March on, so that the leap day is the last day of the year.
+		int y = (month <= 2) ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		long days = era * 146097L + dayOfEra - 719468L;
+		cachedDates[slot] = key;
+		cachedDays[slot] = days;
+		return days;
+	}
+
+	private int digits(char[] chars, int start, int count, int offset, int length) {
+		int result = 0;
+		for (int i = start; i < start + count; i++) {
+			int digit = chars[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw invalid(chars, offset, length);
+			}
+			result = result * 10 + digit;
+		}
+		return result;
+	}
+
+	private IllegalArgumentException invalid(char[] chars, int offset, int length) {
+		return new IllegalArgumentException("Problem reading time: " + new String(chars, offset, length)
+				+ " does not have the format yyyy-MM-dd HH:mm:SS.S");
+	}
+
+}
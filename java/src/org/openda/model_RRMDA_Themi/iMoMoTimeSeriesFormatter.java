@@ -0,0 +1,409 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.openda.exchange.timeseries.TimeSeries;
+import org.openda.exchange.timeseries.TimeSeriesFormatter;
+
+/**
+ * Formatter that reads and writes time series from iMoMo.csv file.
+ * <p>
+ * iMoMo.csv contains the observations collected for the input to the
+ * rainfall-runoff model RRMDA in a table. Each row entry in the
+ * csv file corresponds to one measurement and data pertaining to each
+ * measurement is stored in the columns. For example if 3 measurements
+ * have been taken on a given day, iMoMo.csv for that given day has 3
+ * entries rows.
+ * <p>
+ * The columns have the following headers: <br>
+ *   dataValue (double), relevant <br>
+ *   variableID (int), relevant <br>
+ *   dateTimeUTC (string), relevant <br>
+ *   latitude (double) <br>
+ *   longitude (double) <br>
+ *   siteID (int), relevant <br>
+ *   userID (int) <br>
+ *   siteName (string) <br>
+ *   userName (cell) <br>
+ * <p>
+ * The formatter reads the measurements of one or more variableIDs (e.g.
+ * variableID 25 for discharge data) at one siteID. The siteID specifies to
+ * which sub-catchment the measurement belongs. If several data points have
+ * been measured for a given sub-catchment the last one is used for the data
+ * assimilation. Optionally all measurements are read as a time series,
+ * sorted by time.
+ * <p>
+ * The variableIDs, the siteID, the location (name of the sub-catchment) and
+ * the quantity are passed to the constructor, either directly or as
+ * arguments of the form key=value: <br>
+ *   variableIDs=25 (comma separated list, default 25) <br>
+ *   siteID=1 <br>
+ *   location=subcatchment_1 (default subcatchment_&lt;siteID&gt;) <br>
+ *   quantity=mm (default mm) <br>
+ *   allObservations=false (default false) <br>
+ *   minValue, maxValue, maxRatePerDay (screening limits, default none) <br>
+ * <p>
+ * Rows that can not be read are skipped and counted by
+ * {@link iMoMoObservationReader}. The measurements are then screened with
+ * the limits (see {@link iMoMoScreening}) before the time series is built.
+ * If screening limits are set, all measurements are read even if only the
+ * last one is returned: a rejected last measurement falls back to the last
+ * accepted one, and with a rate of change limit it is compared to the
+ * earlier ones.
+ * <p>
+ * The formatters of all sub-catchments of a basin can also be created from
+ * a small properties file with {@link #createFormatters(File)}.
+ * <p>
+ * openDA creates a formatter from its class name with the constructor without
+ * arguments and passes it the file name given in the configuration. The
+ * configuration is then given behind the file name, separated by spaces, with
+ * the same arguments, e.g. <br>
+ *   iMoMo.csv siteID=2 location=subcatchment_2 variableIDs=25 <br>
+ * or with the properties file of {@link #createFormatters(File)} and the
+ * location of the sub-catchment, e.g. <br>
+ *   iMoMo.csv config=iMoMo.properties location=subcatchment_2 <br>
+ * A relative path of the properties file is taken relative to the directory of
+ * iMoMo.csv. The formatters for one sub-catchment, e.g.
+ * {@link iMoMoTimeSeriesFormatterC1}, need no configuration.
+ * <p>
+ * The parsing is done by {@link iMoMoObservationReader}. When the file is
+ * read with {@link #readFile(String)} it is parsed only once for all
+ * sub-catchments read in the same JVM.
+ * <p>
+ * copyright hydrosolutions ltd. 2015 <br>
+ * license   see LICENSE
+ *
+ */
+public class iMoMoTimeSeriesFormatter extends TimeSeriesFormatter {
+
+	// Defaults.
+	public static final String DEFAULT_QUANTITY = "mm";
+	public static final String LOCATION_PREFIX = "subcatchment_";
+
+	// Configuration, variableIDs is null until the formatter is configured.
+	private int[] variableIDs;
+	private int siteID;
+	private String location;
+	private String quantity;
+	private boolean allObservations;
+	private iMoMoScreening screening = iMoMoScreening.NONE;
+
+	/**
+	 * Formatter configured by the arguments behind the file name passed to
+	 * {@link #readFile(String)}, see class description.
+	 */
+	public iMoMoTimeSeriesFormatter() {
+	}
+
+	/**
+	 * @param variableIDs variableIDs to read, measurements of all of them are combined.
+	 * @param siteID siteID of the sub-catchment.
+	 * @param location location of the returned time series.
+	 * @param quantity quantity of the returned time series.
+	 * @param allObservations true to read all measurements of the
+	 *        sub-catchment, false to read only the last one.
+	 */
+	public iMoMoTimeSeriesFormatter(int[] variableIDs, int siteID, String location, String quantity,
+			boolean allObservations) {
+		this(variableIDs, siteID, location, quantity, allObservations, iMoMoScreening.NONE);
+	}
+
+	/**
+	 * @param variableIDs variableIDs to read, measurements of all of them are combined.
+	 * @param siteID siteID of the sub-catchment.
+	 * @param location location of the returned time series.
+	 * @param quantity quantity of the returned time series.
+	 * @param allObservations true to read all measurements of the
+	 *        sub-catchment, false to read only the last one.
+	 * @param screening quality screening of the measurements.
+	 */
+	public iMoMoTimeSeriesFormatter(int[] variableIDs, int siteID, String location, String quantity,
+			boolean allObservations, iMoMoScreening screening) {
+		configure(variableIDs, siteID, location, quantity, allObservations, screening);
+	}
+
+	/**
+	 * @param arguments arguments of the form key=value, see class description.
+	 */
+	public iMoMoTimeSeriesFormatter(String[] arguments) {
+		this(toProperties(arguments));
+	}
+
+	private iMoMoTimeSeriesFormatter(Properties arguments) {
+		configure(arguments);
+	}
+
+	/**
+	 * Create the formatters of all sub-catchments from a properties file.
+	 * <p>
+	 * The file contains the variableIDs, quantity and allObservations
+	 * (see class description) shared by all sub-catchments and one line
+	 * site.&lt;siteID&gt;=&lt;location&gt; per sub-catchment, e.g. <br>
+	 *   variableIDs=25 <br>
+	 *   quantity=mm <br>
+	 *   site.1=subcatchment_1 <br>
+	 *   site.2=subcatchment_2 <br>
+	 * The screening limits can be given for all sub-catchments, e.g.
+	 * maxValue=50, or per sub-catchment, e.g. site.2.maxValue=20.
+	 *
+	 * @param configFile properties file.
+	 * @return formatters by location, in the order of the siteIDs.
+	 */
+	public static Map<String, iMoMoTimeSeriesFormatter> createFormatters(File configFile) {
+		Properties config = new Properties();
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(configFile);
+			config.load(in);
+		} catch (IOException e) {
+			throw new RuntimeException("iMoMoTimeSeriesFormatter.createFormatters(): problem reading file "
+					+ configFile.getAbsolutePath() + " : " + e.getMessage());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return createFormatters(config);
+	}
+
+	/**
+	 * Create the formatters of all sub-catchments, see {@link #createFormatters(File)}.
+	 *
+	 * @param config configuration.
+	 * @return formatters by location, in the order of the siteIDs.
+	 */
+	public static Map<String, iMoMoTimeSeriesFormatter> createFormatters(Properties config) {
+		int[] variableIDs = parseIDs(config.getProperty("variableIDs", String.valueOf(iMoMoObservationReader.DISCHARGE)));
+		String quantity = config.getProperty("quantity", DEFAULT_QUANTITY).trim();
+		boolean allObservations = Boolean.parseBoolean(config.getProperty("allObservations", "false").trim());
+
+		// Sort the sites by siteID.
+		TreeMap<Integer, String> sites = new TreeMap<Integer, String>();
+		for (String key : config.stringPropertyNames()) {
+			if (key.startsWith("site.") && key.indexOf('.', "site.".length()) < 0) {
+				sites.put(parseID(key.substring("site.".length()), key), config.getProperty(key).trim());
+			}
+		}
+		Map<String, iMoMoTimeSeriesFormatter> formatters = new LinkedHashMap<String, iMoMoTimeSeriesFormatter>();
+		for (Map.Entry<Integer, String> site : sites.entrySet()) {
+			formatters.put(site.getValue(), new iMoMoTimeSeriesFormatter(variableIDs, site.getKey(),
+					site.getValue(), quantity, allObservations, parseScreening(config, "site." + site.getKey() + ".")));
+		}
+		return formatters;
+	}
+
+	// Public methods.
+	@Override
+	public void write(OutputStream out, TimeSeries series) {
+		write(new PrintWriter(out), series);
+	}
+
+	public void write(PrintWriter printer, TimeSeries series) {
+
+	}
+
+
+	@Override
+	public TimeSeries read(InputStream in) {
+		return select(iMoMoObservationReader.read(in, readAllObservations()));
+	}
+
+	/**
+	 * Read in data from iMoMo.csv
+	 * <p>
+	 * Stream through the entire file and take the last measurement of the
+	 * sub-catchment, or all of them.
+	 *
+	 * @param buff buffered reader with input stream.
+	 * @return TimeSeries containing time(s) and value(s).
+	 */
+	public TimeSeries read(BufferedReader buff) {
+		return select(iMoMoObservationReader.read(buff, readAllObservations()));
+	}
+
+	/**
+	 * Read in data from iMoMo.csv file.
+	 * <p>
+	 * The file is parsed only once per JVM for all sub-catchments (see
+	 * {@link iMoMoObservationReader#readFile(File)}). Arguments behind the
+	 * file name replace the configuration of the formatter, see class
+	 * description.
+	 *
+	 * @param fileName name of iMoMo.csv, optionally followed by arguments.
+	 * @return TimeSeries containing time(s) and value(s).
+	 */
+	@Override
+	public TimeSeries readFile(String fileName) {
+		// The arguments start at the first space followed by key=, the path may contain spaces.
+		String[] parts = fileName.trim().split("\\s+(?=[^\\s=]+=)");
+		File file = new File(parts[0]);
+		if (parts.length > 1) {
+			String[] arguments = new String[parts.length - 1];
+			System.arraycopy(parts, 1, arguments, 0, arguments.length);
+			configure(file, toProperties(arguments));
+		}
+		return select(iMoMoObservationReader.readFile(file, readAllObservations()));
+	}
+
+	public int[] getVariableIDs() {
+		return variableIDs == null ? null : variableIDs.clone();
+	}
+
+	public int getSiteID() {
+		return siteID;
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public String getQuantity() {
+		return quantity;
+	}
+
+	public boolean isAllObservations() {
+		return allObservations;
+	}
+
+	public iMoMoScreening getScreening() {
+		return screening;
+	}
+
+	// Take the time series of the sub-catchment from the parsed file.
+	private TimeSeries select(iMoMoObservationReader reader) {
+		if (variableIDs == null) {
+			throw new IllegalStateException("iMoMoTimeSeriesFormatter: no siteID configured,"
+					+ " give the arguments behind the file name.");
+		}
+		if (allObservations) {
+			return reader.getAll(variableIDs, siteID, location, quantity, screening);
+		}
+		return reader.getLatest(variableIDs, siteID, location, quantity, screening);
+	}
+
+	// A rejected last measurement falls back to the earlier ones.
+	private boolean readAllObservations() {
+		return allObservations || screening.isActive();
+	}
+
+	// Configuration from the arguments, or from the properties file of the argument config.
+	private void configure(File csvFile, Properties arguments) {
+		String config = arguments.getProperty("config");
+		if (config == null) {
+			configure(arguments);
+			return;
+		}
+		File configFile = new File(config);
+		if (!configFile.isAbsolute()) {
+			configFile = new File(csvFile.getAbsoluteFile().getParentFile(), config);
+		}
+		String location = arguments.getProperty("location");
+		if (location == null) {
+			throw new IllegalArgumentException("iMoMoTimeSeriesFormatter: location is missing, it selects"
+					+ " the sub-catchment of " + configFile.getAbsolutePath() + ".");
+		}
+		iMoMoTimeSeriesFormatter formatter = createFormatters(configFile).get(location);
+		if (formatter == null) {
+			throw new IllegalArgumentException("iMoMoTimeSeriesFormatter: location " + location
+					+ " is not in " + configFile.getAbsolutePath() + ".");
+		}
+		configure(formatter.variableIDs, formatter.siteID, formatter.location, formatter.quantity,
+				formatter.allObservations, formatter.screening);
+	}
+
+	private void configure(Properties arguments) {
+		configure(parseIDs(arguments.getProperty("variableIDs", String.valueOf(iMoMoObservationReader.DISCHARGE))),
+				parseID(arguments.getProperty("siteID"), "siteID"),
+				arguments.getProperty("location", LOCATION_PREFIX + arguments.getProperty("siteID", "").trim()),
+				arguments.getProperty("quantity", DEFAULT_QUANTITY),
+				Boolean.parseBoolean(arguments.getProperty("allObservations", "false").trim()),
+				parseScreening(arguments, ""));
+	}
+
+	private void configure(int[] variableIDs, int siteID, String location, String quantity,
+			boolean allObservations, iMoMoScreening screening) {
+		if (variableIDs == null || variableIDs.length == 0) {
+			throw new IllegalArgumentException("iMoMoTimeSeriesFormatter: no variableIDs given.");
+		}
+		this.variableIDs = variableIDs.clone();
+		this.siteID = siteID;
+		this.location = location;
+		this.quantity = quantity;
+		this.allObservations = allObservations;
+		this.screening = screening;
+	}
+
+	// Screening limits with the given key prefix, falling back to the limits without prefix.
+	private static iMoMoScreening parseScreening(Properties config, String prefix) {
+		double minValue = parseLimit(config, prefix, "minValue", Double.NEGATIVE_INFINITY);
+		double maxValue = parseLimit(config, prefix, "maxValue", Double.POSITIVE_INFINITY);
+		double maxRatePerDay = parseLimit(config, prefix, "maxRatePerDay", Double.POSITIVE_INFINITY);
+		if (minValue == Double.NEGATIVE_INFINITY && maxValue == Double.POSITIVE_INFINITY
+				&& maxRatePerDay == Double.POSITIVE_INFINITY) {
+			return iMoMoScreening.NONE;
+		}
+		return new iMoMoScreening(minValue, maxValue, maxRatePerDay);
+	}
+
+	private static double parseLimit(Properties config, String prefix, String name, double defaultValue) {
+		String value = config.getProperty(prefix + name, config.getProperty(name));
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("iMoMoTimeSeriesFormatter: " + name + " " + value + " is not a number.");
+		}
+	}
+
+	private static Properties toProperties(String[] arguments) {
+		Properties properties = new Properties();
+		if (arguments != null) {
+			for (String argument : arguments) {
+				int separator = argument.indexOf('=');
+				if (separator < 0) {
+					throw new IllegalArgumentException("iMoMoTimeSeriesFormatter: argument " + argument
+							+ " does not have the form key=value.");
+				}
+				properties.setProperty(argument.substring(0, separator).trim(), argument.substring(separator + 1).trim());
+			}
+		}
+		return properties;
+	}
+
+	private static int[] parseIDs(String ids) {
+		String[] parts = ids.split(",");
+		int[] result = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			result[i] = parseID(parts[i], "variableIDs");
+		}
+		return result;
+	}
+
+	private static int parseID(String id, String name) {
+		if (id == null) {
+			throw new IllegalArgumentException("iMoMoTimeSeriesFormatter: " + name + " is missing.");
+		}
+		try {
+			return Integer.parseInt(id.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("iMoMoTimeSeriesFormatter: " + name + " " + id + " is not a number.");
+		}
+	}
+
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.zip.Deflater;
 
 import org.openda.blackbox.interfaces.IoObjectInterface;
 import org.openda.exchange.DoubleExchangeItem;
@@ -16,6 +17,7 @@ import org.openda.utils.Time;
 import visad.data.units.ParseException;
 
 import com.jmatio.io.MatFileReader;
+import com.jmatio.io.MatFileWriteOptions;
 import com.jmatio.io.MatFileWriter;
 import com.jmatio.types.MLArray;
 import com.jmatio.types.MLDouble;
@@ -38,6 +40,9 @@ public class timeWrapper implements IoObjectInterface{
 	String configString;
 	String fileName = null;
 	HashMap<String, TimeWrapperExchangeItem> map = new HashMap<String, TimeWrapperExchangeItem>();
+	// Operations reported by Diagnostics.
+	private static final Diagnostics.Operation INITIALIZE = Diagnostics.operation("timeWrapper.initialize");
+	private static final Diagnostics.Operation FINISH = Diagnostics.operation("timeWrapper.finish");
 		
 	/**
 	 * Initialize the IoObject. Reads the content of a .mat file (fileName) in
@@ -53,6 +58,7 @@ public class timeWrapper implements IoObjectInterface{
 	 */
 	public void initialize(File workingDir, String fileName, String[] arguments) {
 			
+		long start = INITIALIZE.start();
 		this.workingDir = workingDir;
 		this.fileName = fileName;
 			
@@ -65,15 +71,16 @@ public class timeWrapper implements IoObjectInterface{
 			
 		File file = new File(workingDir, fileName);
 		if (!file.exists()) {
-			throw new RuntimeException("timeWrapper.initialize(): input file "
+			throw INITIALIZE.error("input file "
 					+ file.getAbsolutePath() + " does not exist");
 		}
 			
 			
 		try {
 				
-			// Read the .mat file.
-			MatFileReader matfilereader = new MatFileReader( file );
+			// Read the index of the .mat file, only the needed variables are decoded.
+			MatFileReader matfilereader = new MatFileReader();
+			matfilereader.readIndex( file );
 			MLArray readStartTime = matfilereader.getMLArray("startTime");
 			MLArray readEndTime = matfilereader.getMLArray("endTime");
 			MLArray readStep = matfilereader.getMLArray("step");
@@ -109,6 +116,7 @@ public class timeWrapper implements IoObjectInterface{
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
+			INITIALIZE.stop(start);
 			
 			
 		   
@@ -137,9 +145,7 @@ public class timeWrapper implements IoObjectInterface{
 
 	public void finish() {
 			
-		class Local {};
-	    String methodName = Local.class.getEnclosingMethod().getName();
-	    String className = this.getClass().getName();
+		long start = FINISH.start();
 		
 		// Iterate over hash map items and store data in a double array.
 		double[] startTime = this.map.get("startTime").exchangeItem.getValuesAsDoubles();
@@ -147,8 +153,7 @@ public class timeWrapper implements IoObjectInterface{
 		double[] step = this.map.get("step").exchangeItem.getValuesAsDoubles();
 			
 		// Writing.
-		System.out.println(className + "." + methodName + ": Writing to file: "+
-	                          this.workingDir + System.getProperty("line.separator") + this.fileName);
+		FINISH.info("Writing to file: ", this.workingDir, File.separator, this.fileName);
 		try{
 			File outputFile = new File(this.workingDir,this.fileName);
 			try{
@@ -156,7 +161,7 @@ public class timeWrapper implements IoObjectInterface{
 					outputFile.delete();
 				}
 			}catch (Exception e) {
-				System.out.println(className + "." + methodName + ": trouble removing file "+ fileName);
+				FINISH.warn("trouble removing file ", fileName);
 			}
 			try {
 				String startTimeString = org.openda.exchange.timeseries.TimeUtils.mjdToString(startTime[0]);
@@ -169,15 +174,17 @@ public class timeWrapper implements IoObjectInterface{
 		        list.add(mlend);
 		        list.add(mlstep);
 		        
-		        new MatFileWriter( outputFile, list );
+		        // Written every cycle, no compression needed.
+		        new MatFileWriter( outputFile, list,
+		        		new MatFileWriteOptions().setCompressionLevel(Deflater.NO_COMPRESSION) );
 				
 			} catch (Exception e) {
-				throw new RuntimeException(className + "." + methodName + ": Problem writing to file " + 
-						                   fileName+" : " + System.getProperty("line.separator") + e.getMessage());
+				throw FINISH.error("Problem writing to file ", fileName, " : ", e.getMessage());
 			}
 		}catch (Exception e) {
-			System.out.println(className + "." + methodName + ": Problem creating file.");
+			FINISH.warn("Problem creating file.");
 		}
+		FINISH.stop(start);
 		
 	}
 }
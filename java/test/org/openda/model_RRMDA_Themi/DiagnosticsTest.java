@@ -0,0 +1,42 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+public class DiagnosticsTest extends TestCase {
+
+	public DiagnosticsTest(String name) {
+		super(name);
+	}
+
+	public void testOperation() {
+		Diagnostics.Operation operation = Diagnostics.operation("DiagnosticsTest.testOperation");
+		assertEquals("DiagnosticsTest.testOperation", operation.getName());
+
+		long start = operation.start();
+		operation.stop(start);
+		operation.stop(operation.start());
+		assertEquals(2, operation.getCalls());
+		assertEquals(0, operation.getFailures());
+		assertTrue(operation.getMaxNanos() <= operation.getTotalNanos());
+
+		// The parts of the message are concatenated behind the name of the operation.
+		RuntimeException e = operation.error("input file ", new File("x.mat"), " has ", 3, " rows");
+		assertEquals("DiagnosticsTest.testOperation(): input file x.mat has 3 rows", e.getMessage());
+		assertEquals(1, operation.getFailures());
+
+		assertTrue(Diagnostics.report().contains("DiagnosticsTest.testOperation: 2 calls, 1 failed"));
+	}
+
+	public void testWrapperError() {
+		try {
+			new S0G0wrapper().initialize(new File("."), "missing.mat", new String[] {});
+			fail("missing.mat does not exist");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("S0G0wrapper.initialize(): input file"));
+		}
+		assertTrue(Diagnostics.report().contains("S0G0wrapper.initialize: "));
+	}
+
+}
@@ -2,6 +2,7 @@ package org.openda.model_RRMDA_Themi;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 
 import org.openda.blackbox.interfaces.IoObjectInterface;
@@ -9,6 +10,7 @@ import org.openda.interfaces.IPrevExchangeItem;
 import org.openda.model_RRMDA_Themi.Ewrapper;
 import org.openda.utils.OpenDaTestSupport;
 
+import com.jmatio.io.MatFileReader;
 import com.jmatio.io.MatFileWriter;
 import com.jmatio.types.MLArray;
 import com.jmatio.types.MLChar;
@@ -199,4 +201,125 @@ public class EwrapperTest extends TestCase {
 		}*/
 	}
 
+	public void testInitialize_vector() {
+
+		// One item with the central model column, 8 values per sub-catchment.
+		IoObjectInterface ewrapper = new Ewrapper();
+		ewrapper.initialize(testRunDataDir, fileName, new String[] {"exchangeItems=vector"});
+		IPrevExchangeItem[] exchangeItems = ewrapper.getExchangeItems();
+		assertEquals(1, exchangeItems.length);
+		assertEquals("E", exchangeItems[0].getId());
+		double[] values = exchangeItems[0].getValuesAsDoubles();
+		assertEquals(64, values.length);
+		for (int j=0; j<64; j++) {
+			assertEquals(j, values[j], 0.0);
+		}
+	}
+
+	public void testFinish_variables() throws IOException {
+
+		// One item per variable with one value per sub-catchment.
+		IoObjectInterface ewrapper = new Ewrapper();
+		ewrapper.initialize(testRunDataDir, fileName, new String[] {"exchangeItems=variables"});
+		IPrevExchangeItem[] exchangeItems = ewrapper.getExchangeItems();
+		assertEquals(8, exchangeItems.length);
+		assertEquals("ETact", exchangeItems[3].getId());
+		// ETact of sub-catchment 2 is in row 11 of E.
+		assertEquals(11.0, exchangeItems[3].getValuesAsDoubles()[1], 0.0);
+
+		double[] smax = exchangeItems[7].getValuesAsDoubles();
+		for (int c=0; c<smax.length; c++) {
+			smax[c] = 100 + c;
+		}
+		exchangeItems[7].setValuesAsDoubles(smax);
+		ewrapper.finish();
+
+		// All columns of E contain the new Smax values.
+		MLDouble E = (MLDouble) new MatFileReader(new File(testRunDataDir, fileName)).getMLArray("E");
+		assertEquals(64, E.getM());
+		assertEquals(100, E.getN());
+		for (int c=0; c<8; c++) {
+			assertEquals(100.0 + c, E.get(c*8 + 7, 0), 0.0);
+			assertEquals(100.0 + c, E.get(c*8 + 7, 99), 0.0);
+			assertEquals(c*8 + 6.0, E.get(c*8 + 6, 99), 0.0);
+		}
+	}
+
+	public void testFinish_ensemble() throws IOException {
+
+		// Three members in the working directories work0, work1 and work2.
+		File ensembleFile = new File(testRunDataDir, "ensembleE.mat");
+		ensembleFile.delete();
+		String[] arguments = new String[] {"exchangeItems=vector", "ensembleFile=../ensembleE.mat",
+				"ensembleSize=3"};
+		IoObjectInterface[] members = new IoObjectInterface[3];
+		for (int member=0; member<3; member++) {
+			File workingDir = new File(testRunDataDir, "work" + member);
+			workingDir.mkdirs();
+			File memberFile = new File(workingDir, fileName);
+			memberFile.delete();
+			Files.copy(new File(testRunDataDir, fileName).toPath(), memberFile.toPath());
+			members[member] = new Ewrapper();
+			members[member].initialize(workingDir, fileName, arguments);
+			IPrevExchangeItem state = members[member].getExchangeItems()[0];
+			double[] values = state.getValuesAsDoubles();
+			for (int j=0; j<values.length; j++) {
+				values[j] = member * 1000 + j;
+			}
+			state.setValuesAsDoubles(values);
+		}
+
+		members[0].finish();
+		members[1].finish();
+		assertFalse(ensembleFile.exists());
+		members[2].finish();
+
+		// Column j holds member j % 3.
+		MLDouble E = (MLDouble) new MatFileReader(ensembleFile).getMLArray("E");
+		assertEquals(64, E.getM());
+		assertEquals(100, E.getN());
+		for (int j=0; j<100; j++) {
+			assertEquals((j % 3) * 1000 + 5.0, E.get(5, j), 0.0);
+		}
+		// The member files still hold the own column.
+		MLDouble E1 = (MLDouble) new MatFileReader(new File(testRunDataDir, "work1/" + fileName)).getMLArray("E");
+		assertEquals(1005.0, E1.get(5, 99), 0.0);
+
+		// An incomplete analysis is reported with the missing members.
+		members[0].finish();
+		members[2].finish();
+		try {
+			members[2].finish();
+			fail("member 1 did not contribute");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("incomplete"));
+			assertTrue(e.getMessage(), e.getMessage().contains("before members 1 of 3"));
+		}
+
+		// A failed write can be retried by the member that completed the round.
+		File blocked = new File(testRunDataDir, "blockedE.mat");
+		blocked.delete();
+		blocked.mkdir();
+		EnsembleMatrix matrix = EnsembleMatrix.get(blocked, "E", 2, 2, 2);
+		assertFalse(matrix.contribute(0, new double[] {1.0, 2.0}));
+		try {
+			matrix.contribute(1, new double[] {3.0, 4.0});
+			fail("blockedE.mat is a directory");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("problem writing"));
+		}
+		blocked.delete();
+		assertTrue(matrix.contribute(1, new double[] {3.0, 4.0}));
+		assertEquals(3.0, ((MLDouble) new MatFileReader(blocked).getMLArray("E")).get(0, 1), 0.0);
+
+		// The ensemble size is required with the ensemble file.
+		try {
+			new Ewrapper().initialize(new File(testRunDataDir, "work0"), fileName,
+					new String[] {"exchangeItems=vector", "ensembleFile=../ensembleE.mat"});
+			fail("ensembleSize is missing");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("ensembleSize"));
+		}
+	}
+
 }
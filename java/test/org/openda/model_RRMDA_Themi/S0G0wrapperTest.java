@@ -2,6 +2,7 @@ package org.openda.model_RRMDA_Themi;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -10,6 +11,8 @@ import org.openda.blackbox.interfaces.IoObjectInterface;
 import org.openda.interfaces.IPrevExchangeItem;
 import org.openda.utils.OpenDaTestSupport;
 
+import com.jmatio.io.MatFilePatcher;
+import com.jmatio.io.MatFileReader;
 import com.jmatio.io.MatFileWriter;
 import com.jmatio.types.MLArray;
 import com.jmatio.types.MLDouble;
@@ -230,4 +233,83 @@ public class S0G0wrapperTest extends TestCase {
 		}
 	}
 
+	public void testInitialize_missingArrays() throws IOException {
+
+		// A file without SG can not be used, initialize fails instead of giving no items.
+		File workingDir = new File(testRunDataDir, "missingSG");
+		workingDir.mkdirs();
+		ArrayList<MLArray> list = new ArrayList<MLArray>();
+		list.add(new MLDouble("S0", new double[] {1, 2}, 1));
+		list.add(new MLDouble("G0", new double[] {3, 4}, 1));
+		new MatFileWriter(new File(workingDir, fileName), list);
+		try {
+			new S0G0wrapper().initialize(workingDir, fileName, args);
+			fail(fileName + " does not contain SG");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("S0G0wrapper.initialize(): problem reading input file"));
+			assertTrue(e.getMessage(), e.getMessage().contains("S0, G0 and SG"));
+		}
+	}
+
+	public void testFinish_sharedTemplate() throws IOException {
+
+		// Two members start from copies of the same, compressed file.
+		File[] files = new File[2];
+		for (int member=0; member<2; member++) {
+			File workingDir = new File(testRunDataDir, "member" + member);
+			workingDir.mkdirs();
+			files[member] = new File(workingDir, fileName);
+			files[member].delete();
+			Files.copy(new File(testRunDataDir, fileName).toPath(), files[member].toPath());
+		}
+		MLArray expectedSG = new MatFileReader(files[0]).getMLArray("SG");
+
+		IoObjectInterface member0 = new S0G0wrapper();
+		member0.initialize(files[0].getParentFile(), fileName, args);
+		// The file is parsed by initialize, once for the copies of both members.
+		assertNotNull(S0G0Template.find(files[0]));
+		assertSame(S0G0Template.find(files[0]), S0G0Template.find(files[1]));
+		member0.finish();
+		assertNotNull(S0G0Template.find(files[0]));
+		assertEquals(expectedSG, new MatFileReader(files[0]).getMLArray("SG"));
+
+		// The second member shares the storage of SG.
+		IoObjectInterface member1 = new S0G0wrapper();
+		member1.initialize(files[1].getParentFile(), fileName, args);
+		assertTrue(S0G0Template.find(files[1]).sharesSG(S0G0Template.find(files[0])));
+		IPrevExchangeItem[] exchangeItems = member1.getExchangeItems();
+		assertEquals(3.0, exchangeItems[3].getValuesAsDoubles()[0], 0.0);
+		exchangeItems[3].setValuesAsDoubles(new double[] {42.0});
+		member1.finish();
+		long length = files[1].length();
+
+		// Later cycles overwrite S0 and G0 in place.
+		member1 = new S0G0wrapper();
+		member1.initialize(files[1].getParentFile(), fileName, args);
+		exchangeItems = member1.getExchangeItems();
+		assertEquals(42.0, exchangeItems[3].getValuesAsDoubles()[0], 0.0);
+		exchangeItems[8].setValuesAsDoubles(new double[] {-1.0});
+		member1.finish();
+		assertEquals(length, files[1].length());
+		MatFileReader reader = new MatFileReader(files[1]);
+		assertEquals(42.0, ((MLDouble) reader.getMLArray("S0")).get(0, 3), 0.0);
+		assertEquals(-1.0, ((MLDouble) reader.getMLArray("G0")).get(0, 0), 0.0);
+		assertEquals(expectedSG, reader.getMLArray("SG"));
+
+		// A file changed by the model is parsed again, even with the same length and time.
+		long lastModified = files[1].lastModified();
+		MatFilePatcher patcher = new MatFilePatcher(files[1]);
+		try {
+			patcher.patch(new MLDouble("S0", new double[] {7, 7, 7, 7, 7, 7, 7, 7}, 1));
+		} finally {
+			patcher.close();
+		}
+		files[1].setLastModified(lastModified);
+		assertEquals(length, files[1].length());
+		assertNull(S0G0Template.find(files[1]));
+		member1 = new S0G0wrapper();
+		member1.initialize(files[1].getParentFile(), fileName, args);
+		assertEquals(7.0, member1.getExchangeItems()[3].getValuesAsDoubles()[0], 0.0);
+	}
+
 }
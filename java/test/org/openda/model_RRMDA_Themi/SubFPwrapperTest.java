@@ -0,0 +1,201 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.openda.blackbox.interfaces.IoObjectInterface;
+import org.openda.interfaces.IPrevExchangeItem;
+import org.openda.utils.OpenDaTestSupport;
+
+import com.jmatio.io.MatFileReader;
+import com.jmatio.io.MatFileWriter;
+import com.jmatio.types.MLArray;
+import com.jmatio.types.MLChar;
+import com.jmatio.types.MLDouble;
+
+import junit.framework.TestCase;
+
+public class SubFPwrapperTest extends TestCase {
+
+	// Use openDA test suite.
+	private File testRunDataDir;
+	private OpenDaTestSupport testData;
+
+	private String fileName = "testSub_FP.mat";
+	private String[] args = {};
+
+	private int numberOfSteps = 5;
+	private int numberOfSubcatchments = 8;
+
+
+	public SubFPwrapperTest(String name) {
+		super(name);
+	}
+
+	protected void setUp() throws Exception {
+		// Set up oda test environment.
+		testData = new OpenDaTestSupport(SubFPwrapperTest.class, "model_RRMDA_Themi");
+		testRunDataDir = testData.getTestRunDataDir();
+
+		// Write .mat file for testing: precipitation with one column per sub-catchment,
+		// potential evapotranspiration with one row per sub-catchment.
+		double[] time = new double[numberOfSteps];
+		double[] p = new double[numberOfSteps * numberOfSubcatchments];
+		double[] etp = new double[numberOfSubcatchments * numberOfSteps];
+		for (int t=0; t<numberOfSteps; t++) {
+			time[t] = 57000 + t;
+			for (int c=0; c<numberOfSubcatchments; c++) {
+				p[c*numberOfSteps+t] = 10*c + t;
+				etp[t*numberOfSubcatchments+c] = 100 + 10*c + t;
+			}
+		}
+
+		ArrayList<MLArray> list = new ArrayList<MLArray>();
+		list.add( new MLDouble( "time", time, 1 ) );
+		list.add( new MLDouble( "P", p, numberOfSteps ) );
+		list.add( new MLDouble( "ETp", etp, numberOfSubcatchments ) );
+		list.add( new MLChar( "source", "forecast" ) );
+
+		//write arrays to file, compressed as matlab does
+		File file = new File(testRunDataDir, fileName);
+		new MatFileWriter( file, list );
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+	}
+
+	public void testInitialize() {
+		// Create wrapper object.
+		IoObjectInterface wrapper = new SubFPwrapper();
+		// Read file.
+		wrapper.initialize(testRunDataDir, fileName, args);
+		// Get exchange items.
+		IPrevExchangeItem[] exchangeItems = wrapper.getExchangeItems();
+
+		assertEquals(numberOfSubcatchments*2, exchangeItems.length);
+
+		// Test what is read.
+		for (int c=0; c<numberOfSubcatchments; c++) {
+			IPrevExchangeItem p = exchangeItems[c];
+			IPrevExchangeItem etp = exchangeItems[numberOfSubcatchments+c];
+			assertEquals("P."+(c+1), p.getId());
+			assertEquals("ETp."+(c+1), etp.getId());
+
+			double[] readTimes = p.getTimes();
+			double[] readP = p.getValuesAsDoubles();
+			double[] readETp = etp.getValuesAsDoubles();
+			assertEquals(numberOfSteps, readTimes.length);
+			assertEquals(numberOfSteps, readP.length);
+			assertEquals(numberOfSteps, readETp.length);
+			for (int t=0; t<numberOfSteps; t++) {
+				assertEquals(57000.0 + t, readTimes[t], 0.0);
+				assertEquals(10.0*c + t, readP[t], 0.0);
+				assertEquals(100.0 + 10*c + t, readETp[t], 0.0);
+			}
+		}
+	}
+
+	public void testInitialize_variables() {
+		IoObjectInterface wrapper = new SubFPwrapper();
+		wrapper.initialize(testRunDataDir, fileName, new String[] {"variables=ETp"});
+		IPrevExchangeItem[] exchangeItems = wrapper.getExchangeItems();
+		assertEquals(numberOfSubcatchments, exchangeItems.length);
+		assertEquals("ETp.1", exchangeItems[0].getId());
+
+		try {
+			new SubFPwrapper().initialize(testRunDataDir, fileName, new String[] {"variables=P,source"});
+			fail("source is not a forcing matrix");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains("source"));
+		}
+	}
+
+	public void testInitialize_squareMatrix() throws IOException {
+		// As many time steps as sub-catchments: the orientation must be given.
+		double[] time = new double[] {57000, 57001, 57002};
+		double[] q = new double[] {1, 2, 3, 4, 5, 6, 7, 8, 9};
+		ArrayList<MLArray> list = new ArrayList<MLArray>();
+		list.add( new MLDouble( "time", time, 1 ) );
+		list.add( new MLDouble( "Q", q, 3 ) );
+		new MatFileWriter( new File(testRunDataDir, "square.mat"), list );
+
+		try {
+			new SubFPwrapper().initialize(testRunDataDir, "square.mat", args);
+			fail("the orientation of Q is not given");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("orientation"));
+		}
+
+		IoObjectInterface wrapper = new SubFPwrapper();
+		wrapper.initialize(testRunDataDir, "square.mat", new String[] {"orientation=columns"});
+		IPrevExchangeItem[] exchangeItems = wrapper.getExchangeItems();
+		assertEquals("Q.1", exchangeItems[0].getId());
+		assertEquals(4.0, exchangeItems[0].getValuesAsDoubles()[1], 0.0);
+		wrapper = new SubFPwrapper();
+		wrapper.initialize(testRunDataDir, "square.mat", new String[] {"orientation=rows"});
+		assertEquals(2.0, wrapper.getExchangeItems()[0].getValuesAsDoubles()[1], 0.0);
+	}
+
+	public void testInitialize_distinctIds() throws IOException {
+		// Sub-catchment 1 of P1 and sub-catchment 11 of P have different ids.
+		double[] time = new double[] {57000, 57001};
+		ArrayList<MLArray> list = new ArrayList<MLArray>();
+		list.add( new MLDouble( "time", time, 1 ) );
+		list.add( new MLDouble( "P1", new double[] {-1, -2}, 2 ) );
+		list.add( new MLDouble( "P", new double[2 * 11], 2 ) );
+		new MatFileWriter( new File(testRunDataDir, "ids.mat"), list );
+
+		IoObjectInterface wrapper = new SubFPwrapper();
+		wrapper.initialize(testRunDataDir, "ids.mat", args);
+		IPrevExchangeItem[] exchangeItems = wrapper.getExchangeItems();
+		assertEquals(12, exchangeItems.length);
+		assertEquals("P1.1", exchangeItems[0].getId());
+		assertEquals(-2.0, exchangeItems[0].getValuesAsDoubles()[1], 0.0);
+		assertEquals("P.11", exchangeItems[11].getId());
+	}
+
+	public void testFinish() throws IOException {
+		File file = new File(testRunDataDir, fileName);
+
+		// Perturb the precipitation of sub-catchment 3, the compressed file is rewritten.
+		IoObjectInterface wrapper = new SubFPwrapper();
+		wrapper.initialize(testRunDataDir, fileName, args);
+		IPrevExchangeItem[] exchangeItems = wrapper.getExchangeItems();
+		exchangeItems[2].setValuesAsDoubles(new double[] {1, 2, 3, 4, 5});
+		wrapper.finish();
+		long length = file.length();
+
+		MatFileReader reader = new MatFileReader(file);
+		MLDouble p = (MLDouble) reader.getMLArray("P");
+		assertEquals(3.0, p.get(2, 2), 0.0);
+		assertEquals(12.0, p.get(2, 1), 0.0);
+		assertEquals(32.0, p.get(2, 3), 0.0);
+		assertEquals("forecast", ((MLChar) reader.getMLArray("source")).getString(0));
+
+		// Next cycle: the changed values are overwritten in place.
+		wrapper = new SubFPwrapper();
+		wrapper.initialize(testRunDataDir, fileName, args);
+		exchangeItems = wrapper.getExchangeItems();
+		assertEquals(3.0, exchangeItems[2].getValuesAsDoubles()[2], 0.0);
+		double[] etp = exchangeItems[numberOfSubcatchments+4].getValuesAsDoubles();
+		etp[1] = -1;
+		etp[3] = -3;
+		exchangeItems[numberOfSubcatchments+4].setValuesAsDoubles(etp);
+		wrapper.finish();
+		// Unchanged items do not write again.
+		wrapper.finish();
+		assertEquals(length, file.length());
+
+		reader = new MatFileReader(file);
+		MLDouble readETp = (MLDouble) reader.getMLArray("ETp");
+		assertEquals(140.0, readETp.get(4, 0), 0.0);
+		assertEquals(-1.0, readETp.get(4, 1), 0.0);
+		assertEquals(142.0, readETp.get(4, 2), 0.0);
+		assertEquals(-3.0, readETp.get(4, 3), 0.0);
+		assertEquals(151.0, readETp.get(5, 1), 0.0);
+		assertEquals(3.0, ((MLDouble) reader.getMLArray("P")).get(2, 2), 0.0);
+	}
+
+}
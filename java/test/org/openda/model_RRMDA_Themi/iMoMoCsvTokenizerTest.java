@@ -0,0 +1,80 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+public class iMoMoCsvTokenizerTest extends TestCase {
+
+	private String csv = "DL1,DL2,DL3,DL4,DL5,DL6,DL7,DL8,DL9\n"
+			+ "Data Value,Variable ID,Date,Latitude,Longitude,Site ID,User ID,Site Name,User Nickname\n"
+			+ "7.6399998664856,73,2015-10-01 04:15:07.0,-3.3425,36.629167,32,290,Saitabau,OSAMBI\r\n"
+			+ "\n"
+			+ " 0.05 , 25 , 2015-10-01 15:16:06.0 ,-3.57101,36.796213, 1 ,362,Urangini Furrow,Clemens\n"
+			+ "1.5e-3,25,2015-10-02 08:00:00.0,-3.57101,36.796213,2,362,Urangini Furrow,Clemens";
+
+	public void testNext() {
+
+		// Small buffer to force refills in the middle of a line.
+		iMoMoCsvTokenizer tokenizer = new iMoMoCsvTokenizer(new StringReader(csv), 16);
+
+		assertTrue(tokenizer.next());
+		assertEquals(7.6399998664856, tokenizer.getDataValue(), 0.0);
+		assertEquals(73, tokenizer.getVariableID());
+		assertEquals(32, tokenizer.getSiteID());
+		assertEquals("2015-10-01 04:15:07.0", tokenizer.getDate());
+
+		assertTrue(tokenizer.next());
+		assertEquals(0.05, tokenizer.getDataValue(), 0.0);
+		assertEquals(25, tokenizer.getVariableID());
+		assertEquals(1, tokenizer.getSiteID());
+		assertEquals("2015-10-01 15:16:06.0", tokenizer.getDate());
+
+		assertTrue(tokenizer.next());
+		assertEquals(1.5e-3, tokenizer.getDataValue(), 0.0);
+		assertEquals(2, tokenizer.getSiteID());
+		assertEquals("2015-10-02 08:00:00.0", tokenizer.getDate());
+
+		assertFalse(tokenizer.next());
+	}
+
+	public void testNext_sameAsParseDouble() {
+
+		String[] values = {"0", "0.3", "0.139902278780937", "123456.789", "-2.5", "100", "0.000001"};
+		StringBuilder lines = new StringBuilder();
+		for (String v : values) {
+			lines.append(v).append(",25,2015-10-01 15:16:06.0,0,0,1\n");
+		}
+		iMoMoCsvTokenizer tokenizer = new iMoMoCsvTokenizer(new StringReader(lines.toString()));
+		for (String v : values) {
+			assertTrue(tokenizer.next());
+			assertEquals(v, Double.parseDouble(v), tokenizer.getDataValue(), 0.0);
+		}
+		assertFalse(tokenizer.next());
+	}
+
+	public void testNext_emptyDataValue() {
+
+		// An empty line is skipped, a row without dataValue can not be read.
+		iMoMoCsvTokenizer tokenizer = new iMoMoCsvTokenizer(new StringReader(" \r\n ,25,2015-10-01 15:16:06.0,0,0,1\n"));
+		try {
+			tokenizer.next();
+			fail("Expected NumberFormatException");
+		} catch (NumberFormatException e) {
+			assertEquals(2, tokenizer.getLineNumber());
+		}
+		assertFalse(tokenizer.next());
+	}
+
+	public void testNext_invalidSiteID() {
+
+		iMoMoCsvTokenizer tokenizer = new iMoMoCsvTokenizer(new StringReader("0.1,25,2015-10-01 15:16:06.0,0,0,x1\n"));
+		try {
+			tokenizer.next();
+			fail("Expected NumberFormatException");
+		} catch (NumberFormatException e) {
+			// Expected.
+		}
+	}
+
+}
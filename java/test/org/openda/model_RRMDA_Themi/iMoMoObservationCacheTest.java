@@ -0,0 +1,96 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+
+import org.openda.exchange.timeseries.TimeSeries;
+import org.openda.utils.OpenDaTestSupport;
+
+import junit.framework.TestCase;
+
+public class iMoMoObservationCacheTest extends TestCase {
+
+	// Use openDA test suite.
+	private File testRunDataDir;
+    private OpenDaTestSupport testData;
+
+
+    // Methods.
+    protected void setUp() throws Exception {
+
+    	// Set up oda test environment.
+		testData = new OpenDaTestSupport(iMoMoObservationCacheTest.class, "model_RRMDA_Themi");
+		testRunDataDir = testData.getTestRunDataDir();
+
+    }
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+	}
+
+	public void testStoreAndLoad() throws FileNotFoundException {
+
+		File iMoMoDataFile = new File(testRunDataDir, "736239DLoad.csv");
+
+		if (iMoMoDataFile.exists()) {
+			iMoMoObservationReader parsed = iMoMoObservationReader.read(new FileInputStream(iMoMoDataFile), true);
+			parsed.setFileState(iMoMoDataFile.length(), iMoMoDataFile.lastModified(), -1, 0, 0);
+			iMoMoObservationCache.store(iMoMoDataFile, parsed);
+			assertTrue(iMoMoObservationCache.getCacheFile(iMoMoDataFile).exists());
+
+			iMoMoObservationReader cached = iMoMoObservationCache.load(iMoMoDataFile, true);
+			assertNotNull(cached);
+			assertEquals(parsed.getAllSeries().size(), cached.getAllSeries().size());
+			for (int site = 1; site <= 8; site++) {
+				TimeSeries expected = parsed.getAll(iMoMoObservationReader.DISCHARGE, site, "subcatchment_" + site);
+				TimeSeries actual = cached.getAll(iMoMoObservationReader.DISCHARGE, site, "subcatchment_" + site);
+				assertEquals(expected.getTimesRef().length, actual.getTimesRef().length);
+				for (int i = 0; i < expected.getTimesRef().length; i++) {
+					assertEquals(expected.getTimesRef()[i], actual.getTimesRef()[i], 0.0);
+					assertEquals(expected.getValuesAsDoubles()[i], actual.getValuesAsDoubles()[i], 0.0);
+				}
+				TimeSeries latest = cached.getLatest(iMoMoObservationReader.DISCHARGE, site, "subcatchment_" + site);
+				assertEquals(0.3, latest.getValuesAsDoubles()[0], 0.0);
+			}
+
+			// The state of the csv file is stored with the observations.
+			assertEquals(iMoMoDataFile.length(), cached.getFileLength());
+			assertEquals(iMoMoDataFile.lastModified(), cached.getFileLastModified());
+
+			// The sidecar can be replaced after it has been loaded, no temporary file is left.
+			iMoMoObservationCache.store(iMoMoDataFile, cached);
+			assertNotNull(iMoMoObservationCache.load(iMoMoDataFile, true));
+			for (String name : testRunDataDir.list()) {
+				assertFalse(name, name.endsWith(".tmp"));
+			}
+		}
+	}
+
+	public void testSize() {
+
+		// The size of a sidecar of multi-GB exports does not overflow.
+		assertEquals(4 + 4 + 8 * 7 + 3 * 4 + 2 * 32 + 3 * 16, iMoMoObservationCache.size(2, 3));
+		assertTrue(iMoMoObservationCache.size(8, 200000000L) > iMoMoObservationCache.MAX_SIZE);
+	}
+
+	public void testLoad_latestReadingsOnly() throws FileNotFoundException {
+
+		File iMoMoDataFile = new File(testRunDataDir, "736239DLoad.csv");
+
+		if (iMoMoDataFile.exists()) {
+			iMoMoObservationReader parsed = iMoMoObservationReader.read(new FileInputStream(iMoMoDataFile));
+			parsed.setFileState(iMoMoDataFile.length(), iMoMoDataFile.lastModified(), -1, 0, 0);
+			iMoMoObservationCache.store(iMoMoDataFile, parsed);
+
+			// All readings are not in the sidecar.
+			assertNull(iMoMoObservationCache.load(iMoMoDataFile, true));
+			iMoMoObservationReader cached = iMoMoObservationCache.load(iMoMoDataFile, false);
+			assertNotNull(cached);
+			TimeSeries latest = cached.getLatest(iMoMoObservationReader.DISCHARGE, 1, "subcatchment_1");
+			assertEquals("subcatchment_1", latest.getLocation());
+			assertEquals(0.3, latest.getValuesAsDoubles()[0], 0.0);
+		}
+	}
+
+}
@@ -0,0 +1,287 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+
+import org.openda.exchange.timeseries.TimeSeries;
+import org.openda.utils.OpenDaTestSupport;
+
+import junit.framework.TestCase;
+
+public class iMoMoObservationReaderTest extends TestCase {
+
+	// Use openDA test suite.
+	private File testRunDataDir;
+    private OpenDaTestSupport testData;
+
+
+    // Methods.
+    protected void setUp() throws Exception {
+
+    	// Set up oda test environment.
+		testData = new OpenDaTestSupport(iMoMoObservationReaderTest.class, "model_RRMDA_Themi");
+		testRunDataDir = testData.getTestRunDataDir();
+
+    }
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+	}
+
+	public void testReadFile_allSubcatchments() {
+
+		File iMoMoDataFile = new File(testRunDataDir, "736239DLoad.csv");
+
+		if (iMoMoDataFile.exists()) {
+			iMoMoObservationReader reader = iMoMoObservationReader.readFile(iMoMoDataFile);
+			for (int site = 1; site <= 8; site++) {
+				TimeSeries discharge = reader.getLatest(iMoMoObservationReader.DISCHARGE, site, "subcatchment_" + site);
+				assertEquals("subcatchment_" + site, discharge.getLocation());
+				double times[] = discharge.getTimesRef();
+				assertEquals("times[0]", 57296.6, times[0], 0.5);
+				double values[] = discharge.getValuesAsDoubles();
+				assertEquals("values[0]", 0.3, values[0], 0.01);
+			}
+			// Sites without discharge data give an empty time series.
+			TimeSeries noDischarge = reader.getLatest(iMoMoObservationReader.DISCHARGE, 32, "subcatchment_32");
+			assertEquals("", noDischarge.getLocation());
+		}
+	}
+
+	public void testReadFile_parsedOnce() {
+
+		File iMoMoDataFile = new File(testRunDataDir, "736239DLoad.csv");
+
+		if (iMoMoDataFile.exists()) {
+			iMoMoObservationReader first = iMoMoObservationReader.readFile(iMoMoDataFile);
+			iMoMoObservationReader second = iMoMoObservationReader.readFile(iMoMoDataFile);
+			assertSame(first, second);
+		}
+	}
+
+	public void testReadFile_leastRecentlyUsedDropped() throws IOException {
+
+		String header = "Data Value,Variable ID,Date,Latitude,Longitude,Site ID,User ID,Site Name,User Nickname\n";
+		File[] files = new File[iMoMoObservationReader.CACHE_SIZE + 1];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = new File(testRunDataDir, "lru" + i + ".csv");
+			writeFile(files[i], header
+					+ "0." + i + ",25,2015-10-02 09:00:00.0,-3.57101,36.796213,1,362,Urangini Furrow,Clemens\n", false);
+			iMoMoObservationReader.readFile(files[i]);
+			// Keep the first file in use, the second one is dropped instead.
+			iMoMoObservationReader.readFile(files[0]);
+		}
+		assertNotNull(iMoMoObservationReader.find(files[0]));
+		assertNull(iMoMoObservationReader.find(files[1]));
+		assertNotNull(iMoMoObservationReader.find(files[files.length - 1]));
+
+		// A dropped file is read again.
+		TimeSeries discharge = iMoMoObservationReader.readFile(files[1])
+				.getLatest(iMoMoObservationReader.DISCHARGE, 1, "subcatchment_1");
+		assertEquals(0.1, discharge.getValuesAsDoubles()[0], 0.0);
+		assertNotNull(iMoMoObservationReader.find(files[1]));
+	}
+
+	public void testRead_latestReading() {
+
+		String csv = "Data Value,Variable ID,Date,Latitude,Longitude,Site ID,User ID,Site Name,User Nickname\n"
+				+ "0.4,25,2015-10-02 09:00:00.0,-3.57101,36.796213,1,362,Urangini Furrow,Clemens\n"
+				+ "0.7,25,2015-10-02 11:30:00.0,-3.57101,36.796213,1,362,Urangini Furrow,Clemens\n"
+				+ "0.5,25,2015-10-02 10:00:00.0,-3.57101,36.796213,1,362,Urangini Furrow,Clemens\n"
+				+ "0.2,25,2015-10-02 08:00:00.0,-3.57101,36.796213,2,362,Urangini Furrow,Clemens\n";
+		iMoMoObservationReader reader = iMoMoObservationReader.read(new StringReader(csv));
+
+		// Several readings: the last one in time, not in the file.
+		TimeSeries discharge = reader.getLatest(iMoMoObservationReader.DISCHARGE, 1, "subcatchment_1");
+		assertEquals(57297.0 + 11.5 / 24.0, discharge.getTimesRef()[0], 1e-6);
+		assertEquals(0.7, discharge.getValuesAsDoubles()[0], 0.0);
+
+		// A single reading is converted to MJD as well.
+		discharge = reader.getLatest(iMoMoObservationReader.DISCHARGE, 2, "subcatchment_2");
+		assertEquals(57297.0 + 8.0 / 24.0, discharge.getTimesRef()[0], 1e-6);
+		assertEquals(0.2, discharge.getValuesAsDoubles()[0], 0.0);
+	}
+
+	public void testRead_allReadings() {
+
+		String csv = "0.4,25,2015-10-02 09:00:00.0,-3.57101,36.796213,1,362,Urangini Furrow,Clemens\n"
+				+ "0.7,25,2015-10-02 11:30:00.0,-3.57101,36.796213,1,362,Urangini Furrow,Clemens\n"
+				+ "0.5,25,2015-10-02 10:00:00.0,-3.57101,36.796213,1,362,Urangini Furrow,Clemens\n"
+				+ "0.6,25,2015-10-02 09:00:00.0,-3.57101,36.796213,1,362,Urangini Furrow,Clemens\n";
+		iMoMoObservationReader reader = iMoMoObservationReader.read(new StringReader(csv), true);
+
+		// Sorted by time, the second reading at 09:00 is dropped.
+		TimeSeries discharge = reader.getAll(iMoMoObservationReader.DISCHARGE, 1, "subcatchment_1");
+		assertEquals("subcatchment_1", discharge.getLocation());
+		double[] times = discharge.getTimesRef();
+		double[] values = discharge.getValuesAsDoubles();
+		assertEquals(3, times.length);
+		assertEquals(57297.0 + 9.0 / 24.0, times[0], 1e-6);
+		assertEquals(57297.0 + 10.0 / 24.0, times[1], 1e-6);
+		assertEquals(57297.0 + 11.5 / 24.0, times[2], 1e-6);
+		assertEquals(0.4, values[0], 0.0);
+		assertEquals(0.5, values[1], 0.0);
+		assertEquals(0.7, values[2], 0.0);
+
+		// The latest reading is available as well.
+		discharge = reader.getLatest(iMoMoObservationReader.DISCHARGE, 1, "subcatchment_1");
+		assertEquals(0.7, discharge.getValuesAsDoubles()[0], 0.0);
+	}
+
+	public void testReadFile_appendedRows() throws IOException {
+
+		File iMoMoDataFile = new File(testRunDataDir, "appendedRows.csv");
+		String header = "Data Value,Variable ID,Date,Latitude,Longitude,Site ID,User ID,Site Name,User Nickname\n";
+		writeFile(iMoMoDataFile, header
+				+ "0.4,25,2015-10-02 09:00:00.0,-3.57101,36.796213,1,362,Urangini Furrow,Clemens\n", false);
+
+		iMoMoObservationReader first = iMoMoObservationReader.readFile(iMoMoDataFile, true);
+		assertEquals(iMoMoDataFile.length(), first.getResumeOffset());
+
+		// Append a row: only the tail is read, the previous index is not changed.
+		writeFile(iMoMoDataFile, "0.7,25,2015-10-03 09:00:00.0,-3.57101,36.796213,1,362,Urangini Furrow,Clemens\n", true);
+		iMoMoDataFile.setLastModified(iMoMoDataFile.lastModified() + 2000);
+		iMoMoObservationReader second = iMoMoObservationReader.readFile(iMoMoDataFile, true);
+		assertNotSame(first, second);
+		assertEquals(1, first.getAll(iMoMoObservationReader.DISCHARGE, 1, "subcatchment_1").getTimesRef().length);
+		TimeSeries discharge = second.getAll(iMoMoObservationReader.DISCHARGE, 1, "subcatchment_1");
+		assertEquals(2, discharge.getTimesRef().length);
+		assertEquals(0.7, discharge.getValuesAsDoubles()[1], 0.0);
+		assertEquals(iMoMoDataFile.length(), second.getResumeOffset());
+
+		// Rewrite the file: it is parsed from the start.
+		writeFile(iMoMoDataFile, header
+				+ "0.2,25,2015-10-04 09:00:00.0,-3.57101,36.796213,1,362,Urangini Furrow,Clemens\n"
+				+ "0.3,25,2015-10-05 09:00:00.0,-3.57101,36.796213,1,362,Urangini Furrow,Clemens\n"
+				+ "0.1,25,2015-10-05 09:00:00.0,-3.57101,36.796213,2,362,Urangini Furrow,Clemens\n", false);
+		iMoMoDataFile.setLastModified(iMoMoDataFile.lastModified() + 4000);
+		iMoMoObservationReader third = iMoMoObservationReader.readFile(iMoMoDataFile, true);
+		discharge = third.getAll(iMoMoObservationReader.DISCHARGE, 1, "subcatchment_1");
+		assertEquals(2, discharge.getTimesRef().length);
+		assertEquals(0.2, discharge.getValuesAsDoubles()[0], 0.0);
+		assertEquals(0.3, discharge.getValuesAsDoubles()[1], 0.0);
+	}
+
+	public void testReadShards_sameAsSequential() throws IOException {
+
+		// Rows of 8 sites with several readings at the same time, out of order.
+		File iMoMoDataFile = new File(testRunDataDir, "iMoMo_shards.csv");
+		StringBuilder content = new StringBuilder("DataValue,VariableID,DateTimeUTC,Latitude,Longitude,SiteID,UserID,SiteName,UserName\n");
+		for (int i = 0; i < 2000; i++) {
+			int site = 1 + i % 8;
+			int minute = (i * 7) % 60;
+			content.append(i * 0.01).append(",25,2015-10-01 15:").append(minute < 10 ? "0" : "").append(minute)
+					.append(":00,-3.57,36.79,").append(site).append(",362,Furrow,Clemens\n");
+		}
+		writeFile(iMoMoDataFile, content.toString(), false);
+
+		iMoMoObservationReader sequential = iMoMoObservationReader.read(new StringReader(content.toString()), true);
+		RandomAccessFile in = new RandomAccessFile(iMoMoDataFile, "r");
+		iMoMoObservationReader sharded;
+		try {
+			sharded = iMoMoObservationReader.readShards(in.getChannel(), 0, in.length(), true, 1000);
+		} finally {
+			in.close();
+		}
+
+		assertEquals(sequential.getAllSeries().size(), sharded.getAllSeries().size());
+		for (int site = 1; site <= 8; site++) {
+			iMoMoSiteSeries expected = sequential.getSeries(iMoMoObservationReader.DISCHARGE, site);
+			iMoMoSiteSeries actual = sharded.getSeries(iMoMoObservationReader.DISCHARGE, site);
+			assertEquals(expected.getCount(), actual.getCount());
+			assertEquals(expected.getLatestMjd(), actual.getLatestMjd(), 0.0);
+			assertEquals(expected.getLatestValue(), actual.getLatestValue(), 0.0);
+			assertEquals(expected.getTimes().length, actual.getTimes().length);
+			for (int i = 0; i < expected.getTimes().length; i++) {
+				assertEquals(expected.getTimes()[i], actual.getTimes()[i], 0.0);
+				assertEquals(expected.getValues()[i], actual.getValues()[i], 0.0);
+			}
+		}
+	}
+
+	public void testRead_badRowsSkipped() {
+
+		String content = "0.1,25,2015-10-01 15:16:06,-3.57,36.79,1,362,Furrow,Clemens\n"
+				+ "abc,25,2015-10-01 15:16:07,-3.57,36.79,1,362,Furrow,Clemens\n"
+				+ " ,25,2015-10-01 15:16:07,-3.57,36.79,1,362,Furrow,Clemens\n"
+				+ "\n"
+				+ "0.2,25,2015-13-01 15:16:07,-3.57,36.79,1,362,Furrow,Clemens\n"
+				+ "0.3,25,2015-10-01 15:16:08\n"
+				+ "NaN,25,2015-10-01 15:16:09,-3.57,36.79,1,362,Furrow,Clemens\n"
+				+ "0.4,25,2015-10-01 15:16:10,-3.57,36.79,1,362,Furrow,Clemens\n"
+				+ "0.5,25,2015-10-01 15:16:10,-3.57,36.79,1,362,Furrow,Clemens\n";
+		iMoMoObservationReader reader = iMoMoObservationReader.read(new StringReader(content), true);
+		assertEquals(5, reader.getRejectedRows());
+		assertEquals(1, reader.getDuplicateReadings());
+		TimeSeries all = reader.getAll(iMoMoObservationReader.DISCHARGE, 1, "subcatchment_1");
+		assertEquals(2, all.getValuesAsDoubles().length);
+		assertEquals(0.1, all.getValuesAsDoubles()[0], 0.0);
+		assertEquals(0.4, all.getValuesAsDoubles()[1], 0.0);
+	}
+
+	public void testGetLatest_screened() {
+
+		String content = "0.1,25,2015-10-01 15:16:06,-3.57,36.79,1,362,Furrow,Clemens\n"
+				+ "0.2,25,2015-10-01 15:16:07,-3.57,36.79,1,362,Furrow,Clemens\n"
+				+ "99.0,25,2015-10-01 15:16:08,-3.57,36.79,1,362,Furrow,Clemens\n";
+		iMoMoScreening screening = new iMoMoScreening(0.0, 10.0, Double.POSITIVE_INFINITY);
+		int[] discharge = {iMoMoObservationReader.DISCHARGE};
+
+		// With all readings the last accepted reading is used.
+		iMoMoObservationReader all = iMoMoObservationReader.read(new StringReader(content), true);
+		TimeSeries latest = all.getLatest(discharge, 1, "subcatchment_1", "mm", screening);
+		assertEquals(0.2, latest.getValuesAsDoubles()[0], 0.0);
+
+
+		// With only the latest reading there is nothing to fall back to.
+		iMoMoObservationReader latestOnly = iMoMoObservationReader.read(new StringReader(content), false);
+		try {
+			latestOnly.getLatest(discharge, 1, "subcatchment_1", "mm", screening);
+			fail("the screening needs all readings");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("the screening needs all readings"));
+		}
+	}
+
+	public void testGetLatest_screenedFormatter() throws IOException {
+
+		File iMoMoDataFile = new File(testRunDataDir, "iMoMo_screened.csv");
+		writeFile(iMoMoDataFile, "0.1,25,2015-10-01 15:16:06,-3.57,36.79,1,362,Furrow,Clemens\n"
+				+ "0.2,25,2015-10-02 15:16:07,-3.57,36.79,1,362,Furrow,Clemens\n"
+				+ "99.0,25,2015-10-03 15:16:08,-3.57,36.79,1,362,Furrow,Clemens\n", false);
+
+		// The rejected latest reading falls back to 0.2 with and without a rate limit.
+		TimeSeries range = new iMoMoTimeSeriesFormatter(new String[] {"siteID=1", "maxValue=10"})
+				.readFile(iMoMoDataFile.getAbsolutePath());
+		assertEquals(0.2, range.getValuesAsDoubles()[0], 0.0);
+		TimeSeries rate = new iMoMoTimeSeriesFormatter(new String[] {"siteID=1", "maxValue=10", "maxRatePerDay=1"})
+				.readFile(iMoMoDataFile.getAbsolutePath());
+		assertEquals(0.2, rate.getValuesAsDoubles()[0], 0.0);
+
+		// A spike in the first row is rejected, the latest correct reading is used.
+		iMoMoDataFile = new File(testRunDataDir, "iMoMo_firstSpike.csv");
+		writeFile(iMoMoDataFile, "9.0,25,2015-10-01 15:16:06,-3.57,36.79,1,362,Furrow,Clemens\n"
+				+ "0.1,25,2015-10-02 15:16:07,-3.57,36.79,1,362,Furrow,Clemens\n"
+				+ "0.2,25,2015-10-03 15:16:08,-3.57,36.79,1,362,Furrow,Clemens\n", false);
+		TimeSeries all = new iMoMoTimeSeriesFormatter(new String[] {"siteID=1", "maxValue=10", "maxRatePerDay=1",
+				"allObservations=true"}).readFile(iMoMoDataFile.getAbsolutePath());
+		assertEquals(2, all.getValuesAsDoubles().length);
+		assertEquals(0.1, all.getValuesAsDoubles()[0], 0.0);
+		TimeSeries latest = new iMoMoTimeSeriesFormatter(new String[] {"siteID=1", "maxValue=10", "maxRatePerDay=1"})
+				.readFile(iMoMoDataFile.getAbsolutePath());
+		assertEquals(0.2, latest.getValuesAsDoubles()[0], 0.0);
+	}
+
+	private void writeFile(File file, String content, boolean append) throws IOException {
+		FileWriter writer = new FileWriter(file, append);
+		try {
+			writer.write(content);
+		} finally {
+			writer.close();
+		}
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.openda.model_RRMDA_Themi;
+
+import junit.framework.TestCase;
+
+public class iMoMoScreeningTest extends TestCase {
+
+	public void testScreen_range() {
+
+		iMoMoScreening screening = new iMoMoScreening(0.0, 10.0, Double.POSITIVE_INFINITY);
+		double[] times = {1.0, 2.0, 3.0, 4.0};
+		double[] values = {-1.0, 5.0, 11.0, 6.0};
+		iMoMoScreening.Result result = screening.screen(times, values, times.length);
+		assertEquals(2, result.getAccepted());
+		assertEquals(2.0, times[0], 0.0);
+		assertEquals(5.0, values[0], 0.0);
+		assertEquals(4.0, times[1], 0.0);
+		assertEquals(6.0, values[1], 0.0);
+		assertEquals(2, result.getRejectedByRange());
+		assertEquals(0, result.getRejectedByRate());
+	}
+
+	public void testScreen_rateOfChange() {
+
+		// A spike of 10 within half a day, then back to normal.
+		iMoMoScreening screening = new iMoMoScreening(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 2.0);
+		double[] times = {1.0, 1.5, 2.0, 3.0};
+		double[] values = {1.0, 11.0, 1.5, 3.0};
+		iMoMoScreening.Result result = screening.screen(times, values, times.length);
+		assertEquals(3, result.getAccepted());
+		assertEquals(1.0, values[0], 0.0);
+		assertEquals(1.5, values[1], 0.0);
+		assertEquals(3.0, values[2], 0.0);
+		assertEquals(1, result.getRejectedByRate());
+
+		// The counts are not kept, screening again gives the same result.
+		assertEquals(0, screening.screen(times, values, 3).getRejectedByRate());
+	}
+
+	public void testScreen_firstReadingSpike() {
+
+		// The first reading is a spike within range, the readings after it are kept.
+		iMoMoScreening screening = new iMoMoScreening(0.0, 50.0, 2.0);
+		double[] times = {1.0, 1.5, 2.0, 3.0};
+		double[] values = {11.0, 1.0, 1.5, 3.0};
+		iMoMoScreening.Result result = screening.screen(times, values, times.length);
+		assertEquals(3, result.getAccepted());
+		assertEquals(1.0, values[0], 0.0);
+		assertEquals(1.5, values[1], 0.0);
+		assertEquals(3.0, values[2], 0.0);
+		assertEquals(1, result.getRejectedByRate());
+
+		// Of two readings it can not be decided which one is wrong.
+		times = new double[] {1.0, 1.5};
+		values = new double[] {11.0, 1.0};
+		assertEquals(2, screening.screen(times, values, times.length).getAccepted());
+	}
+
+	public void testNone() {
+		assertFalse(iMoMoScreening.NONE.isActive());
+		double[] times = {1.0};
+		double[] values = {-1e300};
+		assertEquals(1, iMoMoScreening.NONE.screen(times, values, 1).getAccepted());
+	}
+
+}
@@ -0,0 +1,44 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.text.ParseException;
+
+import org.openda.exchange.timeseries.TimeUtils;
+
+import junit.framework.TestCase;
+
+public class iMoMoTimeParserTest extends TestCase {
+
+	public void testToMjd() throws ParseException {
+
+		iMoMoTimeParser parser = new iMoMoTimeParser();
+
+		assertEquals(TimeUtils.date2Mjd("201510011516"), parser.toMjd("2015-10-01 15:16:00.0"), 1e-9);
+		assertEquals(TimeUtils.date2Mjd("201512061800"), parser.toMjd("2015-12-06 18:00:00.0"), 1e-9);
+		assertEquals(TimeUtils.date2Mjd("200002291200"), parser.toMjd("2000-02-29 12:00:00.0"), 1e-9);
+		assertEquals(TimeUtils.date2Mjd("197001010000"), parser.toMjd("1970-01-01 00:00:00.0"), 1e-9);
+		assertEquals(TimeUtils.date2Mjd("201601010000"), parser.toMjd("2016-01-01"), 1e-9);
+
+		// Seconds and fraction of seconds.
+		double minute = parser.toMjd("2015-10-01 15:16:00.0");
+		assertEquals(minute + 6.0 / 86400.0, parser.toMjd("2015-10-01 15:16:06.0"), 1e-9);
+		assertEquals(minute + 6.5 / 86400.0, parser.toMjd("2015-10-01 15:16:06.5"), 1e-9);
+
+		// Same day from the cache.
+		assertEquals(minute, parser.toMjd("2015-10-01 15:16:00.0"), 0.0);
+	}
+
+	public void testToMjd_invalid() {
+
+		iMoMoTimeParser parser = new iMoMoTimeParser();
+		String[] invalid = {"01.10.2015", "2015-13-01 00:00:00.0", "2015-10-01 15h16", "2015-10-01 15:16:0x.0"};
+		for (String date : invalid) {
+			try {
+				parser.toMjd(date);
+				fail("Expected IllegalArgumentException for " + date);
+			} catch (IllegalArgumentException e) {
+				// Expected.
+			}
+		}
+	}
+
+}
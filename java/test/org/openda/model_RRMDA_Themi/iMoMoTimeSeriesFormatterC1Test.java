@@ -62,4 +62,24 @@ public class iMoMoTimeSeriesFormatterC1Test extends TestCase {
 		}
 	}
 
+	public void testRead_allDischargeData() throws FileNotFoundException {
+		
+		TimeSeriesFormatter iMoMoFormatter = new iMoMoTimeSeriesFormatterC1(true);
+		File iMoMoDataFile = new File(testRunDataDir, "736239DLoad.csv");
+		
+		if (iMoMoDataFile.exists()) {
+			FileInputStream in = new FileInputStream(iMoMoDataFile.getAbsolutePath());
+			TimeSeries dischargeSubcatchment1 = iMoMoFormatter.read(in);
+			String location = dischargeSubcatchment1.getLocation();
+			assertEquals("subcatchment_1",location);
+			double times[] = dischargeSubcatchment1.getTimesRef();
+			assertEquals(3, times.length);
+			assertTrue(times[0] < times[1] && times[1] < times[2]);
+			double values[] = dischargeSubcatchment1.getValuesAsDoubles();
+			assertEquals("values[0]", 0.1, values[0], 0.01);
+			assertEquals("values[1]", 0.2, values[1], 0.01);
+			assertEquals("values[2]", 0.3, values[2], 0.01);
+		}
+	}
+
 }
@@ -0,0 +1,186 @@
+package org.openda.model_RRMDA_Themi;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Map;
+
+import org.openda.exchange.timeseries.TimeSeries;
+import org.openda.utils.OpenDaTestSupport;
+
+import junit.framework.TestCase;
+
+public class iMoMoTimeSeriesFormatterTest extends TestCase {
+
+	// Use openDA test suite.
+	private File testRunDataDir;
+    private OpenDaTestSupport testData;
+
+
+    // Methods.
+    protected void setUp() throws Exception {
+
+    	// Set up oda test environment.
+		testData = new OpenDaTestSupport(iMoMoTimeSeriesFormatterTest.class, "model_RRMDA_Themi");
+		testRunDataDir = testData.getTestRunDataDir();
+
+    }
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+	}
+
+	public void testRead_arguments() throws FileNotFoundException {
+
+		iMoMoTimeSeriesFormatter iMoMoFormatter = new iMoMoTimeSeriesFormatter(
+				new String[] {"siteID=5", "quantity=m3/s"});
+		assertEquals("subcatchment_5", iMoMoFormatter.getLocation());
+		File iMoMoDataFile = new File(testRunDataDir, "736239DLoad.csv");
+
+		if (iMoMoDataFile.exists()) {
+			TimeSeries discharge = iMoMoFormatter.readFile(iMoMoDataFile.getAbsolutePath());
+			assertEquals("subcatchment_5", discharge.getLocation());
+			assertEquals("m3/s", discharge.getQuantityId());
+			assertEquals("values[0]", 0.3, discharge.getValuesAsDoubles()[0], 0.01);
+		}
+	}
+
+	public void testReadFile_arguments() throws IOException {
+
+		// Site 2 measured as variable 26, in a directory with a space.
+		File dir = new File(testRunDataDir, "iMoMo data");
+		dir.mkdirs();
+		File iMoMoDataFile = new File(dir, "iMoMo_arguments.csv");
+		FileWriter writer = new FileWriter(iMoMoDataFile);
+		writer.write("0.1,26,2015-10-01 15:16:06,0,0,1,0,s,u\n");
+		writer.write("0.4,26,2015-10-01 15:16:09,0,0,2,0,s,u\n");
+		writer.write("0.5,25,2015-10-01 15:16:10,0,0,2,0,s,u\n");
+		writer.close();
+
+		// Created by openDA without arguments, configured behind the file name.
+		iMoMoTimeSeriesFormatter formatter = new iMoMoTimeSeriesFormatter();
+		TimeSeries latest = formatter.readFile(iMoMoDataFile.getAbsolutePath()
+				+ " siteID=2 location=upper_catchment variableIDs=26");
+		assertEquals("upper_catchment", latest.getLocation());
+		assertEquals(0.4, latest.getValuesAsDoubles()[0], 0.0);
+		assertEquals(2, formatter.getSiteID());
+
+		// Configured by the properties file next to iMoMo.csv.
+		writer = new FileWriter(new File(dir, "iMoMo.properties"));
+		writer.write("variableIDs = 26\n");
+		writer.write("site.1 = lower_catchment\n");
+		writer.write("site.2 = upper_catchment\n");
+		writer.close();
+		formatter = new iMoMoTimeSeriesFormatter();
+		latest = formatter.readFile(iMoMoDataFile.getAbsolutePath() + " config=iMoMo.properties location=lower_catchment");
+		assertEquals("lower_catchment", latest.getLocation());
+		assertEquals(0.1, latest.getValuesAsDoubles()[0], 0.0);
+		assertEquals(1, formatter.getSiteID());
+
+		try {
+			new iMoMoTimeSeriesFormatter().readFile(iMoMoDataFile.getAbsolutePath());
+			fail("the formatter is not configured");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("no siteID"));
+		}
+		try {
+			new iMoMoTimeSeriesFormatter().readFile(iMoMoDataFile.getAbsolutePath()
+					+ " config=iMoMo.properties location=middle_catchment");
+			fail("middle_catchment is not configured");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("location middle_catchment is not in"));
+		}
+	}
+
+		public void testRead_sameAsSubcatchmentFormatter() throws FileNotFoundException {
+
+		File iMoMoDataFile = new File(testRunDataDir, "736239DLoad.csv");
+
+		if (iMoMoDataFile.exists()) {
+			TimeSeries expected = new iMoMoTimeSeriesFormatterC3(true).readFile(iMoMoDataFile.getAbsolutePath());
+			TimeSeries actual = new iMoMoTimeSeriesFormatter(new int[] {iMoMoObservationReader.DISCHARGE}, 3,
+					"subcatchment_3", "mm", true).readFile(iMoMoDataFile.getAbsolutePath());
+			assertEquals(expected.getLocation(), actual.getLocation());
+			assertEquals(expected.getTimesRef().length, actual.getTimesRef().length);
+			for (int i = 0; i < expected.getTimesRef().length; i++) {
+				assertEquals(expected.getTimesRef()[i], actual.getTimesRef()[i], 0.0);
+				assertEquals(expected.getValuesAsDoubles()[i], actual.getValuesAsDoubles()[i], 0.0);
+			}
+		}
+	}
+
+	public void testRead_severalVariables() throws IOException {
+
+		// Discharge of site 1 measured as variable 25 and 26.
+		File iMoMoDataFile = new File(testRunDataDir, "iMoMo_variables.csv");
+		FileWriter writer = new FileWriter(iMoMoDataFile);
+		writer.write("0.1,25,2015-10-01 15:16:06,0,0,1,0,s,u\n");
+		writer.write("0.4,26,2015-10-01 15:16:09,0,0,1,0,s,u\n");
+		writer.write("0.5,26,2015-10-01 15:16:06,0,0,1,0,s,u\n");
+		writer.close();
+
+		TimeSeries latest = new iMoMoTimeSeriesFormatter(new int[] {25, 26}, 1, "subcatchment_1", "mm", false)
+				.readFile(iMoMoDataFile.getAbsolutePath());
+		assertEquals(0.4, latest.getValuesAsDoubles()[0], 0.0);
+
+		// Same time in both variables, the reading of the first variable is used.
+		TimeSeries all = new iMoMoTimeSeriesFormatter(new int[] {25, 26}, 1, "subcatchment_1", "mm", true)
+				.readFile(iMoMoDataFile.getAbsolutePath());
+		assertEquals(2, all.getTimesRef().length);
+		assertEquals(0.1, all.getValuesAsDoubles()[0], 0.0);
+		assertEquals(0.4, all.getValuesAsDoubles()[1], 0.0);
+	}
+
+	public void testCreateFormatters() throws IOException {
+
+		File configFile = new File(testRunDataDir, "iMoMo.properties");
+		FileWriter writer = new FileWriter(configFile);
+		writer.write("variableIDs = 25\n");
+		writer.write("quantity = mm\n");
+		writer.write("site.2 = upper_catchment\n");
+		writer.write("site.1 = lower_catchment\n");
+		writer.close();
+
+		Map<String, iMoMoTimeSeriesFormatter> formatters = iMoMoTimeSeriesFormatter.createFormatters(configFile);
+		assertEquals(2, formatters.size());
+		assertEquals("lower_catchment", formatters.keySet().iterator().next());
+		assertEquals(2, formatters.get("upper_catchment").getSiteID());
+
+		File iMoMoDataFile = new File(testRunDataDir, "736239DLoad.csv");
+		if (iMoMoDataFile.exists()) {
+			for (iMoMoTimeSeriesFormatter formatter : formatters.values()) {
+				TimeSeries discharge = formatter.readFile(iMoMoDataFile.getAbsolutePath());
+				assertEquals(formatter.getLocation(), discharge.getLocation());
+				assertEquals(0.3, discharge.getValuesAsDoubles()[0], 0.01);
+			}
+		}
+	}
+
+	public void testCreateFormatters_screening() throws IOException {
+
+		File configFile = new File(testRunDataDir, "iMoMo_screening.properties");
+		FileWriter writer = new FileWriter(configFile);
+		writer.write("maxValue = 50\n");
+		writer.write("site.1 = subcatchment_1\n");
+		writer.write("site.2 = subcatchment_2\n");
+		writer.write("site.2.maxValue = 0.25\n");
+		writer.close();
+
+		Map<String, iMoMoTimeSeriesFormatter> formatters = iMoMoTimeSeriesFormatter.createFormatters(configFile);
+		assertEquals(2, formatters.size());
+		assertEquals(50.0, formatters.get("subcatchment_1").getScreening().getMaxValue(), 0.0);
+		assertEquals(0.25, formatters.get("subcatchment_2").getScreening().getMaxValue(), 0.0);
+
+		File iMoMoDataFile = new File(testRunDataDir, "736239DLoad.csv");
+		if (iMoMoDataFile.exists()) {
+			// The last reading 0.3 of site 2 is out of range, 0.2 is used instead.
+			iMoMoTimeSeriesFormatter formatter = new iMoMoTimeSeriesFormatter(new String[] {"siteID=2",
+					"allObservations=true", "maxValue=0.25"});
+			TimeSeries discharge = formatter.readFile(iMoMoDataFile.getAbsolutePath());
+			assertEquals(2, discharge.getValuesAsDoubles().length);
+			assertEquals(0.2, discharge.getValuesAsDoubles()[1], 0.01);
+		}
+	}
+
+}